@@ -0,0 +1,117 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end {@link HttpFileDownloader#downloadAll()} throughput against
+ * the loopback server.
+ * <p>
+ * Every shape moves the same 4 MB: many small files, where the per-task
+ * bookkeeping, scheduling and connection reuse dominate, against a few
+ * large ones, where the copy loop does. The score is the time of one
+ * {@code downloadAll()} call.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend =
+        "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class DownloadAllBenchmark {
+
+    /**
+     * Files and file size, "count x size".
+     */
+    @Param({"1024x4096", "64x65536", "4x1048576"})
+    private String shape;
+
+    /**
+     * Worker threads of the downloader.
+     */
+    @Param({"8"})
+    private int threads;
+
+    private LoopbackServer server;
+    private HttpFileDownloader downloader;
+    private File directory;
+    private List<DownloadData> tasks;
+    private List<UUID> ids;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String[] dimensions = shape.split("x");
+        int count = Integer.parseInt(dimensions[0]);
+        int size = Integer.parseInt(dimensions[1]);
+        server = new LoopbackServer(size);
+        directory = Files.createTempDirectory("download-all").toFile();
+        tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tasks.add(new DownloadData(server.url(size),
+                    new File(directory, "file-" + i).getPath()));
+        }
+        Properties properties = new Properties();
+        properties.put("threads", threads);
+        downloader = new HttpFileDownloader(properties);
+    }
+
+    @Setup(Level.Invocation)
+    public void createTasks() {
+        ids = downloader.createAll(tasks);
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeTasks() {
+        for (UUID id : ids) {
+            if (!downloader.downloaded(id)) {
+                throw new IllegalStateException("Download " + id
+                        + " has not finished");
+            }
+            downloader.remove(id);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        downloader.close();
+        server.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public int downloadAll() throws InterruptedException {
+        return downloader.downloadAll().size();
+    }
+}
@@ -0,0 +1,99 @@
+package org.lineate.downloader.httpdownloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process loopback http server for the benchmarks.
+ * <p>
+ * A request for "/file/N" is answered with the first N bytes of a random
+ * block, so one server serves files of any size up to the block size.
+ * Connections are kept alive.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+final class LoopbackServer implements AutoCloseable {
+
+    /**
+     * Size of the response body writes.
+     */
+    private static final int CHUNK = 64 * 1024;
+
+    /**
+     * Path prefix of the served files.
+     */
+    private static final String PREFIX = "/file/";
+
+    /**
+     * Http server.
+     */
+    private final HttpServer server;
+
+    /**
+     * Handler threads.
+     */
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    /**
+     * Served content.
+     */
+    private final byte[] content;
+
+    /**
+     * Starts server on a free loopback port.
+     *
+     * @param maxSize size of the biggest served file
+     * @throws IOException if the server cannot be started
+     */
+    LoopbackServer(final int maxSize) throws IOException {
+        this.content = new byte[maxSize];
+        new Random(maxSize).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(PREFIX, this::handle);
+        server.setExecutor(pool);
+        server.start();
+    }
+
+    /**
+     * Returns url of a file of the given size.
+     *
+     * @param size file size
+     * @return url
+     */
+    String url(final int size) {
+        return "http://127.0.0.1:" + server.getAddress().getPort()
+                + PREFIX + size;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        int size = Integer.parseInt(path.substring(PREFIX.length()));
+        if (size > content.length) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(200, size);
+        try (OutputStream body = exchange.getResponseBody()) {
+            for (int offset = 0; offset < size; offset += CHUNK) {
+                body.write(content, offset, Math.min(CHUNK, size - offset));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,118 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.lineate.downloader.progressbar.DownloadStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the task bookkeeping under contention.
+ * <p>
+ * The downloader holds {@link #TASKS} created tasks. {@code create}
+ * creates a task and removes it again so that the registry keeps its
+ * size, {@code getStatus} polls random tasks, both on four threads.
+ * {@code mixed} runs one creating thread against three polling ones,
+ * like a user interface over a busy downloader. Both registry
+ * implementations are measured.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend =
+        "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class RegistryBenchmark {
+
+    /**
+     * Tasks created before the measurement.
+     */
+    static final int TASKS = 100_000;
+
+    /**
+     * Registry implementation.
+     */
+    @Param({"map", "compact"})
+    private String registry;
+
+    private HttpFileDownloader downloader;
+    private UUID[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Properties properties = new Properties();
+        properties.put("registry", registry);
+        downloader = new HttpFileDownloader(properties);
+        List<DownloadData> data = new ArrayList<>(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            data.add(data(i));
+        }
+        ids = downloader.createAll(data).toArray(new UUID[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        downloader.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public UUID create() {
+        UUID id = downloader.create(data(
+                ThreadLocalRandom.current().nextInt(TASKS)));
+        downloader.remove(id);
+        return id;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public DownloadStatus getStatus() {
+        return downloader.getStatus(
+                ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public UUID mixedCreate() {
+        return create();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public DownloadStatus mixedGetStatus() {
+        return getStatus();
+    }
+
+    private static DownloadData data(final int index) {
+        return new DownloadData("http://mirror.example.org/pub/dir"
+                + (index % 100) + "/file-" + index + ".bin",
+                "downloads/dir" + (index % 100) + "/file-" + index + ".bin");
+    }
+}
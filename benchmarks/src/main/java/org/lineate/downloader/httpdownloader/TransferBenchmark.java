@@ -0,0 +1,143 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copy loop of the download tasks at various block sizes.
+ * <p>
+ * The source is an in-memory stream so that only the loop and the file
+ * writes are measured. {@code adaptive} is the loop of
+ * {@link ChannelTransfer#transfer} with {@link IoSizing}, which does not
+ * depend on the block size, {@code transferFrom} is
+ * {@link FileChannel#transferFrom} with the block size as the chunk,
+ * {@code directBuffer} is the loop of the segment workers and
+ * {@code heapStream} is the plain byte array copy for comparison. The
+ * score is the time to copy {@link #SIZE} bytes.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend =
+        "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class TransferBenchmark {
+
+    /**
+     * Bytes copied by one invocation.
+     */
+    static final int SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Block size of the loop.
+     */
+    @Param({"8192", "65536", "262144", "1048576"})
+    private int blockSize;
+
+    private byte[] content;
+    private File file;
+    private RandomAccessFile output;
+    private FileChannel target;
+    private ByteBuffer direct;
+    private byte[] heap;
+    private RateLimiter limiter;
+    private BufferPool buffers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        content = new byte[SIZE];
+        new Random(SIZE).nextBytes(content);
+        file = File.createTempFile("transfer", ".bin");
+        output = new RandomAccessFile(file, "rw");
+        target = output.getChannel();
+        direct = ByteBuffer.allocateDirect(blockSize);
+        heap = new byte[blockSize];
+        limiter = new RateLimiter(0, null);
+        buffers = new BufferPool(0, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        output.close();
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public long adaptive() throws IOException {
+        return ChannelTransfer.transfer(stream(), target, 0, limiter,
+                IoSizing.forLength(SIZE), buffers, (total) -> { });
+    }
+
+    @Benchmark
+    public long transferFrom() throws IOException {
+        ReadableByteChannel source = Channels.newChannel(stream());
+        long total = 0;
+        long transferred;
+        while ((transferred = target.transferFrom(source, total,
+                limiter.chunk(blockSize))) > 0) {
+            total += transferred;
+            limiter.acquire(transferred);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long directBuffer() throws IOException {
+        ReadableByteChannel source = Channels.newChannel(stream());
+        long total = 0;
+        while (ChannelTransfer.read(source, direct)) {
+            total += ChannelTransfer.write(target, direct, total);
+            limiter.acquire(direct.limit());
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long heapStream() throws IOException {
+        InputStream source = stream();
+        long total = 0;
+        int bytesRead;
+        while ((bytesRead = source.read(heap)) != -1) {
+            output.seek(total);
+            output.write(heap, 0, bytesRead);
+            total += bytesRead;
+            limiter.acquire(bytesRead);
+        }
+        return total;
+    }
+
+    private InputStream stream() {
+        return new ByteArrayInputStream(content);
+    }
+}
@@ -0,0 +1,84 @@
+package org.lineate.downloader.progressbar;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Overhead of a progress update on the copy loop.
+ * <p>
+ * {@code set} is the update of a single task thread, {@code add} the
+ * update of the segment workers sharing one record. The listener is
+ * absent, called on every update, or coalesced to one event per
+ * {@link #INTERVAL} milliseconds as the downloader does by default.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend =
+        "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class ProgressBenchmark {
+
+    /**
+     * Event interval of the coalesced listener.
+     */
+    static final long INTERVAL = 100;
+
+    /**
+     * Bytes of one update, a copy loop block.
+     */
+    private static final long BLOCK = 64 * 1024;
+
+    /**
+     * Listener setup: none, every, coalesced.
+     */
+    @Param({"none", "every", "coalesced"})
+    private String listener;
+
+    private DownloadProgress progress;
+    private long downloaded;
+
+    @Setup(Level.Trial)
+    public void setUp(final Blackhole blackhole) {
+        ProgressDispatcher dispatcher = new ProgressDispatcher(
+                "coalesced".equals(listener) ? INTERVAL : 0);
+        if (!"none".equals(listener)) {
+            dispatcher.subscribe(blackhole::consume);
+        }
+        progress = new DownloadProgress(UUID.randomUUID(), dispatcher);
+        progress.start(Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void set() {
+        downloaded += BLOCK;
+        progress.set(downloaded);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long add() {
+        return progress.add(BLOCK);
+    }
+}
@@ -1,6 +1,7 @@
 package org.lineate.downloader;
 
 import org.lineate.downloader.progressbar.DownloadStatus;
+import org.lineate.downloader.progressbar.ProgressListener;
 
 import java.util.Set;
 import java.util.UUID;
@@ -120,4 +121,28 @@ public interface Downloader<M, F> extends AutoCloseable {
      * @return set of UUID
      */
     Set<UUID> getDownloads();
+
+    /**
+     * Subscribes listener to progress events of all downloads.
+     * Progress updates are coalesced to the configured rate per task,
+     * status transitions are always delivered.
+     * <p>
+     * Progress events are optional. A downloader without them keeps this
+     * default, which accepts the listener and never calls it, so callers
+     * do not need to know the implementation.
+     * </p>
+     *
+     * @param listener progress listener
+     */
+    default void subscribe(ProgressListener listener) {
+    }
+
+    /**
+     * Unsubscribes listener from progress events, does nothing if the
+     * downloader has no progress events.
+     *
+     * @param listener progress listener
+     */
+    default void unsubscribe(ProgressListener listener) {
+    }
 }
@@ -0,0 +1,408 @@
+package org.lineate.downloader.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of the downloaded files.
+ * <p>
+ * Every entry keeps the body of a url with its ETag and Last-Modified
+ * validators. A downloader revalidates the entry with a conditional
+ * request and on "304 Not Modified" takes the body from the cache.
+ * Entries are evicted in least recently used order when the total size
+ * goes over the limit. A copy made by the cache keeps the modification
+ * time of the cached body, so a destination which already matches the
+ * entry is recognized by its size and time without reading it.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.1
+ */
+
+public final class DiskCache {
+
+    /**
+     * Body file name suffix.
+     */
+    private static final String BODY = ".body";
+
+    /**
+     * Metadata file name suffix.
+     */
+    private static final String META = ".meta";
+
+    /**
+     * Property name for the url.
+     */
+    private static final String URL = "url";
+
+    /**
+     * Property name for ETag validator.
+     */
+    private static final String ETAG = "etag";
+
+    /**
+     * Property name for Last-Modified validator.
+     */
+    private static final String LAST_MODIFIED = "lastModified";
+
+    /**
+     * Property name for the last access time.
+     */
+    private static final String ACCESS = "access";
+
+    /**
+     * Cache directory.
+     */
+    private final File directory;
+
+    /**
+     * Maximum total size of the bodies in bytes.
+     */
+    private final long maxSize;
+
+    /**
+     * Entries by key in least recently used order, guarded by this object
+     * monitor.
+     */
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Total size of the bodies in bytes.
+     */
+    private long size;
+
+    /**
+     * Downloads served from the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Downloads fetched from the source.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Opens cache in the directory, creating the directory if needed.
+     *
+     * @param directoryValue cache directory
+     * @param maxSizeValue maximum total size of the bodies in bytes
+     * @throws IOException if the directory can not be read
+     */
+    public DiskCache(final File directoryValue, final long maxSizeValue)
+            throws IOException {
+        this.directory = directoryValue;
+        this.maxSize = maxSizeValue;
+        Files.createDirectories(directory.toPath());
+        load();
+    }
+
+    /**
+     * Finds entry of the url.
+     *
+     * @param url source url
+     * @return entry, null if the url is not cached
+     */
+    public synchronized Entry lookup(final String url) {
+        Entry entry = entries.get(key(url));
+        return entry != null && entry.body().isFile() ? entry : null;
+    }
+
+    /**
+     * Stores copy of the downloaded file and counts a miss. Files without
+     * validators are not stored, they can not be revalidated.
+     *
+     * @param url source url
+     * @param file downloaded file
+     * @param etag ETag validator, may be null
+     * @param lastModified Last-Modified validator, may be null
+     * @throws IOException on copy error
+     */
+    public void store(final String url, final File file, final String etag,
+                      final String lastModified) throws IOException {
+        misses.incrementAndGet();
+        if (etag == null && lastModified == null
+                || file.length() > maxSize) {
+            return;
+        }
+        String key = key(url);
+        Path temp = Files.createTempFile(directory.toPath(), key, BODY);
+        try {
+            Files.copy(file.toPath(), temp,
+                    StandardCopyOption.REPLACE_EXISTING);
+            synchronized (this) {
+                Entry entry = new Entry(key, url, etag, lastModified,
+                        temp.toFile().length());
+                Files.move(temp, entry.body().toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                Entry previous = entries.put(key, entry);
+                if (previous != null) {
+                    size -= previous.getSize();
+                }
+                size += entry.getSize();
+                entry.save(System.currentTimeMillis());
+                evict();
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Checks if the file is a copy of the cached body made by
+     * {@link #materialize(Entry, File)}.
+     *
+     * @param entry cache entry
+     * @param file destination file
+     * @return true if the size and the modification time are the same
+     */
+    public boolean matches(final Entry entry, final File file) {
+        return file.isFile() && file.length() == entry.getSize()
+                && file.lastModified() == entry.body().lastModified();
+    }
+
+    /**
+     * Copies cached body to the destination unless it already matches and
+     * counts a hit. The body is opened under the cache monitor and copied
+     * outside of it, an open body stays readable when the entry is evicted
+     * or replaced during the copy.
+     *
+     * @param entry cache entry
+     * @param destination destination file
+     * @return size of the file in bytes, -1 if the entry was evicted or
+     * replaced since the lookup, then the url has to be fetched again
+     * @throws IOException on copy error
+     */
+    public long materialize(final Entry entry, final File destination)
+            throws IOException {
+        InputStream body;
+        FileTime modified;
+        synchronized (this) {
+            if (entries.get(entry.key) != entry || !entry.body().isFile()) {
+                return -1;
+            }
+            entry.save(System.currentTimeMillis());
+            if (matches(entry, destination)) {
+                hits.incrementAndGet();
+                return entry.getSize();
+            }
+            Path path = entry.body().toPath();
+            modified = Files.getLastModifiedTime(path);
+            body = Files.newInputStream(path);
+        }
+        Path temp = null;
+        try (InputStream in = body) {
+            temp = Files.createTempFile(
+                    destination.getAbsoluteFile().toPath().getParent(),
+                    destination.getName(), ".tmp");
+            Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(temp, modified);
+            Files.move(temp, destination.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        hits.incrementAndGet();
+        return entry.getSize();
+    }
+
+    /**
+     * Returns number of downloads served from the cache.
+     *
+     * @return hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns number of downloads fetched from the source.
+     *
+     * @return misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns total size of the cached bodies.
+     *
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private void load() throws IOException {
+        File[] metas = directory.listFiles(
+                (dir, name) -> name.endsWith(META));
+        if (metas == null) {
+            return;
+        }
+        List<Properties> loaded = new ArrayList<>();
+        for (File meta : metas) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(meta.toPath())) {
+                properties.load(in);
+            } catch (IOException ex) {
+                continue;
+            }
+            loaded.add(properties);
+        }
+        loaded.sort((a, b) -> Long.compare(
+                Long.parseLong(a.getProperty(ACCESS, "0")),
+                Long.parseLong(b.getProperty(ACCESS, "0"))));
+        for (Properties properties : loaded) {
+            String url = properties.getProperty(URL);
+            Entry entry = new Entry(key(url), url,
+                    properties.getProperty(ETAG),
+                    properties.getProperty(LAST_MODIFIED), 0);
+            File body = entry.body();
+            if (body.isFile()) {
+                entry = new Entry(entry.key, url, entry.etag,
+                        entry.lastModified, body.length());
+                entries.put(entry.key, entry);
+                size += entry.getSize();
+            }
+        }
+        evict();
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Entry>> eldest =
+                entries.entrySet().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            Entry entry = eldest.next().getValue();
+            eldest.remove();
+            size -= entry.getSize();
+            Files.deleteIfExists(entry.body().toPath());
+            Files.deleteIfExists(entry.meta().toPath());
+        }
+    }
+
+    private static String key(final String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Cached body with its validators.
+     */
+    public final class Entry {
+
+        /**
+         * Entry key, file name of the body and the metadata.
+         */
+        private final String key;
+
+        /**
+         * Source url.
+         */
+        private final String url;
+
+        /**
+         * ETag validator, may be null.
+         */
+        private final String etag;
+
+        /**
+         * Last-Modified validator, may be null.
+         */
+        private final String lastModified;
+
+        /**
+         * Body size in bytes.
+         */
+        private final long bodySize;
+
+        Entry(final String keyValue, final String urlValue,
+              final String etagValue, final String lastModifiedValue,
+              final long sizeValue) {
+            this.key = keyValue;
+            this.url = urlValue;
+            this.etag = etagValue;
+            this.lastModified = lastModifiedValue;
+            this.bodySize = sizeValue;
+        }
+
+        /**
+         * Returns ETag validator of the cached body.
+         *
+         * @return ETag, null if there is none
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Returns Last-Modified validator of the cached body.
+         *
+         * @return Last-Modified date, null if there is none
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns size of the cached body.
+         *
+         * @return size in bytes
+         */
+        public long getSize() {
+            return bodySize;
+        }
+
+        private File body() {
+            return new File(directory, key + BODY);
+        }
+
+        private File meta() {
+            return new File(directory, key + META);
+        }
+
+        private void save(final long access) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty(URL, url);
+            if (etag != null) {
+                properties.setProperty(ETAG, etag);
+            }
+            if (lastModified != null) {
+                properties.setProperty(LAST_MODIFIED, lastModified);
+            }
+            properties.setProperty(ACCESS, Long.toString(access));
+            try (OutputStream out = Files.newOutputStream(meta().toPath())) {
+                properties.store(out, null);
+            }
+        }
+    }
+}
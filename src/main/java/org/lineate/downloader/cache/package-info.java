@@ -0,0 +1,7 @@
+/**
+ * Package contains on-disk cache of the downloaded files.
+ *
+ * @version 1.0
+ */
+
+package org.lineate.downloader.cache;
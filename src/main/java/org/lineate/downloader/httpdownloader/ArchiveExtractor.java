@@ -0,0 +1,447 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Streaming extraction stage for the downloaded archives.
+ * <p>
+ * Entries of a tar, gzip compressed tar, zip or plain gzip stream are
+ * written to the target directory while the response is read, without
+ * storing the archive first. The format is detected by the leading magic
+ * bytes. Progress and bandwidth limit apply to the compressed bytes, the
+ * compressed stream can be written to the archive file at the same time.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+final class ArchiveExtractor {
+
+    /**
+     * Size of a tar block.
+     */
+    private static final int TAR_BLOCK = 512;
+
+    /**
+     * Offset and length of the entry name in a tar header.
+     */
+    private static final int NAME_OFFSET = 0;
+
+    /**
+     * Length of the entry name in a tar header.
+     */
+    private static final int NAME_LENGTH = 100;
+
+    /**
+     * Offset of the entry size in a tar header.
+     */
+    private static final int SIZE_OFFSET = 124;
+
+    /**
+     * Length of the entry size in a tar header.
+     */
+    private static final int SIZE_LENGTH = 12;
+
+    /**
+     * Offset of the entry type in a tar header.
+     */
+    private static final int TYPE_OFFSET = 156;
+
+    /**
+     * Offset of the "ustar" magic in a tar header.
+     */
+    private static final int MAGIC_OFFSET = 257;
+
+    /**
+     * Offset of the name prefix in a ustar header.
+     */
+    private static final int PREFIX_OFFSET = 345;
+
+    /**
+     * Length of the name prefix in a ustar header.
+     */
+    private static final int PREFIX_LENGTH = 155;
+
+    /**
+     * Bytes needed to detect the format.
+     */
+    private static final int MAGIC_SIZE = MAGIC_OFFSET + 5;
+
+    /**
+     * First byte of the gzip magic.
+     */
+    private static final int GZIP_MAGIC_1 = 0x1f;
+
+    /**
+     * Second byte of the gzip magic.
+     */
+    private static final int GZIP_MAGIC_2 = 0x8b;
+
+    /**
+     * Mask of a byte.
+     */
+    private static final int BYTE = 0xff;
+
+    /**
+     * Radix of the numbers in tar headers.
+     */
+    private static final int OCTAL = 8;
+
+    private ArchiveExtractor() {
+    }
+
+    /**
+     * Extracts the archive stream into the directory.
+     *
+     * @param inputStream compressed response stream
+     * @param directory target directory, created if needed
+     * @param name archive file name, used for a plain gzip stream
+     * @param archive channel to keep the compressed stream, may be null
+     * @param limiter bandwidth limiter of the transfer
+     * @param listener receives the number of compressed bytes
+     * @return number of compressed bytes
+     * @throws IOException on read, write or format error
+     */
+    static long extract(final InputStream inputStream,
+                        final File directory,
+                        final String name,
+                        final FileChannel archive,
+                        final RateLimiter limiter,
+                        final ChannelTransfer.Listener listener)
+            throws IOException {
+        Path root = directory.getAbsoluteFile().toPath().normalize();
+        Files.createDirectories(root);
+        Metered metered = new Metered(inputStream, archive, limiter,
+                listener);
+        InputStream source = new BufferedInputStream(metered,
+                ChannelTransfer.BLOCK_SIZE);
+
+        if (isGzip(source)) {
+            InputStream plain = new BufferedInputStream(
+                    new GZIPInputStream(source, ChannelTransfer.BLOCK_SIZE),
+                    ChannelTransfer.BLOCK_SIZE);
+            if (isTar(plain)) {
+                untar(plain, root);
+            } else {
+                String file = name.endsWith(".gz")
+                        ? name.substring(0, name.length() - ".gz".length())
+                        : name + ".out";
+                copy(plain, resolve(root, file), Long.MAX_VALUE);
+            }
+        } else if (isZip(source)) {
+            unzip(new ZipInputStream(source), root);
+        } else if (isTar(source)) {
+            untar(source, root);
+        } else {
+            throw new IOException("Unknown archive format of " + name);
+        }
+
+        // the rest of the stream, e.g. zip central directory, is metered
+        byte[] rest = new byte[ChannelTransfer.BLOCK_SIZE];
+        while (metered.read(rest) != -1) {
+            continue;
+        }
+        return metered.count;
+    }
+
+    private static boolean isGzip(final InputStream in) throws IOException {
+        byte[] magic = peek(in, 2);
+        return (magic[0] & BYTE) == GZIP_MAGIC_1
+                && (magic[1] & BYTE) == GZIP_MAGIC_2;
+    }
+
+    private static boolean isZip(final InputStream in) throws IOException {
+        byte[] magic = peek(in, 4);
+        return magic[0] == 'P' && magic[1] == 'K'
+                && magic[2] == 3 && magic[3] == 4;
+    }
+
+    private static boolean isTar(final InputStream in) throws IOException {
+        byte[] header = peek(in, MAGIC_SIZE);
+        return "ustar".equals(new String(header, MAGIC_OFFSET, 5,
+                StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] peek(final InputStream in, final int length)
+            throws IOException {
+        byte[] data = new byte[length];
+        in.mark(length);
+        int read = 0;
+        int n;
+        while (read < length && (n = in.read(data, read, length - read)) > 0) {
+            read += n;
+        }
+        in.reset();
+        return data;
+    }
+
+    private static void unzip(final ZipInputStream zip, final Path root)
+            throws IOException {
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            Path target = resolve(root, entry.getName());
+            if (entry.isDirectory()) {
+                Files.createDirectories(target);
+            } else {
+                copy(zip, target, Long.MAX_VALUE);
+            }
+        }
+    }
+
+    private static void untar(final InputStream in, final Path root)
+            throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        while (readFully(in, header)) {
+            if (isZeroBlock(header)) {
+                return;
+            }
+            long size = number(header, SIZE_OFFSET, SIZE_LENGTH);
+            char type = (char) header[TYPE_OFFSET];
+            String entryName = longName != null ? longName : name(header);
+            longName = null;
+
+            switch (type) {
+                case 'L':
+                    longName = trim(new String(readData(in, size),
+                            StandardCharsets.UTF_8));
+                    break;
+                case 'x':
+                    longName = paxPath(readData(in, size));
+                    break;
+                case '5':
+                    Files.createDirectories(resolve(root, entryName));
+                    skip(in, padding(size));
+                    break;
+                case '0':
+                case '\0':
+                    copy(in, resolve(root, entryName), size);
+                    skip(in, padding(size));
+                    break;
+                default:
+                    // links and special files are not extracted
+                    skip(in, size + padding(size));
+                    break;
+            }
+        }
+    }
+
+    private static String name(final byte[] header) {
+        String name = string(header, NAME_OFFSET, NAME_LENGTH);
+        String prefix = string(header, PREFIX_OFFSET, PREFIX_LENGTH);
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private static String paxPath(final byte[] data) {
+        String records = new String(data, StandardCharsets.UTF_8);
+        for (String record : records.split("\n")) {
+            int key = record.indexOf(" path=");
+            if (key >= 0) {
+                return record.substring(key + " path=".length());
+            }
+        }
+        return null;
+    }
+
+    private static long number(final byte[] header, final int offset,
+                               final int length) {
+        if ((header[offset] & BYTE) >= 0x80) {
+            // base-256 encoding of the big sizes
+            long value = header[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << OCTAL) | (header[i] & BYTE);
+            }
+            return value;
+        }
+        String value = string(header, offset, length).trim();
+        return value.isEmpty() ? 0 : Long.parseLong(value, OCTAL);
+    }
+
+    private static String string(final byte[] header, final int offset,
+                                 final int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset,
+                StandardCharsets.UTF_8);
+    }
+
+    private static String trim(final String value) {
+        int end = value.indexOf('\0');
+        return end < 0 ? value : value.substring(0, end);
+    }
+
+    private static boolean isZeroBlock(final byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long padding(final long size) {
+        return (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK;
+    }
+
+    private static byte[] readData(final InputStream in, final long size)
+            throws IOException {
+        byte[] data = new byte[(int) size];
+        if (!readFully(in, data)) {
+            throw new EOFException("Truncated tar entry");
+        }
+        skip(in, padding(size));
+        return data;
+    }
+
+    private static boolean readFully(final InputStream in, final byte[] data)
+            throws IOException {
+        int read = 0;
+        while (read < data.length) {
+            int n = in.read(data, read, data.length - read);
+            if (n == -1) {
+                if (read == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated tar stream");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    private static void skip(final InputStream in, final long length)
+            throws IOException {
+        long left = length;
+        while (left > 0) {
+            long skipped = in.skip(left);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Truncated tar stream");
+                }
+                skipped = 1;
+            }
+            left -= skipped;
+        }
+    }
+
+    /**
+     * Resolves entry name inside the root, rejects names which escape it.
+     */
+    private static Path resolve(final Path root, final String name)
+            throws IOException {
+        Path target = root.resolve(name).normalize();
+        if (!target.startsWith(root)) {
+            throw new IOException("Archive entry is outside of the target "
+                    + "directory: " + name);
+        }
+        return target;
+    }
+
+    private static void copy(final InputStream in, final Path target,
+                             final long size) throws IOException {
+        Files.createDirectories(target.getParent());
+        byte[] block = new byte[ChannelTransfer.BLOCK_SIZE];
+        long left = size;
+        try (OutputStream out = Files.newOutputStream(target)) {
+            while (left > 0) {
+                int n = in.read(block, 0, (int) Math.min(block.length, left));
+                if (n == -1) {
+                    if (size == Long.MAX_VALUE) {
+                        return;
+                    }
+                    throw new EOFException("Truncated entry " + target);
+                }
+                out.write(block, 0, n);
+                left -= n;
+            }
+        }
+    }
+
+    /**
+     * Compressed stream which counts the bytes, applies the bandwidth
+     * limit and copies the bytes to the archive file.
+     */
+    private static final class Metered extends FilterInputStream {
+
+        /**
+         * Archive file, may be null.
+         */
+        private final FileChannel archive;
+
+        /**
+         * Bandwidth limiter of the transfer.
+         */
+        private final RateLimiter limiter;
+
+        /**
+         * Receives the number of read bytes.
+         */
+        private final ChannelTransfer.Listener listener;
+
+        /**
+         * Number of read bytes.
+         */
+        private long count;
+
+        Metered(final InputStream in, final FileChannel archiveValue,
+                final RateLimiter limiterValue,
+                final ChannelTransfer.Listener listenerValue) {
+            super(in);
+            this.archive = archiveValue;
+            this.limiter = limiterValue;
+            this.listener = listenerValue;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & BYTE;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                if (archive != null) {
+                    ChannelTransfer.write(archive, ByteBuffer.wrap(b, off, n),
+                            count);
+                }
+                count += n;
+                limiter.acquire(n);
+                listener.transferred(count);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            byte[] block = new byte[(int) Math.min(n,
+                    ChannelTransfer.BLOCK_SIZE)];
+            int read = read(block, 0, block.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
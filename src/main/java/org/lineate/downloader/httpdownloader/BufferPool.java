@@ -0,0 +1,244 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Pool of reusable transfer buffers with a cap on their total size.
+ * <p>
+ * Buffers come in power of two sizes from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}, a request is rounded up to the next size. A released
+ * buffer stays in the pool for the next request of its size. With a cap,
+ * the buffers in use and in the pool never take more than the cap: when
+ * a request does not fit, idle buffers of other sizes are dropped to make
+ * room, and when there are none the request waits until a buffer is
+ * released. A request bigger than the cap gets the biggest size which
+ * fits. Without a cap, at most {@link #MAX_IDLE_PER_SIZE} idle buffers
+ * of a size stay in the pool, the others are dropped on release. One
+ * pool may be shared by several downloaders to cap their transfer memory
+ * together.
+ * </p>
+ * <p>
+ * Direct buffers live off the heap and save a copy on channel reads and
+ * writes, heap buffers let a stream read straight into their array.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.1
+ */
+
+public final class BufferPool {
+
+    /**
+     * Smallest buffer size.
+     */
+    public static final int MIN_SIZE = 8 * 1024;
+
+    /**
+     * Biggest buffer size.
+     */
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    /**
+     * Idle buffers kept per size when the pool has no cap.
+     */
+    public static final int MAX_IDLE_PER_SIZE = 16;
+
+    /**
+     * Number of the buffer sizes.
+     */
+    private static final int SIZES = Integer.numberOfTrailingZeros(MAX_SIZE)
+            - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+    /**
+     * Idle buffers per size, guarded by this object monitor.
+     */
+    private final List<Deque<ByteBuffer>> idle = new ArrayList<>(SIZES);
+
+    /**
+     * Maximum total size of the buffers, 0 for no limit.
+     */
+    private final long maxBytes;
+
+    /**
+     * Whether the buffers are direct.
+     */
+    private final boolean direct;
+
+    /**
+     * Biggest size a request may get.
+     */
+    private final int largest;
+
+    /**
+     * Total size of the buffers in use and in the pool.
+     */
+    private long allocated;
+
+    /**
+     * Total size of the buffers in the pool.
+     */
+    private long idleBytes;
+
+    /**
+     * Requests which had to wait for a release.
+     */
+    private long waits;
+
+    /**
+     * Creates pool.
+     *
+     * @param maxBytesValue maximum total size of the buffers in bytes, 0
+     *                      for no limit, otherwise at least
+     *                      {@link #MIN_SIZE}
+     * @param directValue whether the buffers are direct
+     */
+    public BufferPool(final long maxBytesValue, final boolean directValue) {
+        if (maxBytesValue < 0
+                || maxBytesValue > 0 && maxBytesValue < MIN_SIZE) {
+            throw new IllegalArgumentException("Buffer memory must be 0 or "
+                    + "at least " + MIN_SIZE + " bytes: " + maxBytesValue);
+        }
+        this.maxBytes = maxBytesValue;
+        this.direct = directValue;
+        this.largest = maxBytesValue == 0 ? MAX_SIZE
+                : (int) Math.min(MAX_SIZE, Long.highestOneBit(maxBytesValue));
+        for (int i = 0; i < SIZES; i++) {
+            idle.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Takes buffer from the pool, waits while the cap is reached.
+     *
+     * @param size wanted size in bytes
+     * @return cleared buffer with the limit at the wanted size, or at the
+     * capacity if the capacity is smaller
+     * @throws InterruptedIOException if the thread is interrupted while
+     *                                waiting
+     */
+    public ByteBuffer acquire(final int size) throws InterruptedIOException {
+        int index = index(Math.min(size, largest));
+        int capacity = MIN_SIZE << index;
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            boolean waited = false;
+            while (buffer == null) {
+                buffer = idle.get(index).pollFirst();
+                if (buffer != null) {
+                    idleBytes -= capacity;
+                } else if (fits(capacity) || drop(capacity)) {
+                    allocated += capacity;
+                    break;
+                } else {
+                    if (!waited) {
+                        waited = true;
+                        waits++;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(
+                                "Interrupted while waiting for a buffer");
+                    }
+                }
+            }
+        }
+        if (buffer == null) {
+            buffer = direct ? ByteBuffer.allocateDirect(capacity)
+                    : ByteBuffer.allocate(capacity);
+        }
+        buffer.clear();
+        buffer.limit(Math.min(Math.max(size, 0), capacity));
+        return buffer;
+    }
+
+    /**
+     * Gives buffer back to the pool. The buffer must not be used after.
+     *
+     * @param buffer buffer taken from this pool
+     */
+    public synchronized void release(final ByteBuffer buffer) {
+        Deque<ByteBuffer> buffers = idle.get(index(buffer.capacity()));
+        if (maxBytes == 0 && buffers.size() >= MAX_IDLE_PER_SIZE) {
+            // nobody waits without a cap, the buffer is left to the gc
+            allocated -= buffer.capacity();
+            return;
+        }
+        buffers.addFirst(buffer);
+        idleBytes += buffer.capacity();
+        notifyAll();
+    }
+
+    /**
+     * Returns maximum total size of the buffers.
+     *
+     * @return bytes, 0 for no limit
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns total size of the buffers in use and in the pool.
+     *
+     * @return bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocated;
+    }
+
+    /**
+     * Returns total size of the buffers in the pool.
+     *
+     * @return bytes
+     */
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    /**
+     * Returns number of the requests which had to wait for a release.
+     *
+     * @return waits
+     */
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    private boolean fits(final int capacity) {
+        return maxBytes == 0 || allocated + capacity <= maxBytes;
+    }
+
+    /**
+     * Drops idle buffers, the biggest first, until the capacity fits.
+     *
+     * @return true if the capacity fits now
+     */
+    private boolean drop(final int capacity) {
+        if (allocated - idleBytes + capacity > maxBytes) {
+            return false;
+        }
+        for (int i = SIZES - 1; i >= 0 && !fits(capacity); i--) {
+            int size = MIN_SIZE << i;
+            while (!fits(capacity) && idle.get(i).pollFirst() != null) {
+                idleBytes -= size;
+                allocated -= size;
+            }
+        }
+        return true;
+    }
+
+    private static int index(final int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        int bits = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+        return bits - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+}
@@ -0,0 +1,179 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * NIO transfer engine for the download tasks.
+ * <p>
+ * Data goes from the response stream into the destination
+ * {@link FileChannel} through a block sized by {@link IoSizing} and taken
+ * from a {@link BufferPool}, every full block is written with one
+ * positional write and there is no buffered output stream on the way.
+ * The segment workers read through a pooled {@link ByteBuffer} of a fixed
+ * size instead.
+ * </p>
+ * <p>
+ * One copy is left between the stream and the file whatever the block.
+ * The stream fills a heap block, the default, without a copy once a read
+ * asks for more than the 8 KB buffer of the JDK http client, but the
+ * channel copies the block into a temporary direct buffer of the JDK on
+ * write. A direct block is written without that copy, but the stream
+ * fills it through the array of the channel adapter.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.3
+ */
+
+final class ChannelTransfer {
+
+    /**
+     * Size of the direct buffer for the buffered path.
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private ChannelTransfer() {
+    }
+
+    /**
+     * Listener for transferred data.
+     */
+    @FunctionalInterface
+    interface Listener {
+
+        /**
+         * Called after every transferred chunk.
+         *
+         * @param total bytes transferred since the start of the transfer
+         * @throws IOException to abort the transfer
+         */
+        void transferred(long total) throws IOException;
+    }
+
+    /**
+     * Copies the stream to the file until the end of the stream.
+     *
+     * @param inputStream source stream
+     * @param target destination channel
+     * @param position file offset to write from
+     * @param limiter bandwidth limiter of the transfer
+     * @param sizing read and flush sizes of the transfer
+     * @param buffers pool of the blocks
+     * @param listener receives the number of written bytes after every
+     *                 write
+     * @return number of transferred bytes
+     * @throws IOException on read or write error
+     */
+    static long transfer(final InputStream inputStream,
+                         final FileChannel target,
+                         final long position,
+                         final RateLimiter limiter,
+                         final IoSizing sizing,
+                         final BufferPool buffers,
+                         final Listener listener) throws IOException {
+        // a stream reads into an array without a copy, into a direct
+        // buffer through the 8 KB blocks of the channel adapter
+        ReadableByteChannel source = Channels.newChannel(inputStream);
+        int size = sizing.flushSize();
+        ByteBuffer block = buffers.acquire(size);
+        try {
+            long total = 0;
+            int bytesRead;
+            do {
+                int requested = (int) limiter.chunk(
+                        Math.min(sizing.readSize(), block.remaining()));
+                bytesRead = read(inputStream, source, block, requested);
+                if (bytesRead > 0) {
+                    limiter.acquire(bytesRead);
+                    sizing.read(requested, bytesRead);
+                }
+                int filled = block.position();
+                if (!block.hasRemaining()
+                        || filled > 0 && (bytesRead < 0 || sizing.due())) {
+                    int limit = block.limit();
+                    block.flip();
+                    total += write(target, block, position + total);
+                    sizing.flushed(filled);
+                    listener.transferred(total);
+                    if (size != sizing.flushSize()) {
+                        size = sizing.flushSize();
+                        buffers.release(block);
+                        // not released twice if the wait is interrupted
+                        block = null;
+                        block = buffers.acquire(size);
+                    } else {
+                        block.clear();
+                        block.limit(limit);
+                    }
+                }
+            } while (bytesRead >= 0);
+            return total;
+        } finally {
+            if (block != null) {
+                buffers.release(block);
+            }
+        }
+    }
+
+    private static int read(final InputStream inputStream,
+                            final ReadableByteChannel source,
+                            final ByteBuffer block,
+                            final int requested) throws IOException {
+        if (block.hasArray()) {
+            int bytesRead = inputStream.read(block.array(),
+                    block.arrayOffset() + block.position(), requested);
+            if (bytesRead > 0) {
+                block.position(block.position() + bytesRead);
+            }
+            return bytesRead;
+        }
+        int limit = block.limit();
+        block.limit(block.position() + requested);
+        try {
+            return source.read(block);
+        } finally {
+            block.limit(limit);
+        }
+    }
+
+    /**
+     * Reads next block of the stream into the buffer.
+     *
+     * @param source source channel
+     * @param buffer cleared buffer, flipped for reading on return
+     * @return false at the end of the stream
+     * @throws IOException on read error
+     */
+    static boolean read(final ReadableByteChannel source,
+                        final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int bytesRead = source.read(buffer);
+        buffer.flip();
+        return bytesRead != -1;
+    }
+
+    /**
+     * Writes the whole buffer to the file.
+     *
+     * @param target destination channel
+     * @param buffer data to write
+     * @param position file offset to write at
+     * @return number of written bytes
+     * @throws IOException on write error
+     */
+    static int write(final FileChannel target,
+                     final ByteBuffer buffer,
+                     final long position) throws IOException {
+        int length = buffer.remaining();
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += target.write(buffer, offset);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,360 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Sidecar checkpoint of the partially downloaded file.
+ * <p>
+ * Checkpoint is stored next to the destination file with the
+ * {@link Checkpoint#SUFFIX} suffix and keeps the validator of the remote
+ * content (ETag or Last-Modified), total size and the byte ranges which
+ * are already committed to the destination. Next download of the same
+ * file continues with Range/If-Range request for the missing bytes.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+final class Checkpoint {
+
+    /**
+     * Checkpoint file name suffix.
+     */
+    static final String SUFFIX = ".checkpoint";
+
+    /**
+     * Committed bytes between two checkpoint saves.
+     */
+    static final long INTERVAL = 8 * 1024 * 1024;
+
+    /**
+     * Http status code for partial content responses.
+     */
+    private static final int PARTIAL_CONTENT = 206;
+
+    /**
+     * Property name for source url.
+     */
+    private static final String SOURCE = "source";
+
+    /**
+     * Property name for ETag validator.
+     */
+    private static final String ETAG = "etag";
+
+    /**
+     * Property name for Last-Modified validator.
+     */
+    private static final String LAST_MODIFIED = "lastModified";
+
+    /**
+     * Property name for total size.
+     */
+    private static final String SIZE = "size";
+
+    /**
+     * Property name for committed ranges.
+     */
+    private static final String RANGES = "ranges";
+
+    /**
+     * Checkpoint file.
+     */
+    private final File file;
+
+    /**
+     * Source url.
+     */
+    private final String source;
+
+    /**
+     * ETag of the remote content, may be null.
+     */
+    private final String etag;
+
+    /**
+     * Last-Modified of the remote content, may be null.
+     */
+    private final String lastModified;
+
+    /**
+     * Total size of the remote content, -1 if unknown.
+     */
+    private final long size;
+
+    /**
+     * Sorted non-overlapping committed ranges [start, end).
+     */
+    private final List<long[]> committed = new ArrayList<>();
+
+    private Checkpoint(final File fileValue,
+                       final String sourceValue,
+                       final String etagValue,
+                       final String lastModifiedValue,
+                       final long sizeValue) {
+        this.file = fileValue;
+        this.source = sourceValue;
+        this.etag = etagValue;
+        this.lastModified = lastModifiedValue;
+        this.size = sizeValue;
+    }
+
+    /**
+     * Loads checkpoint of the destination file.
+     *
+     * @param destination destination file
+     * @param source source url
+     * @return checkpoint or null if there is nothing to resume
+     */
+    static Checkpoint load(final File destination, final URL source) {
+        File file = new File(destination.getPath() + SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        if (!destination.isFile()) {
+            file.delete();
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            properties.load(stream);
+
+            if (!source.toString().equals(properties.getProperty(SOURCE))) {
+                return null;
+            }
+            Checkpoint checkpoint = new Checkpoint(file,
+                    source.toString(),
+                    properties.getProperty(ETAG),
+                    properties.getProperty(LAST_MODIFIED),
+                    Long.parseLong(properties.getProperty(SIZE, "-1")));
+
+            long length = destination.length();
+            String ranges = properties.getProperty(RANGES, "");
+            for (String range : ranges.split(",")) {
+                if (!range.isEmpty()) {
+                    String[] bounds = range.split("-");
+                    checkpoint.commit(Long.parseLong(bounds[0]),
+                            Math.min(length, Long.parseLong(bounds[1])));
+                }
+            }
+            return checkpoint.committed() > 0 ? checkpoint : null;
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates empty checkpoint for the response.
+     *
+     * @param destination destination file
+     * @param source source url
+     * @param response opened connection to the source
+     * @return checkpoint or null if the response has no validator
+     */
+    static Checkpoint create(final File destination,
+                             final URL source,
+                             final URLConnection response) {
+        String etag = response.getHeaderField("ETag");
+        String lastModified = response.getHeaderField("Last-Modified");
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+        return new Checkpoint(new File(destination.getPath() + SUFFIX),
+                source.toString(),
+                etag,
+                lastModified,
+                response.getContentLengthLong());
+    }
+
+    /**
+     * Sets Range and If-Range headers for the missing part of the file.
+     *
+     * @param request not yet connected request
+     */
+    void request(final URLConnection request) {
+        request.setRequestProperty("Range", "bytes=" + prefix() + "-");
+        request.setRequestProperty("If-Range", validator());
+    }
+
+    /**
+     * Checks if the server continues the file from the requested offset.
+     * Any other answer means the remote content has changed.
+     *
+     * @param response connection opened with {@link #request}
+     * @return true if the partial content is returned
+     * @throws IOException on connection error
+     */
+    boolean resumed(final URLConnection response) throws IOException {
+        if (!(response instanceof HttpURLConnection)
+                || ((HttpURLConnection) response).getResponseCode()
+                != PARTIAL_CONTENT) {
+            return false;
+        }
+        String range = response.getHeaderField("Content-Range");
+        return range != null
+                && range.startsWith("bytes " + prefix() + "-")
+                && range.endsWith("/" + size);
+    }
+
+    /**
+     * Returns validator for If-Range header.
+     *
+     * @return ETag, or Last-Modified if there is no ETag
+     */
+    String validator() {
+        return etag != null ? etag : lastModified;
+    }
+
+    /**
+     * Returns total size of the remote content.
+     *
+     * @return size in bytes, -1 if unknown
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Returns length of the committed part from the file beginning.
+     *
+     * @return size in bytes
+     */
+    synchronized long prefix() {
+        if (committed.isEmpty() || committed.get(0)[0] != 0) {
+            return 0;
+        }
+        return committed.get(0)[1];
+    }
+
+    /**
+     * Returns total committed bytes.
+     *
+     * @return size in bytes
+     */
+    synchronized long committed() {
+        long total = 0;
+        for (long[] range : committed) {
+            total += range[1] - range[0];
+        }
+        return total;
+    }
+
+    /**
+     * Returns ranges which are not yet committed.
+     *
+     * @return sorted list of [start, end) ranges
+     */
+    synchronized List<long[]> missing() {
+        if (size < 0) {
+            return Collections.emptyList();
+        }
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (long[] range : committed) {
+            if (range[0] > position) {
+                missing.add(new long[]{position, range[0]});
+            }
+            position = range[1];
+        }
+        if (position < size) {
+            missing.add(new long[]{position, size});
+        }
+        return missing;
+    }
+
+    /**
+     * Marks range as written to the destination file.
+     *
+     * @param start first byte of the range
+     * @param end end of the range, exclusive
+     */
+    synchronized void commit(final long start, final long end) {
+        if (end <= start) {
+            return;
+        }
+        long from = start;
+        long to = end;
+        List<long[]> merged = new ArrayList<>();
+        int index = 0;
+        for (long[] range : committed) {
+            if (range[1] < from) {
+                merged.add(range);
+                index++;
+            } else if (range[0] > to) {
+                merged.add(range);
+            } else {
+                from = Math.min(from, range[0]);
+                to = Math.max(to, range[1]);
+            }
+        }
+        merged.add(index, new long[]{from, to});
+        committed.clear();
+        committed.addAll(merged);
+    }
+
+    /**
+     * Forgets all committed ranges after the offset.
+     *
+     * @param offset new end of the committed part
+     */
+    synchronized void truncate(final long offset) {
+        committed.clear();
+        commit(0, offset);
+    }
+
+    /**
+     * Stores checkpoint next to the destination file.
+     *
+     * @throws IOException on write error
+     */
+    synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(SOURCE, source);
+        if (etag != null) {
+            properties.setProperty(ETAG, etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty(LAST_MODIFIED, lastModified);
+        }
+        properties.setProperty(SIZE, Long.toString(size));
+
+        StringBuilder ranges = new StringBuilder();
+        for (long[] range : committed) {
+            if (ranges.length() > 0) {
+                ranges.append(',');
+            }
+            ranges.append(range[0]).append('-').append(range[1]);
+        }
+        properties.setProperty(RANGES, ranges.toString());
+
+        Path temporary = new File(file.getPath() + ".tmp").toPath();
+        try (OutputStream stream = Files.newOutputStream(temporary)) {
+            properties.store(stream, "Download checkpoint");
+        }
+        Files.move(temporary, file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes checkpoint file.
+     */
+    void delete() {
+        file.delete();
+    }
+}
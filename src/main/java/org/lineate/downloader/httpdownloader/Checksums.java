@@ -0,0 +1,77 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+
+/**
+ * Helpers for the download checksums.
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+final class Checksums {
+
+    /**
+     * Hex digits.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Mask of a hex digit.
+     */
+    private static final int DIGIT = 0x0f;
+
+    /**
+     * Bits in a hex digit.
+     */
+    private static final int DIGIT_BITS = 4;
+
+    private Checksums() {
+    }
+
+    /**
+     * Formats digest as lower case hex string.
+     *
+     * @param digest digest bytes
+     * @return hex string
+     */
+    static String hex(final byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[2 * i] = HEX[(digest[i] >> DIGIT_BITS) & DIGIT];
+            chars[2 * i + 1] = HEX[digest[i] & DIGIT];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Updates digest with the beginning of the file, e.g. with the part
+     * downloaded before a resume.
+     *
+     * @param digest digest to update
+     * @param file source file
+     * @param length number of bytes to read
+     * @throws IOException on read error or if the file is shorter
+     */
+    static void update(final MessageDigest digest, final File file,
+                       final long length) throws IOException {
+        byte[] block = new byte[ChannelTransfer.BLOCK_SIZE];
+        long left = length;
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            while (left > 0) {
+                int read = in.read(block, 0,
+                        (int) Math.min(block.length, left));
+                if (read == -1) {
+                    throw new IOException("File " + file
+                            + " is shorter than " + length + " bytes");
+                }
+                digest.update(block, 0, read);
+                left -= read;
+            }
+        }
+    }
+}
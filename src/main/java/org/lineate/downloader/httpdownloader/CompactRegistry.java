@@ -0,0 +1,730 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import org.lineate.downloader.progressbar.DownloadProgress;
+import org.lineate.downloader.progressbar.DownloadStatus;
+import org.lineate.downloader.progressbar.ProgressDispatcher;
+import org.lineate.downloader.progressbar.Progressbar;
+
+/**
+ * Task registry for millions of tasks.
+ * <p>
+ * Tasks are slots of parallel primitive arrays: the two halves of the id,
+ * status, flags, size, downloaded bytes and the handles of the source
+ * and destination strings. An open addressing table of slot numbers finds
+ * the slot of an id. Strings are kept as UTF-8 in a byte arena, the part
+ * up to the last slash is interned, so the files of the same directory
+ * share it. Options other than the source and the destination are rare
+ * and kept as {@link DownloadData} per slot.
+ * </p>
+ * <p>
+ * Progress records and limiters are created only for the acquired tasks
+ * and are folded back into the slot when the task is released. An idle
+ * task costs about 60 bytes besides the unique part of its names, against
+ * about 400 bytes of objects in the map registry.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+final class CompactRegistry implements TaskRegistry {
+
+    /**
+     * Initial number of slots.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * State of a free slot, other states are status ordinal plus one.
+     */
+    private static final byte FREE = 0;
+
+    /**
+     * Flag of a pending task.
+     */
+    private static final byte PENDING = 1;
+
+    /**
+     * Statuses by ordinal.
+     */
+    private static final DownloadStatus[] STATUSES = DownloadStatus.values();
+
+    /**
+     * Garbage in the string arena which never triggers its compaction.
+     */
+    private static final int MIN_GARBAGE = 64 * 1024;
+
+    /**
+     * Dispatcher for the progress events.
+     */
+    private final ProgressDispatcher dispatcher;
+
+    /**
+     * Global bandwidth limiter, parent of the task limiters.
+     */
+    private final RateLimiter parent;
+
+    /**
+     * Most significant halves of the ids.
+     */
+    private long[] idHigh;
+
+    /**
+     * Least significant halves of the ids.
+     */
+    private long[] idLow;
+
+    /**
+     * Slot states.
+     */
+    private byte[] states;
+
+    /**
+     * Slot flags.
+     */
+    private byte[] flags;
+
+    /**
+     * File sizes.
+     */
+    private long[] sizes;
+
+    /**
+     * Downloaded bytes.
+     */
+    private long[] downloaded;
+
+    /**
+     * Source url handles.
+     */
+    private int[] sources;
+
+    /**
+     * Destination file handles.
+     */
+    private int[] destinations;
+
+    /**
+     * Number of slots ever used.
+     */
+    private int used;
+
+    /**
+     * Free slots below {@link #used}.
+     */
+    private int[] free;
+
+    /**
+     * Number of free slots.
+     */
+    private int freeCount;
+
+    /**
+     * Number of known tasks.
+     */
+    private int count;
+
+    /**
+     * Number of pending tasks.
+     */
+    private int pendingCount;
+
+    /**
+     * Slot numbers plus one by id hash, 0 for an empty entry.
+     */
+    private int[] table;
+
+    /**
+     * Strings of the slots.
+     */
+    private StringArena strings;
+
+    /**
+     * Options of the slots which have more than the source and the
+     * destination.
+     */
+    private final Map<Integer, DownloadData> options = new HashMap<>();
+
+    /**
+     * Records of the acquired tasks.
+     */
+    private final Map<UUID, Active> active = new HashMap<>();
+
+    /**
+     * Creates registry.
+     *
+     * @param dispatcherValue dispatcher for the progress events
+     * @param parentValue global bandwidth limiter
+     */
+    CompactRegistry(final ProgressDispatcher dispatcherValue,
+                    final RateLimiter parentValue) {
+        this.dispatcher = dispatcherValue;
+        this.parent = parentValue;
+        reset();
+    }
+
+    @Override
+    public synchronized void add(final UUID id, final DownloadData data) {
+        remove(id);
+        int slot = allocate();
+        idHigh[slot] = id.getMostSignificantBits();
+        idLow[slot] = id.getLeastSignificantBits();
+        states[slot] = state(DownloadStatus.NOT_STARTED);
+        flags[slot] = PENDING;
+        sizes[slot] = 0;
+        downloaded[slot] = 0;
+        sources[slot] = strings.add(data.getSourceUri());
+        destinations[slot] = strings.add(data.getLocalFile());
+        if (!data.equals(new DownloadData(data.getSourceUri(),
+                data.getLocalFile()))) {
+            options.put(slot, data);
+        }
+        index(slot);
+        count++;
+        pendingCount++;
+    }
+
+    @Override
+    public synchronized void restore(final UUID id, final Progressbar state) {
+        int slot = find(id);
+        if (slot >= 0) {
+            states[slot] = state(state.getStatus());
+            sizes[slot] = state.getSize();
+            downloaded[slot] = state.getDownloaded();
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(final UUID id) {
+        int slot = find(id);
+        if (slot < 0) {
+            return false;
+        }
+        unindex(slot);
+        dropData(slot);
+        states[slot] = FREE;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, Math.max(2 * freeCount,
+                    INITIAL_CAPACITY));
+        }
+        free[freeCount++] = slot;
+        count--;
+        active.remove(id);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean contains(final UUID id) {
+        return find(id) >= 0;
+    }
+
+    @Override
+    public synchronized DownloadData pending(final UUID id) {
+        int slot = find(id);
+        return slot < 0 || (flags[slot] & PENDING) == 0 ? null : data(slot);
+    }
+
+    @Override
+    public synchronized void finished(final UUID id) {
+        int slot = find(id);
+        if (slot >= 0 && (flags[slot] & PENDING) != 0) {
+            dropData(slot);
+        }
+    }
+
+    @Override
+    public synchronized int pendingCount() {
+        return pendingCount;
+    }
+
+    @Override
+    public void forEachPending(final BiConsumer<UUID, DownloadData> action) {
+        List<Map.Entry<UUID, DownloadData>> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<>(pendingCount);
+            for (int slot = 0; slot < used; slot++) {
+                if (states[slot] != FREE && (flags[slot] & PENDING) != 0) {
+                    tasks.add(new AbstractMap.SimpleImmutableEntry<>(
+                            id(slot), data(slot)));
+                }
+            }
+        }
+        // the action may call back the registry
+        for (Map.Entry<UUID, DownloadData> task : tasks) {
+            action.accept(task.getKey(), task.getValue());
+        }
+    }
+
+    @Override
+    public synchronized Progressbar snapshot(final UUID id) {
+        Active record = active.get(id);
+        if (record != null) {
+            return record.progress.snapshot();
+        }
+        int slot = find(id);
+        return slot < 0 ? null : progressbar(slot);
+    }
+
+    @Override
+    public synchronized DownloadProgress acquire(final UUID id) {
+        Active record = active.get(id);
+        if (record == null) {
+            int slot = find(id);
+            if (slot < 0) {
+                return null;
+            }
+            DownloadData data = options.get(slot);
+            record = new Active(
+                    new DownloadProgress(id, dispatcher, progressbar(slot)),
+                    new RateLimiter(data == null ? 0 : data.getRateLimit(),
+                            parent));
+            active.put(id, record);
+        }
+        record.users++;
+        return record.progress;
+    }
+
+    @Override
+    public synchronized RateLimiter limiter(final UUID id) {
+        Active record = active.get(id);
+        return record == null ? null : record.limiter;
+    }
+
+    @Override
+    public synchronized void release(final UUID id) {
+        Active record = active.get(id);
+        if (record == null || --record.users > 0) {
+            return;
+        }
+        active.remove(id);
+        int slot = find(id);
+        if (slot >= 0) {
+            DownloadProgress progress = record.progress;
+            states[slot] = state(progress.getStatus());
+            sizes[slot] = progress.getSize();
+            downloaded[slot] = progress.getDownloaded();
+        }
+    }
+
+    @Override
+    public synchronized boolean setRateLimit(final UUID id,
+                                             final long bytesPerSecond) {
+        int slot = find(id);
+        if (slot < 0) {
+            return false;
+        }
+        Active record = active.get(id);
+        if (record != null) {
+            record.limiter.setRate(bytesPerSecond);
+        }
+        if ((flags[slot] & PENDING) != 0) {
+            DownloadData data = data(slot).withRateLimit(bytesPerSecond);
+            options.put(slot, data);
+        }
+        return true;
+    }
+
+    @Override
+    public Set<UUID> ids() {
+        return new Ids();
+    }
+
+    @Override
+    public synchronized void clear() {
+        reset();
+        options.clear();
+        active.clear();
+    }
+
+    private void reset() {
+        idHigh = new long[INITIAL_CAPACITY];
+        idLow = new long[INITIAL_CAPACITY];
+        states = new byte[INITIAL_CAPACITY];
+        flags = new byte[INITIAL_CAPACITY];
+        sizes = new long[INITIAL_CAPACITY];
+        downloaded = new long[INITIAL_CAPACITY];
+        sources = new int[INITIAL_CAPACITY];
+        destinations = new int[INITIAL_CAPACITY];
+        free = new int[0];
+        table = new int[2 * INITIAL_CAPACITY];
+        strings = new StringArena();
+        used = 0;
+        freeCount = 0;
+        count = 0;
+        pendingCount = 0;
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        if (used == idHigh.length) {
+            int capacity = 2 * used;
+            idHigh = Arrays.copyOf(idHigh, capacity);
+            idLow = Arrays.copyOf(idLow, capacity);
+            states = Arrays.copyOf(states, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            downloaded = Arrays.copyOf(downloaded, capacity);
+            sources = Arrays.copyOf(sources, capacity);
+            destinations = Arrays.copyOf(destinations, capacity);
+        }
+        return used++;
+    }
+
+    /**
+     * Drops strings and options of a task which is no longer pending.
+     */
+    private void dropData(final int slot) {
+        if ((flags[slot] & PENDING) == 0) {
+            return;
+        }
+        flags[slot] &= ~PENDING;
+        pendingCount--;
+        strings.release(sources[slot]);
+        strings.release(destinations[slot]);
+        sources[slot] = StringArena.NONE;
+        destinations[slot] = StringArena.NONE;
+        options.remove(slot);
+        if (strings.garbage > MIN_GARBAGE
+                && strings.garbage > strings.length / 2) {
+            compactStrings();
+        }
+    }
+
+    private void compactStrings() {
+        StringArena compacted = new StringArena();
+        for (int slot = 0; slot < used; slot++) {
+            if (states[slot] != FREE && (flags[slot] & PENDING) != 0) {
+                sources[slot] = compacted.add(strings.get(sources[slot]));
+                destinations[slot] =
+                        compacted.add(strings.get(destinations[slot]));
+            }
+        }
+        strings = compacted;
+    }
+
+    private DownloadData data(final int slot) {
+        DownloadData data = options.get(slot);
+        return data != null ? data : new DownloadData(
+                strings.get(sources[slot]), strings.get(destinations[slot]));
+    }
+
+    private Progressbar progressbar(final int slot) {
+        return new Progressbar(sizes[slot], downloaded[slot],
+                STATUSES[states[slot] - 1]);
+    }
+
+    private UUID id(final int slot) {
+        return new UUID(idHigh[slot], idLow[slot]);
+    }
+
+    private static byte state(final DownloadStatus status) {
+        return (byte) (status.ordinal() + 1);
+    }
+
+    private static int hash(final long high, final long low) {
+        long h = high ^ low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private int find(final UUID id) {
+        long high = id.getMostSignificantBits();
+        long low = id.getLeastSignificantBits();
+        int mask = table.length - 1;
+        for (int i = hash(high, low) & mask;; i = (i + 1) & mask) {
+            int entry = table[i];
+            if (entry == 0) {
+                return -1;
+            }
+            if (idHigh[entry - 1] == high && idLow[entry - 1] == low) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private void index(final int slot) {
+        if (2 * (count + 1) > table.length) {
+            int[] grown = new int[2 * table.length];
+            for (int entry : table) {
+                if (entry != 0) {
+                    place(grown, entry - 1);
+                }
+            }
+            table = grown;
+        }
+        place(table, slot);
+    }
+
+    private void place(final int[] target, final int slot) {
+        int mask = target.length - 1;
+        int i = hash(idHigh[slot], idLow[slot]) & mask;
+        while (target[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        target[i] = slot + 1;
+    }
+
+    /**
+     * Removes the slot from the table, the following entries of the probe
+     * sequence are shifted back to keep them reachable.
+     */
+    private void unindex(final int slot) {
+        int mask = table.length - 1;
+        int gap = hash(idHigh[slot], idLow[slot]) & mask;
+        while (table[gap] != slot + 1) {
+            gap = (gap + 1) & mask;
+        }
+        table[gap] = 0;
+        for (int i = (gap + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int entry = table[i] - 1;
+            int home = hash(idHigh[entry], idLow[entry]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                table[gap] = table[i];
+                table[i] = 0;
+                gap = i;
+            }
+        }
+    }
+
+    /**
+     * Progress record and limiter of an acquired task.
+     */
+    private static final class Active {
+
+        /**
+         * Live progress record.
+         */
+        private final DownloadProgress progress;
+
+        /**
+         * Bandwidth limiter of the task.
+         */
+        private final RateLimiter limiter;
+
+        /**
+         * Number of tasks which hold the record.
+         */
+        private int users;
+
+        Active(final DownloadProgress progressValue,
+               final RateLimiter limiterValue) {
+            this.progress = progressValue;
+            this.limiter = limiterValue;
+        }
+    }
+
+    /**
+     * Live view of the known ids.
+     */
+    private final class Ids extends AbstractSet<UUID> {
+
+        @Override
+        public int size() {
+            synchronized (CompactRegistry.this) {
+                return count;
+            }
+        }
+
+        @Override
+        public boolean contains(final Object value) {
+            return value instanceof UUID
+                    && CompactRegistry.this.contains((UUID) value);
+        }
+
+        @Override
+        public Iterator<UUID> iterator() {
+            return new Iterator<UUID>() {
+
+                private int cursor = -1;
+
+                private UUID next = advance();
+
+                private UUID last;
+
+                private UUID advance() {
+                    synchronized (CompactRegistry.this) {
+                        while (++cursor < used) {
+                            if (states[cursor] != FREE) {
+                                return id(cursor);
+                            }
+                        }
+                        return null;
+                    }
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public UUID next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    last = next;
+                    next = advance();
+                    return last;
+                }
+
+                @Override
+                public void remove() {
+                    if (last == null) {
+                        throw new IllegalStateException();
+                    }
+                    CompactRegistry.this.remove(last);
+                    last = null;
+                }
+            };
+        }
+    }
+
+    /**
+     * Append-only UTF-8 storage of the strings. An entry is the varint
+     * number of the interned prefix, the varint length of the rest and
+     * the bytes of the rest, the handle of an entry is its offset.
+     */
+    private static final class StringArena {
+
+        /**
+         * Handle of a null string.
+         */
+        static final int NONE = -1;
+
+        /**
+         * Initial arena size.
+         */
+        private static final int INITIAL_SIZE = 4096;
+
+        /**
+         * Payload bits of a varint byte.
+         */
+        private static final int SEVEN_BITS = 0x7f;
+
+        /**
+         * Continuation bit of a varint byte.
+         */
+        private static final int MORE = 0x80;
+
+        /**
+         * Bits in a varint byte.
+         */
+        private static final int VARINT_SHIFT = 7;
+
+        /**
+         * Maximum bytes of two varints.
+         */
+        private static final int MAX_HEADER = 10;
+
+        /**
+         * Numbers of the interned prefixes.
+         */
+        private final Map<String, Integer> prefixIds = new HashMap<>();
+
+        /**
+         * Interned prefixes by number.
+         */
+        private final List<String> prefixes = new ArrayList<>();
+
+        /**
+         * Arena bytes.
+         */
+        private byte[] bytes = new byte[INITIAL_SIZE];
+
+        /**
+         * Used bytes.
+         */
+        private int length;
+
+        /**
+         * Bytes of the released entries.
+         */
+        private int garbage;
+
+        int add(final String value) {
+            if (value == null) {
+                return NONE;
+            }
+            int cut = value.lastIndexOf('/') + 1;
+            String prefix = value.substring(0, cut);
+            Integer prefixId = prefixIds.get(prefix);
+            if (prefixId == null) {
+                prefixId = prefixes.size();
+                prefixes.add(prefix);
+                prefixIds.put(prefix, prefixId);
+            }
+            byte[] rest = value.substring(cut)
+                    .getBytes(StandardCharsets.UTF_8);
+            if (length + MAX_HEADER + rest.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length,
+                        length + MAX_HEADER + rest.length));
+            }
+            int handle = length;
+            writeVarint(prefixId);
+            writeVarint(rest.length);
+            System.arraycopy(rest, 0, bytes, length, rest.length);
+            length += rest.length;
+            return handle;
+        }
+
+        String get(final int handle) {
+            if (handle == NONE) {
+                return null;
+            }
+            int[] position = {handle};
+            String prefix = prefixes.get(readVarint(position));
+            int size = readVarint(position);
+            return prefix.concat(new String(bytes, position[0], size,
+                    StandardCharsets.UTF_8));
+        }
+
+        void release(final int handle) {
+            if (handle == NONE) {
+                return;
+            }
+            int[] position = {handle};
+            readVarint(position);
+            int size = readVarint(position);
+            garbage += position[0] + size - handle;
+        }
+
+        private void writeVarint(final int value) {
+            int rest = value;
+            while ((rest & ~SEVEN_BITS) != 0) {
+                bytes[length++] = (byte) ((rest & SEVEN_BITS) | MORE);
+                rest >>>= VARINT_SHIFT;
+            }
+            bytes[length++] = (byte) rest;
+        }
+
+        private int readVarint(final int[] position) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position[0]++];
+                value |= (b & SEVEN_BITS) << shift;
+                shift += VARINT_SHIFT;
+            } while ((b & MORE) != 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Connection manager shared by the tasks of a downloader instance.
+ * <p>
+ * Sockets are kept alive by the JDK http client, which returns a
+ * connection to its keep-alive cache when the response body is read to
+ * the end and closed. The manager opens all connections with the same
+ * timeouts and the same {@link SSLSocketFactory}, so cached sockets and
+ * TLS sessions match the next request to the host.
+ * </p>
+ * <p>
+ * The JDK does not tell whether a request has reused a socket, and its
+ * cache is set only globally. The manager mirrors the cache instead: it
+ * accounts released connections per host:port with the limits of the
+ * JDK and counts a request as warm when an idle connection to its host
+ * should be in the cache. The JDK reuses it unless the server has closed
+ * it, so the warm rate is an upper bound of the reuse.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.2
+ */
+
+final class ConnectionManager {
+
+    /**
+     * Time in milliseconds the JDK keeps an idle connection when the
+     * server does not send its own keep-alive timeout.
+     */
+    private static final long KEEP_ALIVE_TIME = 5000;
+
+    /**
+     * Idle connections per host the JDK keeps by default.
+     */
+    private static final int IDLE_PER_HOST_BY_DEFAULT = 5;
+
+    /**
+     * Idle connections per host the JDK keeps, set by the
+     * http.maxConnections system property.
+     */
+    private static final int IDLE_PER_HOST = idlePerHost();
+
+    /**
+     * TLS sessions in the cache.
+     */
+    private static final int SESSION_CACHE_SIZE = 256;
+
+    /**
+     * Lifetime of a cached TLS session in seconds.
+     */
+    private static final int SESSION_TIMEOUT = 3600;
+
+    /**
+     * Connect timeout in milliseconds, 0 for no timeout.
+     */
+    private final int connectTimeout;
+
+    /**
+     * Read timeout in milliseconds, 0 for no timeout.
+     */
+    private final int readTimeout;
+
+    /**
+     * Time the JDK keeps an idle connection in nanoseconds.
+     */
+    private final long keepAliveTime;
+
+    /**
+     * Socket factory with the shared TLS session cache, null if TLS is
+     * not available.
+     */
+    private final SSLSocketFactory sslSocketFactory;
+
+    /**
+     * Release times of idle connections per host:port, the latest first.
+     */
+    private final Map<String, Deque<Long>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * Requests sent while an idle connection to the host was cached.
+     */
+    private final AtomicLong warm = new AtomicLong();
+
+    /**
+     * Requests sent without an idle connection to the host.
+     */
+    private final AtomicLong cold = new AtomicLong();
+
+    /**
+     * Creates manager without timeouts.
+     */
+    ConnectionManager() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates manager.
+     *
+     * @param connectTimeoutValue connect timeout in milliseconds
+     * @param readTimeoutValue read timeout in milliseconds
+     */
+    ConnectionManager(final int connectTimeoutValue,
+                      final int readTimeoutValue) {
+        this(connectTimeoutValue, readTimeoutValue, KEEP_ALIVE_TIME);
+    }
+
+    /**
+     * Creates manager which expects the JDK to keep idle connections for
+     * the given time.
+     *
+     * @param connectTimeoutValue connect timeout in milliseconds
+     * @param readTimeoutValue read timeout in milliseconds
+     * @param keepAliveTimeValue time the JDK keeps an idle connection in
+     *                           milliseconds
+     */
+    ConnectionManager(final int connectTimeoutValue,
+                      final int readTimeoutValue,
+                      final long keepAliveTimeValue) {
+        this.connectTimeout = connectTimeoutValue;
+        this.readTimeout = readTimeoutValue;
+        this.keepAliveTime =
+                TimeUnit.MILLISECONDS.toNanos(keepAliveTimeValue);
+        this.sslSocketFactory = sslSocketFactory();
+    }
+
+    /**
+     * Opens connection to the url, the JDK reuses an idle connection to
+     * the same host if it has one.
+     *
+     * @param url source url
+     * @return configured connection, not connected yet
+     * @throws IOException if the connection can not be created
+     */
+    URLConnection open(final URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        if (connection instanceof HttpsURLConnection
+                && sslSocketFactory != null) {
+            ((HttpsURLConnection) connection)
+                    .setSSLSocketFactory(sslSocketFactory);
+        }
+        if (connection instanceof HttpURLConnection) {
+            if (takeIdle(key(url))) {
+                warm.incrementAndGet();
+            } else {
+                cold.incrementAndGet();
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Marks connection as idle. Must be called after the response body
+     * is read to the end and closed, only then the socket is kept alive.
+     *
+     * @param connection finished connection
+     */
+    void release(final URLConnection connection) {
+        if (!(connection instanceof HttpURLConnection)) {
+            return;
+        }
+        Deque<Long> times = idle.computeIfAbsent(key(connection.getURL()),
+                (host) -> new ArrayDeque<>());
+        synchronized (times) {
+            if (times.size() >= IDLE_PER_HOST) {
+                times.removeLast();
+            }
+            times.addFirst(System.nanoTime());
+        }
+    }
+
+    /**
+     * Marks connection as idle if its response body is read to the end,
+     * only a fully read response leaves the socket alive.
+     *
+     * @param connection finished connection
+     * @param received bytes read from the response body
+     */
+    void release(final URLConnection connection, final long received) {
+        if (received == connection.getContentLengthLong()) {
+            release(connection);
+        }
+    }
+
+    /**
+     * Drops connection after a failed response. The error body is read
+     * to the end, so the socket can still be kept alive.
+     *
+     * @param connection failed connection
+     */
+    void discard(final URLConnection connection) {
+        if (!(connection instanceof HttpURLConnection)) {
+            return;
+        }
+        try (InputStream error =
+                     ((HttpURLConnection) connection).getErrorStream()) {
+            if (error != null) {
+                byte[] skip = new byte[ChannelTransfer.BLOCK_SIZE];
+                while (error.read(skip) != -1) {
+                    continue;
+                }
+                release(connection);
+            }
+        } catch (IOException ex) {
+            // the socket is closed by the client
+        }
+    }
+
+    /**
+     * Returns number of requests sent while an idle connection to the
+     * host was cached.
+     *
+     * @return warm requests
+     */
+    long getWarm() {
+        return warm.get();
+    }
+
+    /**
+     * Returns number of requests sent without an idle connection to the
+     * host, they open a new connection.
+     *
+     * @return cold requests
+     */
+    long getCold() {
+        return cold.get();
+    }
+
+    /**
+     * Returns share of the warm requests, an upper bound of the share
+     * which reused a connection.
+     *
+     * @return warm rate from 0 to 1, 0 if there were no requests
+     */
+    double getWarmRate() {
+        long count = warm.get();
+        long total = count + cold.get();
+        return total == 0 ? 0 : (double) count / total;
+    }
+
+    private boolean takeIdle(final String host) {
+        Deque<Long> times = idle.get(host);
+        if (times == null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        synchronized (times) {
+            Long released;
+            while ((released = times.pollFirst()) != null) {
+                if (now - released <= keepAliveTime) {
+                    return true;
+                }
+                // the rest is even older
+                times.clear();
+            }
+        }
+        return false;
+    }
+
+    private static int idlePerHost() {
+        int value = Integer.getInteger("http.maxConnections", 0);
+        return value > 0 ? value : IDLE_PER_HOST_BY_DEFAULT;
+    }
+
+    private static String key(final URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    private static SSLSocketFactory sslSocketFactory() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+            return context.getSocketFactory();
+        } catch (GeneralSecurityException ex) {
+            return null;
+        }
+    }
+}
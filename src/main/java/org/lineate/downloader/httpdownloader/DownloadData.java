@@ -1,7 +1,15 @@
 package org.lineate.downloader.httpdownloader;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Locale;
 import java.util.Objects;
 
+import org.lineate.downloader.metalink.Metalink;
+
 /**
  * Class is a simple store download information.
  * Information includes a source url and destination file name.
@@ -12,6 +20,21 @@ import java.util.Objects;
 
 public final class DownloadData {
 
+    /**
+     * Lowest download priority, for bulk jobs.
+     */
+    public static final int MIN_PRIORITY = 0;
+
+    /**
+     * Download priority by default.
+     */
+    public static final int NORM_PRIORITY = 5;
+
+    /**
+     * Highest download priority, for interactive requests.
+     */
+    public static final int MAX_PRIORITY = 10;
+
     /**
      * Stores source url.
      */
@@ -22,6 +45,51 @@ public final class DownloadData {
      */
     private final String localFile;
 
+    /**
+     * Stores bandwidth cap of the download in bytes per second.
+     */
+    private long rateLimit;
+
+    /**
+     * Stores download priority.
+     */
+    private int priority = NORM_PRIORITY;
+
+    /**
+     * Stores time when the download should be started, may be null.
+     */
+    private Instant deadline;
+
+    /**
+     * Stores digest algorithm of the expected checksum, may be null.
+     */
+    private String checksumAlgorithm;
+
+    /**
+     * Stores expected checksum as lower case hex string, may be null.
+     */
+    private String checksum;
+
+    /**
+     * Stores directory for the extracted archive entries, may be null.
+     */
+    private String extractDirectory;
+
+    /**
+     * Stores whether the archive is kept next to the extracted entries.
+     */
+    private boolean keepArchive;
+
+    /**
+     * Stores alternate url for the hedged requests, may be null.
+     */
+    private String alternateUri;
+
+    /**
+     * Stores mirrors and piece hashes of the file, may be null.
+     */
+    private Metalink metalink;
+
     /**
      * Constructor accepts both source url and destination file name.
      *
@@ -34,6 +102,122 @@ public final class DownloadData {
         this.localFile = destinationFilePathValue;
     }
 
+    /**
+     * Returns copy of the download information with a bandwidth cap.
+     *
+     * @param bytesPerSecond maximum download rate, 0 for no limit
+     * @return new download information
+     */
+    public DownloadData withRateLimit(final long bytesPerSecond) {
+        DownloadData copy = copy();
+        copy.rateLimit = Math.max(bytesPerSecond, 0);
+        return copy;
+    }
+
+    /**
+     * Returns copy of the download information with a priority.
+     *
+     * @param priorityValue priority from {@link #MIN_PRIORITY} to
+     *                      {@link #MAX_PRIORITY}
+     * @return new download information
+     */
+    public DownloadData withPriority(final int priorityValue) {
+        if (priorityValue < MIN_PRIORITY || priorityValue > MAX_PRIORITY) {
+            throw new IllegalArgumentException("Wrong priority: "
+                    + priorityValue);
+        }
+        DownloadData copy = copy();
+        copy.priority = priorityValue;
+        return copy;
+    }
+
+    /**
+     * Returns copy of the download information with a deadline. A download
+     * is started no later than its deadline if a connection is free.
+     *
+     * @param deadlineValue time when the download should be started
+     * @return new download information
+     */
+    public DownloadData withDeadline(final Instant deadlineValue) {
+        DownloadData copy = copy();
+        copy.deadline = deadlineValue;
+        return copy;
+    }
+
+    /**
+     * Returns copy of the download information with an expected checksum.
+     * The checksum is computed while the file is written, a download with
+     * another checksum ends with the VERIFICATION_FAILED status.
+     *
+     * @param algorithm digest algorithm, e.g. SHA-256, SHA-512 or MD5
+     * @param hexValue expected digest as hex string
+     * @return new download information
+     */
+    public DownloadData withChecksum(final String algorithm,
+                                     final String hexValue) {
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalArgumentException("Unknown digest algorithm: "
+                    + algorithm);
+        }
+        DownloadData copy = copy();
+        copy.checksumAlgorithm = algorithm;
+        copy.checksum = hexValue.toLowerCase(Locale.ROOT);
+        return copy;
+    }
+
+    /**
+     * Returns copy of the download information which extracts the archive
+     * into the directory while it is downloaded. Tar, tar.gz, zip and gzip
+     * archives are supported, the progress counts the compressed bytes.
+     *
+     * @param directory directory for the extracted entries
+     * @param keep true to also save the archive to the local file
+     * @return new download information
+     */
+    public DownloadData withExtraction(final String directory,
+                                       final boolean keep) {
+        DownloadData copy = copy();
+        copy.extractDirectory = directory;
+        copy.keepArchive = keep;
+        return copy;
+    }
+
+    /**
+     * Returns copy of the download information with an alternate source,
+     * e.g. another mirror of the file. A hedged request goes to the
+     * alternate url instead of the source url.
+     *
+     * @param uri alternate url of the same file
+     * @return new download information
+     */
+    public DownloadData withAlternate(final String uri) {
+        try {
+            new URL(uri);
+        } catch (MalformedURLException ex) {
+            throw new IllegalArgumentException("Wrong alternate url: "
+                    + uri);
+        }
+        DownloadData copy = copy();
+        copy.alternateUri = uri;
+        return copy;
+    }
+
+    /**
+     * Returns copy of the download information which fetches the file
+     * from several mirrors at once and checks its pieces. The source url
+     * should be the first url of the Metalink.
+     *
+     * @param metalinkValue mirrors and hashes of the file
+     * @return new download information
+     */
+    public DownloadData withMetalink(final Metalink metalinkValue) {
+        DownloadData copy = copy();
+        copy.metalink = metalinkValue;
+        return copy;
+    }
+
     /**
      * Returns download source url.
      *
@@ -52,6 +236,87 @@ public final class DownloadData {
         return localFile;
     }
 
+    /**
+     * Returns download bandwidth cap.
+     *
+     * @return bytes per second, 0 if there is no limit
+     */
+    public long getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Returns download priority.
+     *
+     * @return priority, {@link #NORM_PRIORITY} by default
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns time when the download should be started.
+     *
+     * @return deadline, null if there is none
+     */
+    public Instant getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns digest algorithm of the expected checksum.
+     *
+     * @return algorithm name, null if there is no checksum
+     */
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * Returns expected checksum.
+     *
+     * @return lower case hex string, null if there is no checksum
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Returns directory for the extracted archive entries.
+     *
+     * @return directory, null if the download is not extracted
+     */
+    public String getExtractDirectory() {
+        return extractDirectory;
+    }
+
+    /**
+     * Returns whether the extracted archive is saved to the local file.
+     *
+     * @return true if the archive is kept
+     */
+    public boolean isKeepArchive() {
+        return keepArchive;
+    }
+
+    /**
+     * Returns alternate url for the hedged requests.
+     *
+     * @return url, null if the hedges go to the source url
+     */
+    public String getAlternateUri() {
+        return alternateUri;
+    }
+
+    /**
+     * Returns mirrors and piece hashes of the file.
+     *
+     * @return Metalink, null if the file has a single source
+     */
+    public Metalink getMetalink() {
+        return metalink;
+    }
+
     /**
      * Overridden method for comparing a couple of objects.
      *
@@ -68,7 +333,18 @@ public final class DownloadData {
         }
         DownloadData downloadData = (DownloadData) o;
         return Objects.equals(sourceUri, downloadData.sourceUri)
-                && Objects.equals(localFile, downloadData.localFile);
+                && Objects.equals(localFile, downloadData.localFile)
+                && rateLimit == downloadData.rateLimit
+                && priority == downloadData.priority
+                && Objects.equals(deadline, downloadData.deadline)
+                && Objects.equals(checksumAlgorithm,
+                downloadData.checksumAlgorithm)
+                && Objects.equals(checksum, downloadData.checksum)
+                && Objects.equals(extractDirectory,
+                downloadData.extractDirectory)
+                && keepArchive == downloadData.keepArchive
+                && Objects.equals(alternateUri, downloadData.alternateUri)
+                && Objects.equals(metalink, downloadData.metalink);
     }
 
     /**
@@ -78,7 +354,22 @@ public final class DownloadData {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(sourceUri, localFile);
+        return Objects.hash(sourceUri, localFile, rateLimit, priority,
+                deadline, checksumAlgorithm, checksum, extractDirectory,
+                keepArchive, alternateUri, metalink);
     }
 
+    private DownloadData copy() {
+        DownloadData copy = new DownloadData(sourceUri, localFile);
+        copy.rateLimit = rateLimit;
+        copy.priority = priority;
+        copy.deadline = deadline;
+        copy.checksumAlgorithm = checksumAlgorithm;
+        copy.checksum = checksum;
+        copy.extractDirectory = extractDirectory;
+        copy.keepArchive = keepArchive;
+        copy.alternateUri = alternateUri;
+        copy.metalink = metalink;
+        return copy;
+    }
 }
@@ -0,0 +1,107 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.File;
+import java.util.UUID;
+
+import org.lineate.downloader.progressbar.DownloadStatus;
+
+/**
+ * Class is a simple store for the result of a single download.
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+public final class DownloadResult {
+
+    /**
+     * Download task id.
+     */
+    private final UUID id;
+
+    /**
+     * Destination file.
+     */
+    private final File file;
+
+    /**
+     * Final download status.
+     */
+    private final DownloadStatus status;
+
+    /**
+     * Downloaded size in bytes.
+     */
+    private final long size;
+
+    /**
+     * Download error, null for successful downloads.
+     */
+    private final Throwable error;
+
+    /**
+     * Constructor accepts all the result fields.
+     *
+     * @param idValue download task id
+     * @param fileValue destination file
+     * @param statusValue final download status
+     * @param sizeValue downloaded size in bytes
+     * @param errorValue download error, null if there is none
+     */
+    public DownloadResult(final UUID idValue,
+                          final File fileValue,
+                          final DownloadStatus statusValue,
+                          final long sizeValue,
+                          final Throwable errorValue) {
+        this.id = idValue;
+        this.file = fileValue;
+        this.status = statusValue;
+        this.size = sizeValue;
+        this.error = errorValue;
+    }
+
+    /**
+     * Returns download task id.
+     *
+     * @return download UUID
+     */
+    public UUID getId() {
+        return id;
+    }
+
+    /**
+     * Returns destination file.
+     *
+     * @return file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns final download status.
+     *
+     * @return status
+     */
+    public DownloadStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns downloaded size.
+     *
+     * @return size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns download error.
+     *
+     * @return error, null for successful downloads
+     */
+    public Throwable getError() {
+        return error;
+    }
+}
@@ -0,0 +1,412 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Destination of the segmented downloads, written at random offsets.
+ * <p>
+ * The {@link Mode#POSITIONAL} sink writes every block with a positional
+ * {@link FileChannel} write. The {@link Mode#MAPPED} sink maps the file
+ * in windows of {@link #WINDOW_SIZE} bytes and copies the blocks into
+ * them, so out-of-order blocks land in place with no system call per
+ * block. A window is forced to the disk and unmapped as soon as all its
+ * bytes are written and no write is copying into it, {@link #flush()}
+ * forces the rest before a checkpoint is saved and {@link #close()}
+ * unmaps the windows which are not in use. A window still in use at
+ * close is left to the garbage collector, so a late write never touches
+ * unmapped memory.
+ * </p>
+ * <p>
+ * With preallocation the file is extended to its full size before the
+ * first write instead of growing with every segment. The mapped sink
+ * always preallocates.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.2
+ */
+
+abstract class FileSink implements Closeable {
+
+    /**
+     * Output modes of the sink.
+     */
+    enum Mode {
+
+        /**
+         * Positional channel writes.
+         */
+        POSITIONAL,
+
+        /**
+         * Writes to the memory-mapped windows.
+         */
+        MAPPED;
+
+        /**
+         * Parses mode name, case insensitive.
+         *
+         * @param name mode name
+         * @return mode
+         */
+        static Mode of(final String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Size of a mapped window.
+     */
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * File of the sink.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * Channel of the file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Opens sink.
+     *
+     * @param fileValue opened file
+     */
+    FileSink(final RandomAccessFile fileValue) {
+        this.file = fileValue;
+        this.channel = fileValue.getChannel();
+    }
+
+    /**
+     * Opens sink for the destination.
+     *
+     * @param destination destination file
+     * @param size total size of the file
+     * @param mode output mode, the mapped mode falls back to the positional
+     *             one if the file is empty
+     * @param preallocate extend the file to its size before writing
+     * @param truncate drop the current content of the file
+     * @return sink
+     * @throws IOException if the file can not be opened
+     */
+    static FileSink open(final File destination,
+                         final long size,
+                         final Mode mode,
+                         final boolean preallocate,
+                         final boolean truncate) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(destination, "rw");
+        try {
+            if (truncate) {
+                file.setLength(0);
+            }
+            boolean mapped = mode == Mode.MAPPED && size > 0;
+            if ((preallocate || mapped) && file.length() < size) {
+                file.setLength(size);
+            }
+            return mapped ? new Mapped(file, size) : new Positional(file);
+        } catch (IOException | RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes the whole buffer at the position.
+     *
+     * @param buffer data to write
+     * @param position file offset
+     * @return number of written bytes
+     * @throws IOException on write error
+     */
+    abstract int write(ByteBuffer buffer, long position) throws IOException;
+
+    /**
+     * Forces the written data to the disk.
+     *
+     * @throws IOException on write error
+     */
+    abstract void flush() throws IOException;
+
+    /**
+     * Returns channel of the file.
+     *
+     * @return channel
+     */
+    FileChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Sink with positional channel writes.
+     */
+    private static final class Positional extends FileSink {
+
+        Positional(final RandomAccessFile fileValue) {
+            super(fileValue);
+        }
+
+        @Override
+        int write(final ByteBuffer buffer, final long position)
+                throws IOException {
+            return ChannelTransfer.write(channel(), buffer, position);
+        }
+
+        @Override
+        void flush() throws IOException {
+            channel().force(false);
+        }
+    }
+
+    /**
+     * Sink with memory-mapped windows.
+     */
+    private static final class Mapped extends FileSink {
+
+        /**
+         * Total size of the file.
+         */
+        private final long size;
+
+        /**
+         * Mapped windows by index, guarded by this object monitor.
+         */
+        private final Map<Long, Window> windows = new HashMap<>();
+
+        Mapped(final RandomAccessFile fileValue, final long sizeValue) {
+            super(fileValue);
+            this.size = sizeValue;
+        }
+
+        @Override
+        int write(final ByteBuffer buffer, final long position)
+                throws IOException {
+            int length = buffer.remaining();
+            long offset = position;
+            while (buffer.hasRemaining()) {
+                if (offset >= size) {
+                    throw new IOException("Write at " + offset
+                            + " beyond the end of file " + size);
+                }
+                long index = offset / WINDOW_SIZE;
+                Window window = window(index);
+                int start = (int) (offset - index * WINDOW_SIZE);
+                int count = Math.min(buffer.remaining(),
+                        window.data.capacity() - start);
+                try {
+                    ByteBuffer target = window.data.duplicate();
+                    target.position(start);
+                    ByteBuffer source = buffer.duplicate();
+                    source.limit(source.position() + count);
+                    target.put(source);
+                } catch (RuntimeException ex) {
+                    release(index, window, start, 0);
+                    throw ex;
+                }
+                buffer.position(buffer.position() + count);
+                offset += count;
+                release(index, window, start, count);
+            }
+            return length;
+        }
+
+        @Override
+        void flush() throws IOException {
+            synchronized (this) {
+                for (Window window : windows.values()) {
+                    window.data.force();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                synchronized (this) {
+                    for (Window window : windows.values()) {
+                        window.data.force();
+                        if (window.users == 0) {
+                            Unmapper.unmap(window.data);
+                        }
+                    }
+                    windows.clear();
+                }
+            } finally {
+                super.close();
+            }
+        }
+
+        /**
+         * Returns window for a write, mapped if needed. The window stays
+         * mapped until the write releases it.
+         */
+        private synchronized Window window(final long index)
+                throws IOException {
+            Window window = windows.get(index);
+            if (window == null) {
+                long start = index * WINDOW_SIZE;
+                window = new Window(channel().map(
+                        FileChannel.MapMode.READ_WRITE, start,
+                        Math.min(WINDOW_SIZE, size - start)));
+                windows.put(index, window);
+            }
+            window.users++;
+            return window;
+        }
+
+        /**
+         * Releases window after a write and records the written range. A
+         * range written again, like a piece fetched once more after a
+         * failure, is counted once. A window written to the end is no
+         * longer handed out, the last write which releases it forces and
+         * unmaps it.
+         */
+        private void release(final long index, final Window window,
+                             final int start, final int count) {
+            synchronized (this) {
+                window.users--;
+                window.add(start, start + count);
+                if (window.written < window.data.capacity()) {
+                    return;
+                }
+                windows.remove(index, window);
+                if (window.users > 0) {
+                    return;
+                }
+            }
+            window.data.force();
+            Unmapper.unmap(window.data);
+        }
+    }
+
+    /**
+     * Mapped window with its written ranges and the writes in progress,
+     * guarded by the sink monitor.
+     */
+    private static final class Window {
+
+        /**
+         * Mapped region.
+         */
+        private final MappedByteBuffer data;
+
+        /**
+         * Written ranges of the region, start to end, not overlapping nor
+         * touching.
+         */
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+        /**
+         * Bytes covered by the written ranges.
+         */
+        private long written;
+
+        /**
+         * Writes copying into the region.
+         */
+        private int users;
+
+        Window(final MappedByteBuffer dataValue) {
+            this.data = dataValue;
+        }
+
+        /**
+         * Adds written range, merged with the ranges it overlaps or
+         * touches.
+         */
+        void add(final long startValue, final long endValue) {
+            if (startValue == endValue) {
+                return;
+            }
+            long start = startValue;
+            long end = endValue;
+            Map.Entry<Long, Long> range = ranges.floorEntry(start);
+            if (range == null || range.getValue() < start) {
+                range = ranges.ceilingEntry(start);
+            }
+            while (range != null && range.getKey() <= end) {
+                start = Math.min(start, range.getKey());
+                end = Math.max(end, range.getValue());
+                written -= range.getValue() - range.getKey();
+                ranges.remove(range.getKey());
+                range = ranges.ceilingEntry(start);
+            }
+            ranges.put(start, end);
+            written += end - start;
+        }
+    }
+
+    /**
+     * Releases the mapping without waiting for the garbage collector. The
+     * JDK has no public unmap, the runtime specific cleaner is looked up
+     * reflectively, without it the mapping is left to the collector.
+     */
+    private static final class Unmapper {
+
+        /**
+         * Unsafe instance on Java 9 and later, null otherwise.
+         */
+        private static final Object UNSAFE;
+
+        /**
+         * Unsafe.invokeCleaner on Java 9 and later, null otherwise.
+         */
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                Field field = type.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = type.getMethod("invokeCleaner",
+                        ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                unsafe = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        private Unmapper() {
+        }
+
+        static void unmap(final MappedByteBuffer buffer) {
+            try {
+                if (INVOKE_CLEANER != null) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                    return;
+                }
+                // Java 8: ((DirectBuffer) buffer).cleaner().clean()
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object clean = cleaner.invoke(buffer);
+                if (clean != null) {
+                    clean.getClass().getMethod("clean").invoke(clean);
+                }
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                // left to the garbage collector
+            }
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lineate.downloader.metrics.DownloadMetrics;
+import org.lineate.downloader.metrics.Histogram;
+
+/**
+ * Hedged requests for the downloads which are slow to start.
+ * <p>
+ * A request which has no response headers after the hedge delay, or
+ * whose first bytes come slower than the throughput floor, gets a second
+ * request to the same source or to an alternate url. The request which
+ * starts first is kept and the other one is disconnected. A request has
+ * started when it has its response headers and, with a throughput floor,
+ * the first {@link #PROBE_SIZE} bytes of the body, which are then read
+ * again from {@link Response#body()}.
+ * </p>
+ * <p>
+ * The delay is a percentile of the time to first byte of the host, so
+ * only the slowest requests are hedged; until the host has
+ * {@link #MIN_SAMPLES} responses the minimal delay is used. The hedges
+ * are capped by a budget, a share of the requests plus {@link #BURST},
+ * so a slow host does not get twice the load. A hedge also needs a free
+ * connection in the limit of its host.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.1
+ */
+
+final class Hedging {
+
+    /**
+     * Bytes a request reads to start when there is a throughput floor.
+     */
+    static final int PROBE_SIZE = 64 * 1024;
+
+    /**
+     * Responses of a host before its percentile is trusted.
+     */
+    static final int MIN_SAMPLES = 20;
+
+    /**
+     * Hedges allowed on top of the budget share, so the first slow
+     * requests of a downloader can be hedged.
+     */
+    static final int BURST = 1;
+
+    /**
+     * Body of a response without a read prefix.
+     */
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    /**
+     * Lowest http status code of the error responses.
+     */
+    private static final int BAD_REQUEST = 400;
+
+    /**
+     * Percentile of the time to first byte which is the hedge delay.
+     */
+    private final double percentile;
+
+    /**
+     * Minimal hedge delay in nanoseconds.
+     */
+    private final long minDelay;
+
+    /**
+     * Throughput floor of the start in bytes per second, 0 for none.
+     */
+    private final long floor;
+
+    /**
+     * Share of the requests which may be hedged.
+     */
+    private final double budget;
+
+    /**
+     * Metrics with the time to first byte of the hosts.
+     */
+    private final DownloadMetrics metrics;
+
+    /**
+     * Connection manager of the downloader.
+     */
+    private final ConnectionManager connectionManager;
+
+    /**
+     * Scheduler of the downloader, leases the hedge connections.
+     */
+    private final HostScheduler scheduler;
+
+    /**
+     * Pool running the racing requests.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Requests which could be hedged.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Hedged requests.
+     */
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * Creates hedging policy.
+     *
+     * @param percentileValue percentile of the time to first byte of the
+     *                        host after which a request is hedged
+     * @param minDelayValue minimal hedge delay in milliseconds
+     * @param floorValue throughput floor of the start in bytes per second,
+     *                   0 for none
+     * @param budgetValue share of the requests which may be hedged
+     * @param metricsValue metrics of the downloader
+     * @param connectionManagerValue connection manager of the downloader
+     * @param schedulerValue scheduler of the downloader
+     * @param poolValue pool for the racing requests, a request which lost
+     *                  may hold its thread until its socket is closed
+     */
+    Hedging(final double percentileValue,
+            final long minDelayValue,
+            final long floorValue,
+            final double budgetValue,
+            final DownloadMetrics metricsValue,
+            final ConnectionManager connectionManagerValue,
+            final HostScheduler schedulerValue,
+            final ExecutorService poolValue) {
+        this.percentile = percentileValue;
+        this.minDelay = TimeUnit.MILLISECONDS.toNanos(minDelayValue);
+        this.floor = floorValue;
+        this.budget = budgetValue;
+        this.metrics = metricsValue;
+        this.connectionManager = connectionManagerValue;
+        this.scheduler = schedulerValue;
+        this.pool = poolValue;
+    }
+
+    /**
+     * Sends request and hedges it if it is slow to start.
+     *
+     * @param request configured connection, not connected yet
+     * @param alternate url for the hedge, null for the url of the request
+     * @param host host:port of the source for the metrics
+     * @return response which started first
+     * @throws IOException if all the requests have failed
+     */
+    Response send(final URLConnection request, final URL alternate,
+                  final String host) throws IOException {
+        if (!(request instanceof HttpURLConnection)) {
+            return new Response(request);
+        }
+        requests.incrementAndGet();
+        // the properties can not be read once the request is sent
+        Map<String, List<String>> properties =
+                request.getRequestProperties();
+        Race race = new Race();
+        Contender original = race.add((HttpURLConnection) request);
+        pool.execute(original);
+        Contender hedge = null;
+        URL target = alternate == null ? request.getURL() : alternate;
+        int leased = 0;
+        try {
+            try {
+                return race.winner.get(delay(host), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                if (slow(original)) {
+                    leased = scheduler.lease(target, 1);
+                }
+                if (leased > 0 && acquire()) {
+                    hedge = hedge(race, target, properties);
+                }
+            }
+            Response response = race.winner.get();
+            if (hedge != null) {
+                metrics.hedged(host,
+                        response.connection == hedge.connection);
+            }
+            return response;
+        } catch (ExecutionException ex) {
+            if (hedge != null) {
+                metrics.hedged(host, false);
+            }
+            throw (IOException) ex.getCause();
+        } catch (InterruptedException ex) {
+            race.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for "
+                    + request.getURL());
+        } finally {
+            // the loser is disconnected once the race is over
+            scheduler.unlease(target, leased);
+        }
+    }
+
+    /**
+     * Returns hedge delay of the host.
+     *
+     * @param host host:port
+     * @return delay in nanoseconds
+     */
+    long delay(final String host) {
+        Histogram.Snapshot firstByte = metrics.firstByte(host);
+        if (firstByte == null || firstByte.getCount() < MIN_SAMPLES) {
+            return minDelay;
+        }
+        return Math.max(minDelay, TimeUnit.MICROSECONDS.toNanos(
+                firstByte.getValueAt(percentile)));
+    }
+
+    private boolean slow(final Contender original) {
+        if (!original.responded) {
+            return true;
+        }
+        long elapsed = System.nanoTime() - original.sent;
+        return floor > 0 && (double) original.received
+                * TimeUnit.SECONDS.toNanos(1) / elapsed < floor;
+    }
+
+    /**
+     * Takes a hedge from the budget.
+     *
+     * @return true if the request may be hedged
+     */
+    private boolean acquire() {
+        long allowed = (long) (budget * requests.get()) + BURST;
+        long used;
+        do {
+            used = hedges.get();
+            if (used >= allowed) {
+                return false;
+            }
+        } while (!hedges.compareAndSet(used, used + 1));
+        return true;
+    }
+
+    /**
+     * Sends hedge of the request.
+     *
+     * @return racing hedge, null if the race is over or the hedge can not
+     * be sent, then the original request goes on alone
+     */
+    private Contender hedge(final Race race, final URL url,
+                            final Map<String, List<String>> properties) {
+        URLConnection connection;
+        try {
+            connection = connectionManager.open(url);
+        } catch (IOException ex) {
+            return null;
+        }
+        if (!(connection instanceof HttpURLConnection)) {
+            return null;
+        }
+        properties.forEach((key, values) -> values.forEach(
+                (value) -> connection.addRequestProperty(key, value)));
+        Contender hedge = race.add((HttpURLConnection) connection);
+        if (hedge != null) {
+            pool.execute(hedge);
+        }
+        return hedge;
+    }
+
+    /**
+     * Response of a request, hedged or not, and the bytes of the body
+     * already read while the requests raced.
+     */
+    static final class Response {
+
+        /**
+         * Connection of the response.
+         */
+        private final URLConnection connection;
+
+        /**
+         * Bytes read from the start of the body.
+         */
+        private final byte[] prefix;
+
+        /**
+         * Creates response of a request which is not hedged.
+         *
+         * @param connectionValue connection of the response
+         */
+        Response(final URLConnection connectionValue) {
+            this(connectionValue, NO_PREFIX);
+        }
+
+        private Response(final URLConnection connectionValue,
+                         final byte[] prefixValue) {
+            this.connection = connectionValue;
+            this.prefix = prefixValue;
+        }
+
+        /**
+         * Returns connection of the response.
+         *
+         * @return connection
+         */
+        URLConnection connection() {
+            return connection;
+        }
+
+        /**
+         * Opens body of the response from its first byte.
+         *
+         * @return response stream
+         * @throws IOException if the body can not be read
+         */
+        InputStream body() throws IOException {
+            InputStream rest = connection.getInputStream();
+            return prefix.length == 0 ? rest : new SequenceInputStream(
+                    new ByteArrayInputStream(prefix), rest);
+        }
+    }
+
+    /**
+     * Requests racing to start, the first one to start wins.
+     */
+    private final class Race {
+
+        /**
+         * Response of the winner.
+         */
+        private final CompletableFuture<Response> winner =
+                new CompletableFuture<>();
+
+        /**
+         * Racing requests, guarded by this object monitor.
+         */
+        private final List<Contender> contenders = new ArrayList<>(2);
+
+        /**
+         * Failed requests, guarded by this object monitor.
+         */
+        private int failed;
+
+        /**
+         * Failure of the first request which has failed.
+         */
+        private IOException failure;
+
+        /**
+         * Adds request to the race.
+         *
+         * @return racing request, null if the race is already over
+         */
+        synchronized Contender add(final HttpURLConnection connection) {
+            if (winner.isDone()) {
+                return null;
+            }
+            Contender contender = new Contender(connection, this);
+            contenders.add(contender);
+            return contender;
+        }
+
+        void started(final Contender contender, final byte[] prefix) {
+            if (winner.complete(new Response(contender.connection, prefix))) {
+                synchronized (this) {
+                    for (Contender other : contenders) {
+                        if (other != contender) {
+                            other.connection.disconnect();
+                        }
+                    }
+                }
+            } else {
+                contender.connection.disconnect();
+            }
+        }
+
+        void failed(final IOException ex) {
+            synchronized (this) {
+                if (failure == null) {
+                    failure = ex;
+                }
+                if (++failed < contenders.size()) {
+                    return;
+                }
+            }
+            winner.completeExceptionally(failure);
+        }
+
+        synchronized void cancel() {
+            winner.cancel(false);
+            for (Contender contender : contenders) {
+                contender.connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Racing request.
+     */
+    private final class Contender implements Runnable {
+
+        /**
+         * Connection of the request.
+         */
+        private final HttpURLConnection connection;
+
+        /**
+         * Race of the request.
+         */
+        private final Race race;
+
+        /**
+         * Time the request is sent in nanoseconds.
+         */
+        private final long sent = System.nanoTime();
+
+        /**
+         * Whether the response headers have arrived.
+         */
+        private volatile boolean responded;
+
+        /**
+         * Bytes of the body read so far.
+         */
+        private volatile int received;
+
+        Contender(final HttpURLConnection connectionValue,
+                  final Race raceValue) {
+            this.connection = connectionValue;
+            this.race = raceValue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int code = connection.getResponseCode();
+                responded = true;
+                race.started(this, floor > 0 && code < BAD_REQUEST
+                        ? probe() : NO_PREFIX);
+            } catch (IOException ex) {
+                race.failed(ex);
+            } catch (RuntimeException ex) {
+                race.failed(new IOException(ex));
+            }
+        }
+
+        private byte[] probe() throws IOException {
+            long length = connection.getContentLengthLong();
+            int size = length < 0
+                    ? PROBE_SIZE : (int) Math.min(PROBE_SIZE, length);
+            byte[] prefix = new byte[size];
+            InputStream stream = connection.getInputStream();
+            int bytesRead = 0;
+            while (received < size && (bytesRead = stream.read(prefix,
+                    received, size - received)) != -1) {
+                received += bytesRead;
+            }
+            return received == size ? prefix : Arrays.copyOf(prefix, received);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fair scheduler of the download tasks in front of the executor.
+ * <p>
+ * Tasks wait in a queue of their host. The scheduler passes a task to
+ * the executor only when both the global limit and the limit of its host
+ * allow it, and takes the hosts in turn, so a long queue of one slow host
+ * does not hold back the other hosts.
+ * </p>
+ * <p>
+ * Queues are ordered by virtual deadline: the task deadline, or the time
+ * of submit plus one aging step for every priority level below
+ * {@link DownloadData#MAX_PRIORITY}. The next task is the earliest one of
+ * the hosts which can start it, hosts with the same aging step take
+ * turns. A waiting task gets ahead of newer tasks one priority level per
+ * aging step, so bulk downloads are delayed but never starve.
+ * </p>
+ * <p>
+ * The host limit counts connections: a running task holds one, and takes
+ * its segment, mirror and hedge connections as leases from the rest of
+ * the limit. A lease never waits, a task gets fewer connections instead.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.1
+ */
+
+final class HostScheduler {
+
+    /**
+     * Executor for the released tasks.
+     */
+    private final Executor executor;
+
+    /**
+     * Maximum number of running tasks, 0 for no limit.
+     */
+    private final int maxTotal;
+
+    /**
+     * Maximum number of connections per host, 0 for no limit.
+     */
+    private final int maxPerHost;
+
+    /**
+     * Aging step in nanoseconds.
+     */
+    private final long aging;
+
+    /**
+     * Waiting tasks per host, guarded by this object monitor.
+     */
+    private final Map<String, PriorityQueue<Entry>> queues = new HashMap<>();
+
+    /**
+     * Hosts with waiting tasks in the order of their turns.
+     */
+    private final Deque<String> turns = new ArrayDeque<>();
+
+    /**
+     * Running tasks per host.
+     */
+    private final Map<String, Integer> running = new HashMap<>();
+
+    /**
+     * Extra connections of the running tasks per host.
+     */
+    private final Map<String, Integer> leased = new HashMap<>();
+
+    /**
+     * Total number of running tasks.
+     */
+    private int total;
+
+    /**
+     * Total number of waiting tasks.
+     */
+    private int waiting;
+
+    /**
+     * Submit counter, keeps the order of tasks with the same deadline.
+     */
+    private long sequence;
+
+    /**
+     * Creates scheduler.
+     *
+     * @param executorValue executor for the released tasks
+     * @param maxTotalValue maximum number of running tasks, 0 for no limit
+     * @param maxPerHostValue maximum number of connections per host, 0
+     *                        for no limit
+     * @param agingMillis aging step in milliseconds
+     */
+    HostScheduler(final Executor executorValue,
+                  final int maxTotalValue,
+                  final int maxPerHostValue,
+                  final long agingMillis) {
+        this.executor = executorValue;
+        this.maxTotal = Math.max(maxTotalValue, 0);
+        this.maxPerHost = Math.max(maxPerHostValue, 0);
+        this.aging = TimeUnit.MILLISECONDS.toNanos(Math.max(agingMillis, 1));
+    }
+
+    /**
+     * Queues the task for the host of the url with normal priority.
+     *
+     * @param url source url of the task
+     * @param task download task
+     * @param <T> task result type
+     * @return future of the task result
+     */
+    <T> Future<T> submit(final URL url, final Callable<T> task) {
+        return submit(url, DownloadData.NORM_PRIORITY, null, task);
+    }
+
+    /**
+     * Queues the task for the host of the url.
+     *
+     * @param url source url of the task
+     * @param priority task priority
+     * @param deadline time in nanoseconds when the task should be started,
+     *                 null if there is no deadline
+     * @param task download task
+     * @param <T> task result type
+     * @return future of the task result
+     */
+    <T> Future<T> submit(final URL url,
+                         final int priority,
+                         final Long deadline,
+                         final Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        String host = host(url);
+        long due = System.nanoTime()
+                + aging * (DownloadData.MAX_PRIORITY - priority);
+        if (deadline != null && deadline - due < 0) {
+            due = deadline;
+        }
+        synchronized (this) {
+            PriorityQueue<Entry> queue = queues.get(host);
+            if (queue == null) {
+                queue = new PriorityQueue<>();
+                queues.put(host, queue);
+                turns.addLast(host);
+            }
+            queue.add(new Entry(due, sequence++, future));
+            waiting++;
+        }
+        dispatch();
+        return future;
+    }
+
+    /**
+     * Takes extra connections to the host of the url from its limit,
+     * without waiting.
+     *
+     * @param url url of the connections
+     * @param wanted number of the wanted connections
+     * @return number of the granted connections, from 0 to wanted
+     */
+    synchronized int lease(final URL url, final int wanted) {
+        if (wanted <= 0 || maxPerHost == 0) {
+            return Math.max(wanted, 0);
+        }
+        String host = host(url);
+        int granted = Math.min(wanted, maxPerHost - connections(host));
+        if (granted <= 0) {
+            return 0;
+        }
+        leased.merge(host, granted, Integer::sum);
+        return granted;
+    }
+
+    /**
+     * Gives leased connections back to the limit of the host.
+     *
+     * @param url url of the connections
+     * @param count number of the connections granted by
+     *              {@link #lease(URL, int)}
+     */
+    void unlease(final URL url, final int count) {
+        if (count <= 0 || maxPerHost == 0) {
+            return;
+        }
+        synchronized (this) {
+            leased.computeIfPresent(host(url),
+                    (key, value) -> value > count ? value - count : null);
+        }
+        dispatch();
+    }
+
+    /**
+     * Waits until all the queued and running tasks are finished.
+     *
+     * @throws InterruptedException if the thread is interrupted
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (waiting > 0 || total > 0) {
+            wait();
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            String host;
+            Runnable task;
+            synchronized (this) {
+                host = next();
+                if (host == null) {
+                    return;
+                }
+                task = queues.get(host).poll().task;
+                if (queues.get(host).isEmpty()) {
+                    queues.remove(host);
+                    turns.remove(host);
+                }
+                waiting--;
+                total++;
+                running.merge(host, 1, Integer::sum);
+            }
+            final String key = host;
+            final Runnable job = task;
+            executor.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    finished(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Takes the host with the earliest task which can start one more task,
+     * the first one in turn of the hosts with the same aging step, and
+     * moves it to the end of the turns.
+     */
+    private String next() {
+        if (maxTotal > 0 && total >= maxTotal) {
+            return null;
+        }
+        String best = null;
+        long bestStep = 0;
+        for (String host : turns) {
+            if (maxPerHost > 0 && connections(host) >= maxPerHost) {
+                continue;
+            }
+            long step = Math.floorDiv(queues.get(host).peek().due, aging);
+            if (best == null || step < bestStep) {
+                best = host;
+                bestStep = step;
+            }
+        }
+        if (best != null) {
+            turns.remove(best);
+            turns.addLast(best);
+        }
+        return best;
+    }
+
+    private int connections(final String host) {
+        return running.getOrDefault(host, 0) + leased.getOrDefault(host, 0);
+    }
+
+    private void finished(final String host) {
+        synchronized (this) {
+            total--;
+            running.computeIfPresent(host,
+                    (key, count) -> count > 1 ? count - 1 : null);
+            notifyAll();
+        }
+        dispatch();
+    }
+
+    /**
+     * Returns key of the url host.
+     *
+     * @param url source url
+     * @return lower case host:port
+     */
+    static String host(final URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    /**
+     * Waiting task with its virtual deadline.
+     */
+    private static final class Entry implements Comparable<Entry> {
+
+        /**
+         * Virtual deadline in nanoseconds.
+         */
+        private final long due;
+
+        /**
+         * Submit order.
+         */
+        private final long order;
+
+        /**
+         * The task.
+         */
+        private final Runnable task;
+
+        Entry(final long dueValue, final long orderValue,
+              final Runnable taskValue) {
+            this.due = dueValue;
+            this.order = orderValue;
+            this.task = taskValue;
+        }
+
+        @Override
+        public int compareTo(final Entry other) {
+            int result = Long.compare(due - other.due, 0);
+            return result != 0 ? result : Long.compare(order, other.order);
+        }
+    }
+}
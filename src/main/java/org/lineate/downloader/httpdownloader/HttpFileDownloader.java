@@ -1,30 +1,51 @@
 package org.lineate.downloader.httpdownloader;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.lineate.downloader.Downloader;
+import org.lineate.downloader.cache.DiskCache;
 import org.lineate.downloader.exceptions.BadUrlException;
 import org.lineate.downloader.exceptions.IllegalUuidException;
+import org.lineate.downloader.metalink.Metalink;
+import org.lineate.downloader.metrics.DownloadMetrics;
 import org.lineate.downloader.progressbar.DownloadStatus;
+import org.lineate.downloader.progressbar.DownloadProgress;
+import org.lineate.downloader.progressbar.ProgressDispatcher;
+import org.lineate.downloader.progressbar.ProgressListener;
 import org.lineate.downloader.progressbar.Progressbar;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,14 +65,9 @@ public final class HttpFileDownloader
             LoggerFactory.getLogger(HttpFileDownloader.class);
 
     /**
-     * Container for download data: source url and destination file name.
-     */
-    private final Map<UUID, DownloadData> files = new ConcurrentHashMap<>();
-
-    /**
-     * Container for progress status.
+     * Registry of the download tasks.
      */
-    private final Map<UUID, Progressbar> progresses = new ConcurrentHashMap<>();
+    private final TaskRegistry registry;
 
     /**
      * Message constant for wrong uuid exception.
@@ -64,54 +80,471 @@ public final class HttpFileDownloader
     private static final String DOWNLOAD_ALL_LOG_MESSAGE =
             "Starting job for id '{}' of total {} jobs, storing '{}' to '{}'";
 
+    /**
+     * Number of connections per file by default (segmented mode is off).
+     */
+    private static final int SEGMENTS_BY_DEFAULT = 1;
+
+    /**
+     * Minimal interval between progress events of a task by default.
+     */
+    private static final int PROGRESS_INTERVAL_BY_DEFAULT = 100;
+
+    /**
+     * Cache size limit in bytes by default.
+     */
+    private static final long CACHE_SIZE_BY_DEFAULT = 1024L * 1024 * 1024;
+
+    /**
+     * Http status code for full responses.
+     */
+    private static final int OK = 200;
+
+    /**
+     * Http status code for not modified responses.
+     */
+    private static final int NOT_MODIFIED = 304;
+
+    /**
+     * Lowest http status code of the error responses.
+     */
+    private static final int BAD_REQUEST = 400;
+
+    /**
+     * Aging step of the waiting downloads in milliseconds by default.
+     */
+    private static final long AGING_BY_DEFAULT = 1000;
+
+    /**
+     * Minimal hedge delay in milliseconds by default.
+     */
+    private static final long HEDGE_DELAY_BY_DEFAULT = 100;
+
+    /**
+     * Share of the requests which may be hedged by default.
+     */
+    private static final double HEDGE_BUDGET_BY_DEFAULT = 0.05;
+
+    /**
+     * Counter of the downloaders for the MBean names.
+     */
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
     /**
      * Download pool for file downloading tasks.
      */
     private final ExecutorService executor;
 
+    /**
+     * Number of parallel connections per file.
+     */
+    private final int segments;
+
+    /**
+     * Pool for the additional connections of the segmented and mirror
+     * downloads, its threads are started only by such downloads.
+     */
+    private final ExecutorService segmentPool;
+
+    /**
+     * Switch for resuming partial downloads from checkpoints.
+     */
+    private final boolean resume;
+
+    /**
+     * Dispatcher for progress events.
+     */
+    private final ProgressDispatcher dispatcher;
+
+    /**
+     * Computed checksums of the downloads with an expected checksum.
+     */
+    private final Map<UUID, String> digests = new ConcurrentHashMap<>();
+
+    /**
+     * Global bandwidth limiter, parent of the task limiters.
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * Switch for fetching duplicate in-flight sources once.
+     */
+    private final boolean coalesce;
+
+    /**
+     * Output mode of the segmented downloads.
+     */
+    private final FileSink.Mode output;
+
+    /**
+     * Switch for extending segmented downloads to their size up front.
+     */
+    private final boolean preallocate;
+
+    /**
+     * In-flight downloads by source url, guarded by its monitor.
+     */
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    /**
+     * Cache of the downloaded files, null if the cache is off.
+     */
+    private final DiskCache cache;
+
+    /**
+     * Persistent journal of the tasks, null if the journal is off.
+     */
+    private final TaskJournal journal;
+
+    /**
+     * Scheduler of the download tasks in front of the executor.
+     */
+    private final HostScheduler scheduler;
+
+    /**
+     * Connection manager shared by the download tasks.
+     */
+    private final ConnectionManager connectionManager;
+
+    /**
+     * Pool of the transfer buffers, may be shared with other downloaders.
+     */
+    private final BufferPool buffers;
+
+    /**
+     * Performance metrics of the downloads.
+     */
+    private final DownloadMetrics metrics = new DownloadMetrics();
+
+    /**
+     * Pool for the hedged requests, null if hedging is off.
+     */
+    private final ExecutorService hedgePool;
+
+    /**
+     * Hedging policy of the requests, null if hedging is off.
+     */
+    private final Hedging hedging;
+
+    /**
+     * Name of the metrics MBean, null if it is not registered.
+     */
+    private final ObjectName metricsName;
+
     /**
      * Public constructor for the Downloader.
+     * <p>
+     * Supported properties:
+     * - threads: number of parallel downloads (10 by default);
+     * - segments: number of parallel byte range connections per file,
+     * used when the server accepts ranges (1 by default, no segments),
+     * a Metalink download uses at least one connection per mirror;
+     * - resume: keep a checkpoint next to the partially downloaded file and
+     * continue it on the next download (false by default);
+     * - progressInterval: minimal interval between progress events of a
+     * task in milliseconds (100 by default);
+     * - virtualThreads: run every download on its own virtual thread instead
+     * of the threads pool, requires Java 21 or later and falls back to the
+     * pool on older runtimes (false by default);
+     * - concurrency: maximum number of the running downloads, 0 for no limit
+     * other than the threads pool (0 by default);
+     * - connectionsPerHost: maximum number of connections to the same
+     * host, 0 for no limit (0 by default). Every running download holds
+     * one, segments and hedges use the rest and are fewer when the host is
+     * busy. Waiting downloads of different hosts are started in turns;
+     * - priorityAging: time in milliseconds after which a waiting download
+     * gets ahead of newer downloads with one level higher priority (1000 by
+     * default);
+     * - connectTimeout, readTimeout: socket timeouts in milliseconds, 0 for
+     * no timeout (0 by default);
+     * - rateLimit: bandwidth budget shared by all the downloads in bytes per
+     * second, 0 for no limit (0 by default);
+     * - coalesce: fetch a source once when it is downloaded to several
+     * destinations at the same time, the other destinations get a copy of
+     * the file (true by default);
+     * - cacheDirectory: directory of the on-disk cache, downloads with ETag
+     * or Last-Modified are cached and revalidated with conditional requests
+     * (no cache by default);
+     * - cacheSize: cache size limit in bytes (1 GB by default);
+     * - output: how segments are written to the file, "positional" for
+     * positional channel writes or "mapped" for memory-mapped windows
+     * ("positional" by default);
+     * - preallocate: extend the file of a segmented download to its full
+     * size before the first write, the mapped output always does it (false
+     * by default);
+     * - journal: file of the persistent task journal. A new downloader with
+     * the same journal restores the tasks and their statuses, downloads
+     * which were running are started again (no journal by default);
+     * - registry: storage of the tasks, "map" for the maps of task objects
+     * or "compact" for primitive arrays, which take a fraction of the
+     * memory per waiting task for catalogues of millions of files ("map"
+     * by default);
+     * - jmx: register the download metrics in the platform MBean server
+     * under "org.lineate.downloader:type=HttpFileDownloader,name=N" until
+     * the downloader is closed (false by default);
+     * - bufferMemory: cap on the total size of the transfer buffers in
+     * bytes, transfers wait for a free buffer when it is reached, 0 for no
+     * limit (0 by default);
+     * - directBuffers: take the transfer buffers off the heap, the file
+     * writes skip the copy into a temporary direct buffer and the stream
+     * reads make one through the channel adapter instead (false by
+     * default);
+     * - bufferPool: {@link BufferPool} shared with other downloaders, which
+     * caps their buffers together, instead of bufferMemory and
+     * directBuffers (own pool by default);
+     * - hedge: percentile of the time to first byte of the host, from 0 to
+     * 100, after which a request without response is hedged with a second
+     * request to the alternate url of the task or to the same url, the
+     * first to start is kept, 0 for no hedging (0 by default);
+     * - hedgeDelay: minimal hedge delay in milliseconds, also used until
+     * the host has enough responses for the percentile (100 by default);
+     * - hedgeThroughput: also hedge a request which gets its first 64 KB
+     * slower than this many bytes per second, 0 for no floor (0 by
+     * default);
+     * - hedgeBudget: share of the requests which may be hedged, so that
+     * hedges do not overload a slow host (0.05 by default).
+     * </p>
      *
      * @param properties parameters for the instance customization
      */
     public HttpFileDownloader(final Properties properties) {
         int threads = THREADS_BY_DEFAULT;
+        int segmentsValue = SEGMENTS_BY_DEFAULT;
+        boolean resumeValue = false;
+        int progressInterval = PROGRESS_INTERVAL_BY_DEFAULT;
+        boolean virtualThreads = false;
+        int concurrency = 0;
+        int perHost = 0;
+        long aging = AGING_BY_DEFAULT;
+        int connectTimeout = 0;
+        int readTimeout = 0;
+        long rate = 0;
+        boolean coalesceValue = true;
+        String cacheDirectory = null;
+        long cacheSize = CACHE_SIZE_BY_DEFAULT;
+        String outputValue = FileSink.Mode.POSITIONAL.name();
+        boolean preallocateValue = false;
+        String journalFile = null;
+        String registryType = "map";
+        boolean jmx = false;
+        long bufferMemory = 0;
+        boolean directBuffers = false;
+        BufferPool pool = null;
+        double hedge = 0;
+        long hedgeDelay = HEDGE_DELAY_BY_DEFAULT;
+        long hedgeThroughput = 0;
+        double hedgeBudget = HEDGE_BUDGET_BY_DEFAULT;
         if (properties != null) {
             threads = (Integer) properties
                     .getOrDefault("threads", THREADS_BY_DEFAULT);
+            segmentsValue = (Integer) properties
+                    .getOrDefault("segments", SEGMENTS_BY_DEFAULT);
+            resumeValue = (Boolean) properties
+                    .getOrDefault("resume", false);
+            progressInterval = (Integer) properties
+                    .getOrDefault("progressInterval",
+                            PROGRESS_INTERVAL_BY_DEFAULT);
+            virtualThreads = (Boolean) properties
+                    .getOrDefault("virtualThreads", false);
+            concurrency = (Integer) properties
+                    .getOrDefault("concurrency", 0);
+            perHost = (Integer) properties
+                    .getOrDefault("connectionsPerHost", 0);
+            aging = ((Number) properties.getOrDefault("priorityAging", aging))
+                    .longValue();
+            connectTimeout = (Integer) properties
+                    .getOrDefault("connectTimeout", 0);
+            readTimeout = (Integer) properties
+                    .getOrDefault("readTimeout", 0);
+            rate = ((Number) properties.getOrDefault("rateLimit", rate))
+                    .longValue();
+            coalesceValue = (Boolean) properties
+                    .getOrDefault("coalesce", true);
+            cacheDirectory = (String) properties.get("cacheDirectory");
+            cacheSize = ((Number) properties
+                    .getOrDefault("cacheSize", cacheSize)).longValue();
+            outputValue = (String) properties
+                    .getOrDefault("output", outputValue);
+            preallocateValue = (Boolean) properties
+                    .getOrDefault("preallocate", false);
+            journalFile = (String) properties.get("journal");
+            registryType = (String) properties
+                    .getOrDefault("registry", registryType);
+            jmx = (Boolean) properties.getOrDefault("jmx", false);
+            bufferMemory = ((Number) properties
+                    .getOrDefault("bufferMemory", bufferMemory)).longValue();
+            directBuffers = (Boolean) properties
+                    .getOrDefault("directBuffers", false);
+            pool = (BufferPool) properties.get("bufferPool");
+            hedge = ((Number) properties.getOrDefault("hedge", hedge))
+                    .doubleValue();
+            hedgeDelay = ((Number) properties
+                    .getOrDefault("hedgeDelay", hedgeDelay)).longValue();
+            hedgeThroughput = ((Number) properties
+                    .getOrDefault("hedgeThroughput", hedgeThroughput))
+                    .longValue();
+            hedgeBudget = ((Number) properties
+                    .getOrDefault("hedgeBudget", hedgeBudget)).doubleValue();
+        }
+
+        if (virtualThreads && !VirtualThreads.supported()) {
+            LOGGER.warn("Virtual threads are not supported by the runtime, "
+                    + "using pool of {} threads", threads);
+            virtualThreads = false;
         }
 
-        executor = Executors.newFixedThreadPool(threads);
+        executor = virtualThreads
+                ? VirtualThreads.newExecutor()
+                : Executors.newFixedThreadPool(threads);
+        segments = Math.max(segmentsValue, SEGMENTS_BY_DEFAULT);
+        segmentPool = virtualThreads
+                ? VirtualThreads.newExecutor()
+                : Executors.newCachedThreadPool();
+        if (!virtualThreads && (concurrency < 1 || concurrency > threads)) {
+            concurrency = threads;
+        }
+        scheduler = new HostScheduler(executor, concurrency, perHost, aging);
+        rateLimiter = new RateLimiter(rate, null);
+        coalesce = coalesceValue;
+        output = FileSink.Mode.of(outputValue);
+        preallocate = preallocateValue;
+        buffers = pool == null
+                ? new BufferPool(bufferMemory, directBuffers) : pool;
+        cache = cacheDirectory == null
+                ? null : openCache(new File(cacheDirectory), cacheSize);
+        connectionManager = new ConnectionManager(connectTimeout, readTimeout);
+        if (hedge > 0) {
+            hedgePool = virtualThreads
+                    ? VirtualThreads.newExecutor()
+                    : Executors.newCachedThreadPool();
+            hedging = new Hedging(hedge, hedgeDelay, hedgeThroughput,
+                    hedgeBudget, metrics, connectionManager, scheduler,
+                    hedgePool);
+        } else {
+            hedgePool = null;
+            hedging = null;
+        }
+        resume = resumeValue;
+        dispatcher = new ProgressDispatcher(progressInterval);
+        registry = "compact".equals(registryType)
+                ? new CompactRegistry(dispatcher, rateLimiter)
+                : new MapRegistry(dispatcher, rateLimiter);
+        journal = journalFile == null ? null : openJournal(journalFile);
+        metricsName = jmx ? registerMetrics(metrics) : null;
+        if (journal != null) {
+            List<UUID> interrupted = restore(journal);
+            dispatcher.subscribe(journal);
+            for (UUID uuid : interrupted) {
+                LOGGER.info("Restarting interrupted download {}", uuid);
+                download(uuid);
+            }
+        }
     }
 
     @Override
     public UUID create(final String sourceUri,
                        final String destinationFilePath) {
-        UUID uuid = UUID.randomUUID();
-        files.put(uuid, new DownloadData(sourceUri, destinationFilePath));
-        progresses.put(uuid, new Progressbar(0, 0, DownloadStatus.NOT_STARTED));
+        return create(new DownloadData(sourceUri, destinationFilePath));
+    }
+
+    /**
+     * Creates task for download with the task options.
+     *
+     * @param data source url, destination file name and task options
+     * @return generated UUID for the download
+     */
+    public UUID create(final DownloadData data) {
+        UUID uuid = TaskIds.next();
+        register(uuid, data);
         return uuid;
     }
 
+    /**
+     * Creates task for download of a file from the mirrors of its
+     * Metalink. The pieces are fetched from the mirrors in parallel and
+     * checked with the piece hashes, a corrupt piece is fetched again from
+     * another mirror. The file hash of the Metalink, if any, is checked
+     * after the download.
+     *
+     * @param metalink mirrors and hashes of the file
+     * @param destinationFilePath destination file name
+     * @return generated UUID for the download
+     */
+    public UUID create(final Metalink metalink,
+                       final String destinationFilePath) {
+        DownloadData data = new DownloadData(metalink.getUrls().get(0),
+                destinationFilePath).withMetalink(metalink);
+        if (metalink.getChecksum() != null) {
+            data = data.withChecksum(metalink.getChecksumAlgorithm(),
+                    metalink.getChecksum());
+        }
+        return create(data);
+    }
+
+    /**
+     * Creates tasks for download in one pass, for big batches. The ids are
+     * time-ordered and generated without a shared random source.
+     *
+     * @param data source urls, destination file names and task options
+     * @return generated UUIDs in the order of the data
+     */
+    public List<UUID> createAll(final Collection<DownloadData> data) {
+        List<UUID> ids = new ArrayList<>(data.size());
+        for (DownloadData item : data) {
+            UUID uuid = TaskIds.next();
+            register(uuid, item);
+            ids.add(uuid);
+        }
+        return ids;
+    }
+
+    private void register(final UUID uuid, final DownloadData data) {
+        registry.add(uuid, data);
+        if (journal != null) {
+            journal.created(uuid, data);
+        }
+    }
+
     @Override
     public void remove(final UUID id) {
-        files.remove(id);
-        progresses.remove(id);
+        if (registry.remove(id) && journal != null) {
+            journal.removed(id);
+        }
+        digests.remove(id);
     }
 
-    @Override
-    public DownloadStatus getStatus(final UUID id) {
-        Progressbar progress = progresses.get(id);
-        if (progress == null) {
+    /**
+     * Changes bandwidth budget shared by all the downloads, applies to the
+     * running downloads too.
+     *
+     * @param bytesPerSecond maximum total rate, 0 for no limit
+     */
+    public void setRateLimit(final long bytesPerSecond) {
+        rateLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Changes bandwidth cap of the download, applies to the running
+     * download too.
+     *
+     * @param id download UUID
+     * @param bytesPerSecond maximum rate of the download, 0 for no limit
+     */
+    public void setRateLimit(final UUID id, final long bytesPerSecond) {
+        if (!registry.setRateLimit(id, bytesPerSecond)) {
             throw new IllegalUuidException(WRONG_UUID_MESSAGE + id);
         }
-        return progress.getStatus();
+    }
+
+    @Override
+    public DownloadStatus getStatus(final UUID id) {
+        return snapshot(id).getStatus();
     }
 
     @Override
     public Future<File> download(final UUID id) {
 
-        DownloadData names = files.get(id);
+        DownloadData names = registry.pending(id);
         if (names == null) {
             throw new BadUrlException("Unknown process id '" + id + "'");
         } else {
@@ -121,10 +554,9 @@ public final class HttpFileDownloader
         }
 
         try {
-            return executor
-                    .submit(new DownloadTask(id,
-                            new URL(names.getSourceUri()),
-                            new File(names.getLocalFile())));
+            return submit(new DownloadTask(id,
+                    new URL(names.getSourceUri()),
+                    new File(names.getLocalFile())), names);
         } catch (MalformedURLException ex) {
             throw new BadUrlException(ex.getLocalizedMessage());
         }
@@ -133,113 +565,279 @@ public final class HttpFileDownloader
 
     @Override
     public List<Future<File>> downloadAll() throws InterruptedException {
-        List<DownloadTask> tasks = new ArrayList<>();
-        files.forEach((id, names) -> {
+        Map<DownloadTask, DownloadData> tasks = new LinkedHashMap<>();
+        int pending = registry.pendingCount();
+        registry.forEachPending((id, names) -> {
             try {
                 LOGGER.info(DOWNLOAD_ALL_LOG_MESSAGE,
                         id,
-                        files.size(),
+                        pending,
                         names.getSourceUri(),
                         names.getLocalFile());
 
-                tasks.add(new DownloadTask(id,
+                tasks.put(new DownloadTask(id,
                         new URL(names.getSourceUri()),
-                        new File(names.getLocalFile())));
+                        new File(names.getLocalFile())), names);
 
             } catch (MalformedURLException ex) {
                 ex.printStackTrace();
                 throw new BadUrlException(ex.getLocalizedMessage());
             }
         });
-        return executor.invokeAll(tasks);
+        List<Future<File>> results = new ArrayList<>();
+        tasks.forEach((task, names) -> results.add(submit(task, names)));
+        for (Future<File> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException ex) {
+                // the failure is returned with the task
+            }
+        }
+        return results;
     }
 
     @Override
     public boolean downloaded(final UUID uuid) {
-        return progresses.get(uuid).getStatus() == DownloadStatus.FINISHED;
+        return getStatus(uuid) == DownloadStatus.FINISHED;
     }
 
     @Override
     public boolean downloading(final UUID uuid) {
-        return progresses.get(uuid).getStatus() == DownloadStatus.DOWNLOADING;
+        return getStatus(uuid) == DownloadStatus.DOWNLOADING;
     }
 
     @Override
     public boolean failed(final UUID uuid) {
-        return progresses.get(uuid).getStatus() == DownloadStatus.FAILED;
+        return getStatus(uuid) == DownloadStatus.FAILED;
     }
 
     @Override
     public byte getProgress(final UUID uuid) {
-        Progressbar progressbar = progresses.getOrDefault(uuid, null);
-        if (progressbar == null) {
-            throw new IllegalUuidException(WRONG_UUID_MESSAGE + uuid);
-        }
-        return progressbar.getPercentage();
+        return snapshot(uuid).getPercentage();
     }
 
     @Override
     public long getProgressBytes(final UUID uuid) {
-        Progressbar progressbar = progresses.getOrDefault(uuid, null);
-        if (progressbar == null) {
-            throw new IllegalUuidException(WRONG_UUID_MESSAGE + uuid);
-        }
-        return  progressbar.getDownloaded();
+        return snapshot(uuid).getDownloaded();
     }
 
     @Override
     public Set<UUID> getDownloads() {
-        return progresses.keySet();
+        return registry.ids();
+    }
+
+    @Override
+    public void subscribe(final ProgressListener listener) {
+        dispatcher.subscribe(listener);
+    }
+
+    @Override
+    public void unsubscribe(final ProgressListener listener) {
+        dispatcher.unsubscribe(listener);
+    }
+
+    /**
+     * Returns share of the requests sent while the JDK should have had an
+     * idle connection to their host, which saves a connect and a TLS
+     * handshake. The JDK does not report the reuse itself, so this is an
+     * upper bound of it.
+     *
+     * @return warm rate from 0 to 1
+     */
+    public double getWarmConnectionRate() {
+        return connectionManager.getWarmRate();
+    }
+
+    /**
+     * Returns pool of the transfer buffers.
+     *
+     * @return buffer pool
+     */
+    public BufferPool getBufferPool() {
+        return buffers;
+    }
+
+    /**
+     * Returns performance metrics of the downloads: queue wait, time to
+     * first byte, throughput and failures, in total and per host.
+     *
+     * @return metrics, always on
+     */
+    public DownloadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns checksum computed during the download, for the downloads
+     * created with an expected checksum.
+     *
+     * @param id download UUID
+     * @return lower case hex string, null if it is not computed yet
+     */
+    public String getDigest(final UUID id) {
+        return digests.get(id);
+    }
+
+    /**
+     * Returns cache of the downloaded files.
+     *
+     * @return cache, null if the cache is off
+     */
+    public DiskCache getCache() {
+        return cache;
     }
 
     @Override
     public String getSource(final UUID uuid) {
-        if (files.containsKey(uuid)) {
-            DownloadData names = files.get(uuid);
-            if (names != null) {
-                return files.get(uuid).getSourceUri();
-            }
-            throw new IllegalUuidException("No data found for uuid: " + uuid);
+        DownloadData names = registry.pending(uuid);
+        if (names != null) {
+            return names.getSourceUri();
         }
         throw new IllegalUuidException(WRONG_UUID_MESSAGE + uuid);
     }
 
     @Override
     public String getDestination(final UUID uuid) {
-        if (files.containsKey(uuid)) {
-            DownloadData names = files.get(uuid);
-            if (names != null) {
-                return files.get(uuid).getLocalFile();
-            }
-            throw new IllegalUuidException("No data found for uuid: " + uuid);
+        DownloadData names = registry.pending(uuid);
+        if (names != null) {
+            return names.getLocalFile();
         }
         throw new IllegalUuidException(WRONG_UUID_MESSAGE + uuid);
     }
 
+    private Progressbar snapshot(final UUID uuid) {
+        Progressbar progress = registry.snapshot(uuid);
+        if (progress == null) {
+            throw new IllegalUuidException(WRONG_UUID_MESSAGE + uuid);
+        }
+        return progress;
+    }
+
     @Override
     public void close() throws InterruptedException {
-        files.clear();
-        progresses.clear();
+        registry.clear();
+        digests.clear();
 
+        scheduler.awaitIdle();
         executor.shutdown();
         if (!executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
             throw new RuntimeException("Thread pool termination error.");
         } else {
-            LOGGER.info("Downloader closed.");
+            LOGGER.info("Downloader closed, warm requests: {}, cold: {}",
+                    connectionManager.getWarm(),
+                    connectionManager.getCold());
+        }
+        segmentPool.shutdown();
+        if (hedgePool != null) {
+            hedgePool.shutdown();
+        }
+        if (journal != null) {
+            dispatcher.unsubscribe(journal);
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                LOGGER.error("Unable to close journal", ex);
+            }
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(metricsName);
+            } catch (JMException ex) {
+                LOGGER.error("Unable to unregister {}", metricsName, ex);
+            }
         }
     }
 
-    private final class DownloadTask implements Callable<File> {
+    private static ObjectName registerMetrics(final DownloadMetrics value) {
+        try {
+            ObjectName name = new ObjectName("org.lineate.downloader:"
+                    + "type=HttpFileDownloader,name="
+                    + INSTANCES.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(value, name);
+            return name;
+        } catch (JMException ex) {
+            LOGGER.error("Unable to register metrics MBean, jmx is off", ex);
+            return null;
+        }
+    }
 
-        /**
-         * Buffer size for output data writing.
-         */
-        private static final int BUFFER_SIZE = 1024 * 1024;
+    private static TaskJournal openJournal(final String file) {
+        try {
+            return new TaskJournal(new File(file));
+        } catch (IOException ex) {
+            LOGGER.error("Unable to open journal '{}', journal is off",
+                    file, ex);
+            return null;
+        }
+    }
 
-        /**
-         * Block size to store read data.
-         */
-        private static final int BLOCK_SIZE = 10240;
+    /**
+     * Restores the journaled tasks.
+     *
+     * @return ids of the downloads which were running
+     */
+    private List<UUID> restore(final TaskJournal tasks) {
+        List<UUID> interrupted = new ArrayList<>();
+        for (TaskJournal.Task task : tasks.tasks()) {
+            UUID uuid = task.getId();
+            DownloadStatus status = task.getStatus();
+            registry.add(uuid, task.getData());
+            if (status == DownloadStatus.DOWNLOADING) {
+                interrupted.add(uuid);
+            } else if (status != DownloadStatus.NOT_STARTED) {
+                // a failed download is restored without its bytes
+                long bytes = status == DownloadStatus.FAILED
+                        ? 0 : task.getDownloaded();
+                registry.restore(uuid, new Progressbar(
+                        status == DownloadStatus.FAILED ? 0 : task.getSize(),
+                        bytes, status));
+            }
+            if (status == DownloadStatus.FINISHED) {
+                registry.finished(uuid);
+            }
+        }
+        return interrupted;
+    }
+
+    private static DiskCache openCache(final File directory,
+                                       final long size) {
+        try {
+            return new DiskCache(directory, size);
+        } catch (IOException ex) {
+            LOGGER.error("Unable to open cache '{}', cache is off",
+                    directory, ex);
+            return null;
+        }
+    }
+
+    private Future<File> submit(final DownloadTask task,
+                                final DownloadData names) {
+        if (coalesce && names.getChecksum() == null
+                && names.getExtractDirectory() == null) {
+            synchronized (flights) {
+                Flight flight = flights.get(names.getSourceUri());
+                if (flight != null) {
+                    LOGGER.info("Joining in-flight download of '{}'",
+                            names.getSourceUri());
+                    return flight.follow(task);
+                }
+                task.flight = new Flight(names.getSourceUri(), task);
+                flights.put(names.getSourceUri(), task.flight);
+            }
+        }
+        Long deadline = null;
+        if (names.getDeadline() != null) {
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                    names.getDeadline().toEpochMilli()
+                            - System.currentTimeMillis());
+        }
+        return scheduler.submit(task.targetUrl, names.getPriority(),
+                deadline, task);
+    }
+
+    private final class DownloadTask implements Callable<File> {
 
         /**
          * Field for storing source {@link URL} object.
@@ -256,53 +854,280 @@ public final class HttpFileDownloader
          */
         private final UUID uuid;
 
+        /**
+         * Progress record of the task.
+         */
+        private final DownloadProgress progressbar;
+
+        /**
+         * Bandwidth limiter of the task.
+         */
+        private final RateLimiter limiter;
+
+        /**
+         * In-flight download led by the task, null if coalescing is off.
+         */
+        private Flight flight;
+
+        /**
+         * Digest algorithm of the expected checksum, may be null.
+         */
+        private final String checksumAlgorithm;
+
+        /**
+         * Expected checksum, null if the download is not verified.
+         */
+        private final String checksum;
+
+        /**
+         * Directory for the extracted archive, null if not extracted.
+         */
+        private final File extractDirectory;
+
+        /**
+         * Whether the extracted archive is saved to the destination.
+         */
+        private final boolean keepArchive;
+
+        /**
+         * Whether the progress record is acquired from the registry.
+         */
+        private final boolean registered;
+
+        /**
+         * Host key of the source for the metrics.
+         */
+        private final String host;
+
+        /**
+         * Url for the hedged requests, null for the source url.
+         */
+        private final URL alternate;
+
+        /**
+         * Mirrors and piece hashes of the file, null for a single source.
+         */
+        private final Metalink metalink;
+
+        /**
+         * Time of the task creation in nanoseconds, the task is submitted
+         * right after it.
+         */
+        private final long queued = System.nanoTime();
+
+        /**
+         * Time of the task start in nanoseconds.
+         */
+        private long started;
+
         DownloadTask(final UUID uuidValue,
                      final URL targetUrlValue,
-                     final File destinationValue) {
+                     final File destinationValue)
+                throws MalformedURLException {
             this.uuid = uuidValue;
             this.targetUrl = targetUrlValue;
             this.destination = destinationValue;
+            this.host = HostScheduler.host(targetUrlValue);
+            DownloadProgress acquired = registry.acquire(uuidValue);
+            this.registered = acquired != null;
+            this.progressbar = registered ? acquired : new DownloadProgress();
+            RateLimiter taskLimiter = registry.limiter(uuidValue);
+            this.limiter = taskLimiter == null ? rateLimiter : taskLimiter;
+            DownloadData names = registry.pending(uuidValue);
+            this.checksumAlgorithm =
+                    names == null ? null : names.getChecksumAlgorithm();
+            this.checksum = names == null ? null : names.getChecksum();
+            this.extractDirectory = names == null
+                    || names.getExtractDirectory() == null
+                    ? null : new File(names.getExtractDirectory());
+            this.keepArchive = names != null && names.isKeepArchive();
+            this.alternate = names == null || names.getAlternateUri() == null
+                    ? null : new URL(names.getAlternateUri());
+            this.metalink = names == null ? null : names.getMetalink();
         }
 
         @Override
         public File call() throws IOException {
+            started = System.nanoTime();
+            metrics.started(host, started - queued);
+            try {
+                return load();
+            } finally {
+                metrics.ended(host);
+                if (flight != null) {
+                    flight.land();
+                }
+                release();
+            }
+        }
 
-            final URLConnection request = this.targetUrl.openConnection();
+        private void release() {
+            if (registered) {
+                registry.release(uuid);
+            }
+        }
 
-            try (InputStream inputStream = request.getInputStream();
-                 FileOutputStream fileStream =
-                         new FileOutputStream(this.destination);
-                 BufferedOutputStream outputStream =
-                         new BufferedOutputStream(fileStream, BUFFER_SIZE)) {
+        private File load() throws IOException {
 
-                final byte[] data = new byte[BLOCK_SIZE];
-                int bytesRead;
-                int progress = 0;
-                long targetSize = request.getContentLengthLong();
+            URLConnection request = connectionManager.open(this.targetUrl);
+            // extraction can not continue in the middle of an archive,
+            // mirror pieces are not recorded in a checkpoint
+            final boolean resumable = resume && extractDirectory == null
+                    && metalink == null;
+            final Checkpoint previous = resumable
+                    ? Checkpoint.load(this.destination, this.targetUrl) : null;
+            if (previous != null) {
+                previous.request(request);
+            }
+            final DiskCache.Entry cached = cache != null && previous == null
+                    && extractDirectory == null
+                    && request instanceof HttpURLConnection
+                    ? cache.lookup(this.targetUrl.toString()) : null;
+            if (cached != null) {
+                revalidate(request, cached);
+            }
 
-                LOGGER.info("Fetching from uri: '{}' to file '{}'",
-                        this.targetUrl.getPath(), this.destination.getPath());
+            try {
+                Hedging.Response response = send(request);
+                request = response.connection();
+                final MessageDigest digest = checksum == null
+                        ? null : MessageDigest.getInstance(checksumAlgorithm);
 
-                while ((bytesRead = inputStream.read(data)) != -1) {
-                    progress += bytesRead;
+                long size = -1;
+                if (cached != null && ((HttpURLConnection) request)
+                        .getResponseCode() == NOT_MODIFIED) {
+                    long firstByte = System.nanoTime() - started;
+                    size = cache.materialize(cached, this.destination);
+                    connectionManager.release(request);
+                    if (size < 0) {
+                        // evicted after the lookup, the 304 has no body
+                        LOGGER.info("Cached '{}' was evicted, fetching it "
+                                + "again", this.targetUrl);
+                        request = connectionManager.open(this.targetUrl);
+                        response = send(request);
+                        request = response.connection();
+                    } else {
+                        metrics.firstByte(host, firstByte);
+                        LOGGER.info("Took not modified '{}' from cache",
+                                this.targetUrl);
+                    }
+                }
+                if (size >= 0) {
+                    progressbar.start(size);
+                    if (flight != null) {
+                        flight.start(size);
+                    }
+                    progressbar.set(size);
+                    if (digest != null) {
+                        Checksums.update(digest, this.destination, size);
+                    }
+                    complete(verify(digest), 0);
+                    return this.destination;
+                }
 
-                    progresses.replace(uuid, new Progressbar(targetSize,
-                                    progress,
-                                    DownloadStatus.DOWNLOADING));
+                Checkpoint checkpoint = null;
+                boolean resumed = previous != null && previous.resumed(request);
+                if (previous != null && !resumed && !full(request)) {
+                    // another range, e.g. If-Range ignored after a change,
+                    // or 416 for a complete file, does not start the file
+                    LOGGER.info("Unable to resume '{}', fetching it again",
+                            this.destination.getPath());
+                    skip((HttpURLConnection) request);
+                    previous.delete();
+                    request = connectionManager.open(this.targetUrl);
+                    response = send(request);
+                    request = response.connection();
+                }
+                if (resumed) {
+                    checkpoint = previous;
+                    LOGGER.info("Resuming '{}' from {} bytes",
+                            this.destination.getPath(), previous.prefix());
+                } else if (resumable && full(request)) {
+                    checkpoint = Checkpoint.create(this.destination,
+                            this.targetUrl, request);
+                }
 
-                    outputStream.write(data, 0, bytesRead);
+                long targetSize = resumed
+                        ? checkpoint.size() : request.getContentLengthLong();
+                responded(request);
+                final long present = resumed ? checkpoint.prefix() : 0;
+                long progress;
+                progressbar.start(targetSize);
+                if (flight != null) {
+                    flight.start(targetSize);
                 }
 
-                files.remove(uuid);
-                progresses.replace(uuid,
-                        new Progressbar(targetSize,
-                                progress,
-                                DownloadStatus.FINISHED));
+                LOGGER.info("Fetching from uri: '{}' to file '{}'",
+                        this.targetUrl.getPath(), this.destination.getPath());
+
+                // segments arrive out of order, checksum and extraction
+                // need one stream
+                if (extractDirectory != null) {
+                    progress = extract(response, targetSize, digest);
+                } else if (metalink != null
+                        && MirrorDownload.supported(request, targetSize)) {
+                    int extra = scheduler.lease(this.targetUrl,
+                            segments - 1);
+                    try {
+                        progress = new MirrorDownload(metalink,
+                                this.destination,
+                                targetSize,
+                                1 + extra,
+                                segmentPool,
+                                connectionManager,
+                                limiter,
+                                progressbar)
+                                .output(output, preallocate)
+                                .buffers(buffers)
+                                .fetch(response);
+                    } finally {
+                        scheduler.unlease(this.targetUrl, extra);
+                    }
+                    if (digest != null) {
+                        Checksums.update(digest, this.destination, progress);
+                    }
+                } else if (segments > SEGMENTS_BY_DEFAULT && digest == null
+                        && (resumed
+                        || SegmentedDownload.supported(request,
+                        SegmentedDownload.MIN_SEGMENT_SIZE))) {
+                    int extra = scheduler.lease(this.targetUrl,
+                            segments - 1);
+                    try {
+                        progress = new SegmentedDownload(this.targetUrl,
+                                this.destination,
+                                targetSize,
+                                1 + extra,
+                                SegmentedDownload.MIN_SEGMENT_SIZE,
+                                segmentPool,
+                                connectionManager,
+                                limiter,
+                                progressbar)
+                                .output(output, preallocate)
+                                .buffers(buffers)
+                                .fetch(response, checkpoint);
+                    } finally {
+                        scheduler.unlease(this.targetUrl, extra);
+                    }
+                } else {
+                    progress = fetch(response, targetSize, checkpoint,
+                            digest);
+                }
+
+                if (checkpoint != null) {
+                    checkpoint.delete();
+                }
+                progressbar.set(progress);
+                boolean verified = verify(digest);
+                if (cache != null && verified && extractDirectory == null) {
+                    store(request);
+                }
+                complete(verified, progress - present);
 
             } catch (Exception exception) {
 
-                progresses.replace(uuid,
-                        new Progressbar(0, 0, DownloadStatus.FAILED));
+                metrics.failed(host);
+                progressbar.fail();
+                connectionManager.discard(request);
 
                 exception.printStackTrace();
             }
@@ -310,6 +1135,285 @@ public final class HttpFileDownloader
             return this.destination;
 
         }
+
+        /**
+         * Records time to first byte once the response has arrived.
+         *
+         * @throws IOException if there is no response
+         */
+        private void responded(final URLConnection request)
+                throws IOException {
+            if (request instanceof HttpURLConnection) {
+                // header getters hide connect errors, this one throws them
+                ((HttpURLConnection) request).getResponseCode();
+            }
+            metrics.firstByte(host, System.nanoTime() - started);
+        }
+
+        /**
+         * Finishes downloaded file, or marks it as failed verification.
+         */
+        private void complete(final boolean verified, final long received) {
+            if (!verified) {
+                LOGGER.error("Checksum of '{}' is {}, expected {}",
+                        this.destination, digests.get(uuid), checksum);
+                metrics.failed(host);
+                progressbar.failVerification();
+                return;
+            }
+            metrics.finished(host, received, System.nanoTime() - started);
+            registry.finished(uuid);
+            progressbar.finish();
+        }
+
+        private boolean verify(final MessageDigest digest) {
+            if (digest == null) {
+                return true;
+            }
+            String computed = Checksums.hex(digest.digest());
+            digests.put(uuid, computed);
+            return computed.equals(checksum);
+        }
+
+        /**
+         * Checks if the response is the whole file from its first byte.
+         */
+        private boolean full(final URLConnection response)
+                throws IOException {
+            return !(response instanceof HttpURLConnection)
+                    || ((HttpURLConnection) response).getResponseCode() == OK;
+        }
+
+        /**
+         * Drops response which is not used. An error body is drained, so
+         * the socket may be kept alive; a partial body may be the rest of
+         * a big file and its socket is closed.
+         */
+        private void skip(final HttpURLConnection response)
+                throws IOException {
+            if (response.getResponseCode() >= BAD_REQUEST) {
+                connectionManager.discard(response);
+            } else {
+                response.disconnect();
+            }
+        }
+
+        private Hedging.Response send(final URLConnection request)
+                throws IOException {
+            return hedging == null ? new Hedging.Response(request)
+                    : hedging.send(request, alternate, host);
+        }
+
+        private void revalidate(final URLConnection request,
+                                final DiskCache.Entry cached) {
+            if (cached.getEtag() != null) {
+                request.setRequestProperty("If-None-Match",
+                        cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                request.setRequestProperty("If-Modified-Since",
+                        cached.getLastModified());
+            }
+        }
+
+        private void store(final URLConnection request) {
+            try {
+                cache.store(this.targetUrl.toString(), this.destination,
+                        request.getHeaderField("ETag"),
+                        request.getHeaderField("Last-Modified"));
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to cache '{}'", this.targetUrl, ex);
+            }
+        }
+
+        private long extract(final Hedging.Response response,
+                             final long targetSize,
+                             final MessageDigest digest) throws IOException {
+            final long progress;
+            try (InputStream inputStream = digest == null
+                    ? response.body()
+                    : new DigestInputStream(response.body(), digest);
+                 FileChannel archive = keepArchive ? FileChannel.open(
+                         this.destination.toPath(),
+                         StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING) : null) {
+
+                LOGGER.info("Extracting '{}' to '{}'", this.targetUrl,
+                        this.extractDirectory.getPath());
+                progress = ArchiveExtractor.extract(inputStream,
+                        this.extractDirectory, this.destination.getName(),
+                        archive, limiter, progressbar::set);
+
+                if (targetSize >= 0 && progress != targetSize) {
+                    throw new IOException("Unexpected end of stream at "
+                            + progress + " of " + targetSize + " bytes");
+                }
+            }
+            // the body is read to its end and closed
+            connectionManager.release(response.connection());
+            return progress;
+        }
+
+        private long fetch(final Hedging.Response response,
+                           final long targetSize,
+                           final Checkpoint checkpoint,
+                           final MessageDigest digest) throws IOException {
+            final long offset = checkpoint == null ? 0 : checkpoint.prefix();
+            final long[] saved = {offset};
+            if (digest != null && offset > 0) {
+                Checksums.update(digest, this.destination, offset);
+            }
+            final long progress;
+
+            try (InputStream inputStream = digest == null
+                    ? response.body()
+                    : new DigestInputStream(response.body(), digest);
+                 FileChannel channel = FileChannel.open(
+                         this.destination.toPath(),
+                         StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE)) {
+
+                channel.truncate(offset);
+
+                IoSizing sizing = IoSizing.forLength(
+                        targetSize < 0 ? -1 : targetSize - offset);
+                progress = offset + ChannelTransfer.transfer(inputStream,
+                        channel, offset, limiter, sizing, buffers,
+                        (transferred) -> {
+                            long total = offset + transferred;
+
+                            progressbar.set(total);
+
+                            long unsaved = total - saved[0];
+                            if (checkpoint != null
+                                    && unsaved >= Checkpoint.INTERVAL) {
+                                checkpoint.truncate(total);
+                                checkpoint.save();
+                                saved[0] = total;
+                            }
+                        });
+
+                if (targetSize >= 0 && progress != targetSize) {
+                    throw new IOException("Unexpected end of stream at "
+                            + progress + " of " + targetSize + " bytes");
+                }
+            } finally {
+                long committed = this.destination.length();
+                if (checkpoint != null && committed < targetSize) {
+                    checkpoint.truncate(committed);
+                    checkpoint.save();
+                }
+            }
+            // the body is read to its end and closed
+            connectionManager.release(response.connection());
+            return progress;
+        }
     }
 
+    /**
+     * Download of a source shared by the tasks with the same source url.
+     * The leading task fetches the file, the following tasks show its
+     * progress, wait for it and copy the file to their destinations.
+     */
+    private final class Flight {
+
+        /**
+         * Source url of the download.
+         */
+        private final String source;
+
+        /**
+         * Task which fetches the file.
+         */
+        private final DownloadTask leader;
+
+        /**
+         * Following tasks with their results.
+         */
+        private final Map<DownloadTask, CompletableFuture<File>> followers =
+                new LinkedHashMap<>();
+
+        /**
+         * Size of the file, null until the leading task has started.
+         */
+        private Long size;
+
+        Flight(final String sourceValue, final DownloadTask leaderValue) {
+            this.source = sourceValue;
+            this.leader = leaderValue;
+        }
+
+        /**
+         * Adds following task, must be called under the flights monitor.
+         *
+         * @param task following task
+         * @return result of the task
+         */
+        Future<File> follow(final DownloadTask task) {
+            CompletableFuture<File> result = new CompletableFuture<>();
+            followers.put(task, result);
+            if (size != null) {
+                task.progressbar.start(size);
+            }
+            leader.progressbar.addFollower(task.progressbar);
+            return result;
+        }
+
+        /**
+         * Marks following tasks as started.
+         *
+         * @param sizeValue size of the file, negative if unknown
+         */
+        void start(final long sizeValue) {
+            synchronized (flights) {
+                size = sizeValue;
+                followers.keySet().forEach(
+                        (task) -> task.progressbar.start(sizeValue));
+            }
+        }
+
+        /**
+         * Completes following tasks after the leading task.
+         */
+        void land() {
+            synchronized (flights) {
+                flights.remove(source, this);
+            }
+            followers.keySet().forEach((task) ->
+                    leader.progressbar.removeFollower(task.progressbar));
+            boolean fetched =
+                    leader.progressbar.getStatus() == DownloadStatus.FINISHED;
+            followers.forEach((task, result) -> {
+                if (fetched) {
+                    copy(task);
+                } else {
+                    task.progressbar.fail();
+                }
+                task.release();
+                result.complete(task.destination);
+            });
+        }
+
+        private void copy(final DownloadTask task) {
+            try {
+                if (!task.destination.equals(leader.destination)) {
+                    Files.copy(leader.destination.toPath(),
+                            task.destination.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+                if (task.progressbar.getStatus()
+                        != DownloadStatus.DOWNLOADING) {
+                    task.progressbar.start(leader.progressbar.getSize());
+                }
+                task.progressbar.set(leader.progressbar.getDownloaded());
+                registry.finished(task.uuid);
+                task.progressbar.finish();
+            } catch (IOException ex) {
+                LOGGER.error("Failed to copy '{}' to '{}'",
+                        leader.destination, task.destination, ex);
+                task.progressbar.fail();
+            }
+        }
+    }
 }
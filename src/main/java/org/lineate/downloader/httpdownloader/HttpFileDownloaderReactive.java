@@ -3,37 +3,61 @@ package org.lineate.downloader.httpdownloader;
 import org.lineate.downloader.Downloader;
 import org.lineate.downloader.exceptions.IllegalUuidException;
 import org.lineate.downloader.progressbar.DownloadStatus;
-import org.lineate.downloader.progressbar.Progressbar;
+import org.lineate.downloader.progressbar.DownloadProgress;
+import org.lineate.downloader.progressbar.ProgressDispatcher;
+import org.lineate.downloader.progressbar.ProgressEvent;
+import org.lineate.downloader.progressbar.ProgressListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuples;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
+/**
+ * Reactive implementation of the {@link Downloader}.
+ * <p>
+ * Downloads are lazy: nothing is fetched until the returned publisher is
+ * subscribed. Response body is read block by block on demand and written
+ * with asynchronous file i/o, so a transfer waiting for the disk or for
+ * the subscriber does not hold a thread.
+ * </p>
+ * <p>
+ * Reads of the response bodies block a worker of the scheduler, so at
+ * most {@code threads} bodies are read at once. A stalled socket holds
+ * its worker until the read timeout of one minute fails the transfer.
+ * </p>
+ */
 public final class HttpFileDownloaderReactive
-        implements Downloader<Mono<Future<File>>, Flux<Future<File>>> {
+        implements Downloader<Mono<File>, Flux<DownloadResult>> {
 
     /**
      * Thread pool capacity by default.
      */
     private static final int THREADS_BY_DEFAULT = 10;
 
+    /**
+     * Minimal interval between progress events of a task by default.
+     */
+    private static final int PROGRESS_INTERVAL_BY_DEFAULT = 100;
+
+    /**
+     * Read timeout of the connections in milliseconds, a stalled socket
+     * would hold a worker of the scheduler forever without it.
+     */
+    private static final int READ_TIMEOUT_BY_DEFAULT = 60_000;
+
     /**
      * Default class logger.
      */
@@ -48,18 +72,40 @@ public final class HttpFileDownloaderReactive
     /**
      * Container for progress status.
      */
-    private final Map<UUID, Progressbar> progresses = new ConcurrentHashMap<>();
+    private final Map<UUID, DownloadProgress> progresses =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Scheduler for the blocking connects and reads.
+     */
+    private final Scheduler scheduler;
+
+    /**
+     * Connection manager shared by the downloads.
+     */
+    private final ConnectionManager connectionManager =
+            new ConnectionManager(0, READ_TIMEOUT_BY_DEFAULT);
+
+    /**
+     * Pool of the transfer buffers, may be shared with other downloaders.
+     */
+    private final BufferPool buffers;
 
     /**
-     * Download pool for file downloading tasks.
+     * Number of the running downloads, monitor for {@link #close()}.
      */
-    private final ExecutorService downloadPool;
+    private int active;
 
     /**
      * Switch verbose mode.
      */
     private final boolean verbose;
 
+    /**
+     * Dispatcher for progress events.
+     */
+    private final ProgressDispatcher dispatcher;
+
     /**
      * Message constant for wrong uuid exception.
      */
@@ -73,18 +119,52 @@ public final class HttpFileDownloaderReactive
      */
     public HttpFileDownloaderReactive(final int threads,
                                       final boolean verboseValue) {
-        downloadPool = Executors.newFixedThreadPool(threads < 1
-                ? THREADS_BY_DEFAULT : threads);
+        this(threads, verboseValue, PROGRESS_INTERVAL_BY_DEFAULT);
+    }
+
+    /**
+     * Public constructor for the Downloader.
+     *
+     * @param threads number of threads for async mode
+     * @param verboseValue switch verbose mode
+     * @param progressInterval minimal interval between progress events of
+     *                         a task in milliseconds
+     */
+    public HttpFileDownloaderReactive(final int threads,
+                                      final boolean verboseValue,
+                                      final int progressInterval) {
+        this(threads, verboseValue, progressInterval,
+                new BufferPool(0, false));
+    }
+
+    /**
+     * Public constructor for the Downloader.
+     *
+     * @param threads number of threads for async mode
+     * @param verboseValue switch verbose mode
+     * @param progressInterval minimal interval between progress events of
+     *                         a task in milliseconds
+     * @param buffersValue pool of the transfer buffers, a shared pool caps
+     *                     the buffers of several downloaders together
+     */
+    public HttpFileDownloaderReactive(final int threads,
+                                      final boolean verboseValue,
+                                      final int progressInterval,
+                                      final BufferPool buffersValue) {
+        scheduler = Schedulers.newBoundedElastic(threads < 1
+                        ? THREADS_BY_DEFAULT : threads,
+                Integer.MAX_VALUE, "downloader");
         this.verbose = verboseValue;
+        this.dispatcher = new ProgressDispatcher(progressInterval);
+        this.buffers = buffersValue;
     }
 
     @Override
     public UUID create(final String sourceUri,
                        final String destinationFilePath) {
-        UUID uuid = UUID.randomUUID();
+        UUID uuid = TaskIds.next();
         files.put(uuid, new DownloadData(sourceUri, destinationFilePath));
-        progresses.put(uuid, new Progressbar(0, 0,
-                DownloadStatus.NOT_STARTED));
+        progresses.put(uuid, new DownloadProgress(uuid, dispatcher));
         return uuid;
     }
 
@@ -95,7 +175,7 @@ public final class HttpFileDownloaderReactive
 
     @Override
     public DownloadStatus getStatus(final UUID id) {
-        throw new UnsupportedOperationException();
+        return progress(id).getStatus();
     }
 
     @Override
@@ -104,40 +184,54 @@ public final class HttpFileDownloaderReactive
     }
 
     @Override
-    public Mono<Future<File>> download(final UUID id) {
-        return Mono.just(get(id));
+    public Mono<File> download(final UUID id) {
+        return Mono.defer(() -> {
+            DownloadData data = files.get(id);
+            if (data == null) {
+                return Mono.error(new IllegalUuidException(
+                        WRONG_UUID_MESSAGE + id));
+            }
+            return transfer(id, data);
+        });
     }
 
+    /**
+     * Downloads all the created files. Failed downloads do not stop the
+     * stream, they are reported as results with {@link DownloadStatus#FAILED}
+     * status.
+     *
+     * @return stream of download results in order of completion
+     */
     @Override
-    public Flux<Future<File>> downloadAll() {
+    public Flux<DownloadResult> downloadAll() {
         return Flux
                 .fromIterable(files.keySet())
-                .flatMap((id) -> Mono.defer(() -> Mono.just(get(id))));
+                .flatMap(this::result);
     }
 
     @Override
     public boolean downloaded(final UUID id) {
-        return false;
+        return progress(id).getStatus() == DownloadStatus.FINISHED;
     }
 
     @Override
     public boolean downloading(final UUID id) {
-        return false;
+        return progress(id).getStatus() == DownloadStatus.DOWNLOADING;
     }
 
     @Override
     public boolean failed(final UUID id) {
-        return false;
+        return progress(id).getStatus() == DownloadStatus.FAILED;
     }
 
     @Override
     public byte getProgress(final UUID id) {
-        return progresses.get(id).getPercentage();
+        return progress(id).getPercentage();
     }
 
     @Override
     public long getProgressBytes(final UUID id) {
-        return 0;
+        return progress(id).getDownloaded();
     }
 
     @Override
@@ -145,6 +239,62 @@ public final class HttpFileDownloaderReactive
         return progresses.keySet();
     }
 
+    @Override
+    public void subscribe(final ProgressListener listener) {
+        dispatcher.subscribe(listener);
+    }
+
+    @Override
+    public void unsubscribe(final ProgressListener listener) {
+        dispatcher.unsubscribe(listener);
+    }
+
+    /**
+     * Returns progress events of all downloads. Subscription lives until
+     * it is cancelled. Status transitions are buffered for a slow
+     * subscriber, progress updates are dropped while it has no demand.
+     *
+     * @return hot stream of progress events
+     */
+    public Flux<ProgressEvent> events() {
+        return Flux.create((sink) -> listen(sink, null),
+                FluxSink.OverflowStrategy.BUFFER);
+    }
+
+    /**
+     * Returns progress events of the download, starting with its current
+     * state. Completes when the download is finished or failed, at once
+     * if it already is.
+     *
+     * @param id download UUID
+     * @return stream of progress events
+     */
+    public Flux<ProgressEvent> events(final UUID id) {
+        return Flux.<ProgressEvent>create((sink) -> {
+            DownloadProgress progress = progresses.get(id);
+            if (progress == null) {
+                sink.error(new IllegalUuidException(WRONG_UUID_MESSAGE + id));
+                return;
+            }
+            // the snapshot is taken after subscribing, so no transition
+            // falls between them
+            listen(sink, id);
+            sink.next(new ProgressEvent(id, progress.getStatus(),
+                    progress.snapshot()));
+        }, FluxSink.OverflowStrategy.BUFFER)
+                .takeUntil(ProgressEvent::isTerminal);
+    }
+
+    /**
+     * Returns share of the requests sent while the JDK should have had an
+     * idle connection to their host, an upper bound of the reuse.
+     *
+     * @return warm rate from 0 to 1
+     */
+    public double getWarmConnectionRate() {
+        return connectionManager.getWarmRate();
+    }
+
     @Override
     public String getDestination(final UUID uuid) {
         if (files.containsKey(uuid)) {
@@ -162,118 +312,108 @@ public final class HttpFileDownloaderReactive
         files.clear();
         progresses.clear();
 
-        downloadPool.shutdown();
         try {
-            if (!downloadPool.awaitTermination(Long.MAX_VALUE,
-                    TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Thread pool termination error.");
-            } else {
-                LOGGER.info("Downloader closed.");
+            synchronized (this) {
+                while (active > 0) {
+                    wait();
+                }
             }
         } catch (InterruptedException ex) {
             throw new RuntimeException(ex.getLocalizedMessage());
         }
+        scheduler.dispose();
+        LOGGER.info("Downloader closed.");
     }
 
-    private Future<File> get(final UUID id) {
-        if (verbose) {
-            LOGGER.info("Downloading file '{}'", files.get(id).getLocalFile());
-        }
-        try {
-            return downloadPool.submit(
-                    new DownloadTask(id,
-                            new URL(files.get(id).getSourceUri()),
-                            new File(files.get(id).getLocalFile())));
-        } catch (IOException ex) {
-            throw new RuntimeException("Failed to load file: " + id);
-        }
+    private void listen(final FluxSink<ProgressEvent> sink, final UUID id) {
+        ProgressListener listener = (event) -> {
+            if (id != null && !id.equals(event.getId())) {
+                return;
+            }
+            // a later progress event makes up for a dropped one
+            if (event.isTransition() || sink.requestedFromDownstream() > 0) {
+                sink.next(event);
+            }
+        };
+        dispatcher.subscribe(listener);
+        sink.onDispose(() -> dispatcher.unsubscribe(listener));
     }
 
-    private final class DownloadTask implements Callable<File> {
-
-        /**
-         * Buffer size for output data writing.
-         */
-        private static final int BUFFER_SIZE = 1024 * 1024;
-
-        /**
-         * Block size to store read data.
-         */
-        private static final int BLOCK_SIZE = 10240;
-
-        /**
-         * Field for storing source {@link URL} object.
-         */
-        private final URL targetUrl;
-
-        /**
-         * Field for storing destination {@link File} object.
-         */
-        private final File destination;
-
-        /**
-         * Field for storing downloading task id.
-         */
-        private final UUID uuid;
-
-        DownloadTask(final UUID uuidValue,
-                     final URL targetUrlValue,
-                     final File destinationValue) {
-            this.uuid = uuidValue;
-            this.targetUrl = targetUrlValue;
-            this.destination = destinationValue;
+    private DownloadProgress progress(final UUID id) {
+        DownloadProgress progress = progresses.get(id);
+        if (progress == null) {
+            throw new IllegalUuidException(WRONG_UUID_MESSAGE + id);
         }
+        return progress;
+    }
 
-        public File call() throws IOException {
-
-            final URLConnection request = this.targetUrl.openConnection();
-
-            try (InputStream inputStream = request.getInputStream();
-                 FileOutputStream fileStream =
-                         new FileOutputStream(this.destination);
-                 BufferedOutputStream outputStream =
-                         new BufferedOutputStream(fileStream, BUFFER_SIZE)) {
-
-                final byte[] data = new byte[BLOCK_SIZE];
-                int bytesRead;
-                int progress = 0;
-                long targetSize = request.getContentLengthLong();
-
-                if (verbose) {
-                    LOGGER.info("Fetching from uri: '{}' to file '{}'",
-                            this.targetUrl.getPath(),
-                            this.destination.getPath());
-                }
-
-                while ((bytesRead = inputStream.read(data)) != -1) {
-                    progress += bytesRead;
-                    progresses.replace(uuid,
-                            new Progressbar(targetSize,
-                                    progress,
-                                    DownloadStatus.DOWNLOADING));
-                    outputStream.write(data, 0, bytesRead);
-                }
-
-                files.remove(uuid);
-                progresses.replace(uuid,
-                        new Progressbar(targetSize,
-                                progress,
-                                DownloadStatus.FINISHED));
-
-                if (verbose) {
-                    LOGGER.info("Fetching for {} completed",
-                            this.destination.getPath());
-                }
+    private Mono<DownloadResult> result(final UUID id) {
+        File destination = new File(getDestination(id));
+        return download(id)
+                .map((file) -> new DownloadResult(id, file,
+                        DownloadStatus.FINISHED, file.length(), null))
+                .onErrorResume((ex) -> Mono.just(new DownloadResult(id,
+                        destination, DownloadStatus.FAILED, 0, ex)));
+    }
 
-            } catch (Exception exception) {
-                progresses.replace(uuid,
-                        new Progressbar(0, 0, DownloadStatus.FAILED));
-                exception.printStackTrace();
-            }
+    private Mono<File> transfer(final UUID id, final DownloadData data) {
+        final DownloadProgress progressbar =
+                progresses.getOrDefault(id, new DownloadProgress());
+        final File destination = new File(data.getLocalFile());
+
+        return Mono
+                .fromCallable(() -> {
+                    if (verbose) {
+                        LOGGER.info("Downloading file '{}'",
+                                destination.getPath());
+                    }
+                    URLConnection request = connectionManager.open(
+                            new URL(data.getSourceUri()));
+                    return Tuples.of(request, request.getInputStream(),
+                            request.getContentLengthLong());
+                })
+                .subscribeOn(scheduler)
+                .flatMap((response) -> {
+                    long size = response.getT3();
+                    progressbar.start(size);
+                    return ReactiveTransfer
+                            .write(ReactiveTransfer.body(response.getT2(),
+                                    scheduler, buffers),
+                                    destination.toPath(), progressbar::set,
+                                    buffers)
+                            .flatMap((total) -> size >= 0 && total != size
+                                    ? Mono.error(new IOException(
+                                            "Unexpected end of stream at "
+                                                    + total + " of " + size))
+                                    : Mono.fromCallable(() -> {
+                                        connectionManager.release(
+                                                response.getT1());
+                                        return destination;
+                                    }));
+                })
+                .doOnSuccess((file) -> {
+                    files.remove(id);
+                    progressbar.finish();
+                    if (verbose) {
+                        LOGGER.info("Fetching for {} completed",
+                                destination.getPath());
+                    }
+                })
+                .doOnError((ex) -> {
+                    progressbar.fail();
+                    LOGGER.error("Failed to load file: {}", id, ex);
+                })
+                .doOnSubscribe((subscription) -> started())
+                .doFinally((signal) -> stopped());
+    }
 
-            return this.destination;
+    private synchronized void started() {
+        active++;
+    }
 
-        }
+    private synchronized void stopped() {
+        active--;
+        notifyAll();
     }
 
 }
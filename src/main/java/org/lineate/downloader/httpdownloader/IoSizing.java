@@ -0,0 +1,212 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive read and flush sizes of a transfer.
+ * <p>
+ * A transfer reads the response into a block and writes the block to
+ * the file when it is full. The read size is the most a single read asks
+ * for, the flush size is the block size, so every write is one system
+ * call of the flush size. Both start from the Content-Length: a small
+ * file is read into a block of its own size and written at once, a big
+ * file starts with a sixteenth of its size, capped to
+ * {@link #MAX_SIZE}.
+ * </p>
+ * <p>
+ * The sizes then follow the link. Reads which keep returning all they
+ * asked for mean that more data is waiting in the socket, so the read
+ * size doubles; reads which keep returning less than a quarter of it
+ * mean that the link is slower than the reads, so it halves. Flushes
+ * more often than {@link #MAX_FLUSH_RATE} a second double the flush size,
+ * a block which takes longer than {@link #MAX_FILL_TIME} to fill is
+ * flushed early and halves it, which also bounds the delay of the
+ * progress updates and checkpoints on a slow link. Not thread safe, one
+ * instance per transfer.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+final class IoSizing {
+
+    /**
+     * Smallest read and flush size, except for smaller files.
+     */
+    static final int MIN_SIZE = 8 * 1024;
+
+    /**
+     * Largest read and flush size.
+     */
+    static final int MAX_SIZE = 1024 * 1024;
+
+    /**
+     * Initial size when the length is unknown.
+     */
+    static final int UNKNOWN_LENGTH_SIZE = 64 * 1024;
+
+    /**
+     * Flushes per second above which the flush size grows.
+     */
+    static final int MAX_FLUSH_RATE = 64;
+
+    /**
+     * Longest time a block may take to fill in nanoseconds.
+     */
+    static final long MAX_FILL_TIME = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * Initial flush size as a share of the length.
+     */
+    private static final int LENGTH_SHARE = 16;
+
+    /**
+     * Shortest time between the flushes which does not grow the flush
+     * size, in nanoseconds.
+     */
+    private static final long MIN_FLUSH_INTERVAL =
+            TimeUnit.SECONDS.toNanos(1) / MAX_FLUSH_RATE;
+
+    /**
+     * Same observations in a row which change a size.
+     */
+    private static final int STREAK = 4;
+
+    /**
+     * Ratio of a short read to the read size.
+     */
+    private static final int SHORT_READ = 4;
+
+    /**
+     * Current read size.
+     */
+    private int readSize;
+
+    /**
+     * Current flush size.
+     */
+    private int flushSize;
+
+    /**
+     * Full reads in a row.
+     */
+    private int fullReads;
+
+    /**
+     * Short reads in a row.
+     */
+    private int shortReads;
+
+    /**
+     * Quick flushes in a row.
+     */
+    private int quickFlushes;
+
+    /**
+     * Time of the last flush or of the start in nanoseconds.
+     */
+    private long lastFlush = System.nanoTime();
+
+    private IoSizing(final int readValue, final int flushValue) {
+        this.readSize = readValue;
+        this.flushSize = flushValue;
+    }
+
+    /**
+     * Creates sizing for a response.
+     *
+     * @param length Content-Length of the response, negative if unknown
+     * @return sizing with the initial sizes
+     */
+    static IoSizing forLength(final long length) {
+        int flush;
+        if (length < 0) {
+            flush = UNKNOWN_LENGTH_SIZE;
+        } else if (length <= MIN_SIZE) {
+            flush = (int) Math.max(length, 1);
+        } else {
+            long share = Long.highestOneBit(length / LENGTH_SHARE);
+            flush = (int) Math.max(MIN_SIZE, Math.min(MAX_SIZE, share));
+        }
+        return new IoSizing(Math.min(flush, UNKNOWN_LENGTH_SIZE), flush);
+    }
+
+    /**
+     * Returns the most a single read should ask for.
+     *
+     * @return read size in bytes
+     */
+    int readSize() {
+        return readSize;
+    }
+
+    /**
+     * Returns block size, data is written when the block is full.
+     *
+     * @return flush size in bytes
+     */
+    int flushSize() {
+        return flushSize;
+    }
+
+    /**
+     * Checks whether the block has been filling too long and should be
+     * written now.
+     *
+     * @return true if the block is due for a flush
+     */
+    boolean due() {
+        return System.nanoTime() - lastFlush > MAX_FILL_TIME;
+    }
+
+    /**
+     * Observes a read.
+     *
+     * @param requested bytes asked for
+     * @param received bytes read
+     */
+    void read(final int requested, final int received) {
+        if (requested == readSize && received == requested) {
+            shortReads = 0;
+            if (++fullReads >= STREAK) {
+                fullReads = 0;
+                readSize = Math.min(readSize * 2, flushSize);
+            }
+        } else if (received < readSize / SHORT_READ) {
+            fullReads = 0;
+            if (++shortReads >= STREAK) {
+                shortReads = 0;
+                readSize = Math.max(readSize / 2,
+                        Math.min(MIN_SIZE, flushSize));
+            }
+        } else {
+            fullReads = 0;
+            shortReads = 0;
+        }
+    }
+
+    /**
+     * Observes a write of the block.
+     *
+     * @param bytes written bytes
+     */
+    void flushed(final int bytes) {
+        long now = System.nanoTime();
+        long interval = now - lastFlush;
+        lastFlush = now;
+        if (interval > MAX_FILL_TIME) {
+            quickFlushes = 0;
+            flushSize = Math.max(flushSize / 2,
+                    Math.min(MIN_SIZE, flushSize));
+            readSize = Math.min(readSize, flushSize);
+        } else if (bytes >= flushSize && interval < MIN_FLUSH_INTERVAL) {
+            if (++quickFlushes >= STREAK) {
+                quickFlushes = 0;
+                flushSize = Math.min(flushSize * 2, MAX_SIZE);
+            }
+        } else {
+            quickFlushes = 0;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import org.lineate.downloader.progressbar.DownloadProgress;
+import org.lineate.downloader.progressbar.ProgressDispatcher;
+import org.lineate.downloader.progressbar.Progressbar;
+
+/**
+ * Task registry of concurrent maps, a progress record and a limiter are
+ * kept for every task for its whole life.
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+final class MapRegistry implements TaskRegistry {
+
+    /**
+     * Container for download data: source url and destination file name.
+     */
+    private final Map<UUID, DownloadData> files = new ConcurrentHashMap<>();
+
+    /**
+     * Container for progress status.
+     */
+    private final Map<UUID, DownloadProgress> progresses =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Bandwidth limiters of the download tasks.
+     */
+    private final Map<UUID, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * Dispatcher for the progress events.
+     */
+    private final ProgressDispatcher dispatcher;
+
+    /**
+     * Global bandwidth limiter, parent of the task limiters.
+     */
+    private final RateLimiter parent;
+
+    /**
+     * Creates registry.
+     *
+     * @param dispatcherValue dispatcher for the progress events
+     * @param parentValue global bandwidth limiter
+     */
+    MapRegistry(final ProgressDispatcher dispatcherValue,
+                final RateLimiter parentValue) {
+        this.dispatcher = dispatcherValue;
+        this.parent = parentValue;
+    }
+
+    @Override
+    public void add(final UUID id, final DownloadData data) {
+        files.put(id, data);
+        progresses.put(id, new DownloadProgress(id, dispatcher));
+        limiters.put(id, new RateLimiter(data.getRateLimit(), parent));
+    }
+
+    @Override
+    public void restore(final UUID id, final Progressbar state) {
+        progresses.put(id, new DownloadProgress(id, dispatcher, state));
+    }
+
+    @Override
+    public boolean remove(final UUID id) {
+        files.remove(id);
+        limiters.remove(id);
+        return progresses.remove(id) != null;
+    }
+
+    @Override
+    public boolean contains(final UUID id) {
+        return progresses.containsKey(id);
+    }
+
+    @Override
+    public DownloadData pending(final UUID id) {
+        return files.get(id);
+    }
+
+    @Override
+    public void finished(final UUID id) {
+        files.remove(id);
+    }
+
+    @Override
+    public int pendingCount() {
+        return files.size();
+    }
+
+    @Override
+    public void forEachPending(final BiConsumer<UUID, DownloadData> action) {
+        files.forEach(action);
+    }
+
+    @Override
+    public Progressbar snapshot(final UUID id) {
+        DownloadProgress progress = progresses.get(id);
+        return progress == null ? null : progress.snapshot();
+    }
+
+    @Override
+    public DownloadProgress acquire(final UUID id) {
+        return progresses.get(id);
+    }
+
+    @Override
+    public RateLimiter limiter(final UUID id) {
+        return limiters.get(id);
+    }
+
+    @Override
+    public void release(final UUID id) {
+        // records live as long as the tasks
+    }
+
+    @Override
+    public boolean setRateLimit(final UUID id, final long bytesPerSecond) {
+        RateLimiter limiter = limiters.get(id);
+        if (limiter == null) {
+            return false;
+        }
+        limiter.setRate(bytesPerSecond);
+        return true;
+    }
+
+    @Override
+    public Set<UUID> ids() {
+        return progresses.keySet();
+    }
+
+    @Override
+    public void clear() {
+        files.clear();
+        progresses.clear();
+        limiters.clear();
+    }
+}
@@ -0,0 +1,662 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.lineate.downloader.metalink.Metalink;
+import org.lineate.downloader.progressbar.DownloadProgress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Download of a file from several mirrors at once using HTTP byte ranges.
+ * <p>
+ * The file is split into the pieces of its {@link Metalink}, or into
+ * {@link #PIECE_SIZE} pieces when there are no piece hashes. Workers,
+ * one or more per mirror, take the next piece from a shared queue, so a
+ * faster mirror serves more pieces and the speeds of the mirrors add up.
+ * Every piece is hashed while it is written. A corrupt piece is put back
+ * to the queue for the fastest mirror which has not served it corrupt,
+ * the rest of the file is kept. A mirror is dropped after
+ * {@link #MAX_FAILURES} errors or when it does not serve ranges, its
+ * workers move to the spare mirrors.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.2
+ */
+
+final class MirrorDownload {
+
+    /**
+     * Piece size when the Metalink has no piece hashes.
+     */
+    static final long PIECE_SIZE = 1024 * 1024;
+
+    /**
+     * Most mirrors used at once, the others are spares.
+     */
+    static final int MAX_MIRRORS = 8;
+
+    /**
+     * Errors after which a mirror is dropped.
+     */
+    static final int MAX_FAILURES = 3;
+
+    /**
+     * Http status code for partial content responses.
+     */
+    private static final int PARTIAL_CONTENT = 206;
+
+    /**
+     * Weight of the last piece in the throughput of a mirror.
+     */
+    private static final double RATE_WEIGHT = 0.3;
+
+    /**
+     * Default class logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(MirrorDownload.class);
+
+    /**
+     * Mirrors in the Metalink order.
+     */
+    private final List<Mirror> mirrors = new ArrayList<>();
+
+    /**
+     * Destination file.
+     */
+    private final File destination;
+
+    /**
+     * Total size of the file in bytes.
+     */
+    private final long size;
+
+    /**
+     * Number of parallel connections.
+     */
+    private final int connections;
+
+    /**
+     * Pool for the additional connections.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Connection manager of the downloader.
+     */
+    private final ConnectionManager connectionManager;
+
+    /**
+     * Bandwidth limiter of the download task.
+     */
+    private final RateLimiter limiter;
+
+    /**
+     * Progress record of the download task.
+     */
+    private final DownloadProgress progress;
+
+    /**
+     * Digest algorithm of the piece hashes, null if pieces are not
+     * checked.
+     */
+    private final String pieceAlgorithm;
+
+    /**
+     * All pieces of the file.
+     */
+    private final List<Piece> pieces = new ArrayList<>();
+
+    /**
+     * Pieces waiting for a worker, guarded by this object monitor.
+     */
+    private final Deque<Piece> queue = new ArrayDeque<>();
+
+    /**
+     * Verified pieces, guarded by this object monitor.
+     */
+    private int verified;
+
+    /**
+     * Failure which stops the download, guarded by this object monitor.
+     */
+    private IOException failure;
+
+    /**
+     * Output mode of the destination.
+     */
+    private FileSink.Mode mode = FileSink.Mode.POSITIONAL;
+
+    /**
+     * Whether the destination is extended to its size before writing.
+     */
+    private boolean preallocate;
+
+    /**
+     * Pool of the read buffers.
+     */
+    private BufferPool buffers = new BufferPool(0, true);
+
+    /**
+     * Creates mirror download.
+     *
+     * @param metalink mirrors and hashes of the file
+     * @param destinationValue destination file
+     * @param sizeValue size of the file in bytes
+     * @param connectionsValue number of parallel connections, at least one
+     *                         per mirror up to {@link #MAX_MIRRORS}
+     * @param poolValue pool for the additional connections
+     * @param connectionManagerValue connection manager of the downloader
+     * @param limiterValue bandwidth limiter shared by the connections
+     * @param progressValue progress record of the download task
+     * @throws IOException if the Metalink does not match the size or a
+     *                     mirror url is wrong
+     */
+    MirrorDownload(final Metalink metalink,
+                   final File destinationValue,
+                   final long sizeValue,
+                   final int connectionsValue,
+                   final ExecutorService poolValue,
+                   final ConnectionManager connectionManagerValue,
+                   final RateLimiter limiterValue,
+                   final DownloadProgress progressValue) throws IOException {
+        if (metalink.getSize() >= 0 && metalink.getSize() != sizeValue) {
+            throw new IOException("Size of " + destinationValue
+                    + " is " + sizeValue + ", Metalink has "
+                    + metalink.getSize());
+        }
+        for (String url : metalink.getUrls()) {
+            mirrors.add(new Mirror(new URL(url)));
+        }
+        this.destination = destinationValue;
+        this.size = sizeValue;
+        this.pool = poolValue;
+        this.connectionManager = connectionManagerValue;
+        this.limiter = limiterValue;
+        this.progress = progressValue;
+        long length = metalink.getPieceLength();
+        List<String> hashes = metalink.getPieceHashes();
+        boolean checked = metalink.getPieceAlgorithm() != null
+                && hashes.size() == (size + length - 1) / length;
+        this.pieceAlgorithm = checked ? metalink.getPieceAlgorithm() : null;
+        long pieceSize = checked ? length : PIECE_SIZE;
+        for (long start = 0; start < size; start += pieceSize) {
+            pieces.add(new Piece(pieces.size(), start,
+                    Math.min(start + pieceSize, size),
+                    checked ? hashes.get(pieces.size()) : null));
+        }
+        this.connections = Math.min(pieces.size(), Math.max(connectionsValue,
+                Math.min(mirrors.size(), MAX_MIRRORS)));
+    }
+
+    /**
+     * Sets output mode of the destination.
+     *
+     * @param modeValue output mode
+     * @param preallocateValue extend the file to its size before writing
+     * @return this download
+     */
+    MirrorDownload output(final FileSink.Mode modeValue,
+                          final boolean preallocateValue) {
+        this.mode = modeValue;
+        this.preallocate = preallocateValue;
+        return this;
+    }
+
+    /**
+     * Sets pool of the read buffers, a pool of direct buffers without a
+     * limit by default.
+     *
+     * @param buffersValue buffer pool
+     * @return this download
+     */
+    MirrorDownload buffers(final BufferPool buffersValue) {
+        this.buffers = buffersValue;
+        return this;
+    }
+
+    /**
+     * Checks if the response allows a mirror download.
+     *
+     * @param response opened connection to the first mirror
+     * @param sizeValue size of the file, negative if unknown
+     * @return true if the server accepts byte ranges and the size is known
+     */
+    static boolean supported(final URLConnection response,
+                             final long sizeValue) {
+        return sizeValue > 0 && "bytes".equalsIgnoreCase(
+                response.getHeaderField("Accept-Ranges"));
+    }
+
+    /**
+     * Fetches the file. The already opened connection to the first mirror
+     * is reused for the first piece, the rest of the workers run in the
+     * pool.
+     *
+     * @param first response of the first mirror from the first byte
+     * @return total downloaded bytes
+     * @throws IOException if a piece can not be fetched from any mirror
+     */
+    long fetch(final Hedging.Response first) throws IOException {
+        Piece head = pieces.get(0);
+        queue.addAll(pieces.subList(1, pieces.size()));
+        try (FileSink output = FileSink.open(destination, size, mode,
+                preallocate, true)) {
+            List<Future<Void>> workers = new ArrayList<>();
+            int used = Math.min(mirrors.size(), connections);
+            for (int i = 1; i < connections; i++) {
+                Mirror mirror = mirrors.get(i % used);
+                workers.add(pool.submit(() -> work(output, mirror, null,
+                        null)));
+            }
+            try {
+                work(output, mirrors.get(0), head, first);
+            } catch (IOException ex) {
+                fail(ex);
+            }
+            IOException joined = SegmentedDownload.joinWorkers(workers, null,
+                    () -> fail(new InterruptedIOException(
+                            "Mirror download interrupted")));
+            if (joined != null) {
+                fail(joined);
+            }
+        }
+        synchronized (this) {
+            if (failure == null && verified < pieces.size()) {
+                failure = new IOException("All mirrors of " + destination
+                        + " have failed");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        LOGGER.info("Mirrors of '{}' by throughput: {}", destination,
+                ranking());
+        return size;
+    }
+
+    /**
+     * Returns mirrors by their measured throughput.
+     *
+     * @return urls, the fastest first
+     */
+    synchronized List<String> ranking() {
+        List<Mirror> ranked = new ArrayList<>(mirrors);
+        ranked.sort(Comparator.comparingDouble((Mirror m) -> -m.rate));
+        List<String> urls = new ArrayList<>(ranked.size());
+        for (Mirror mirror : ranked) {
+            urls.add(mirror.url.toString());
+        }
+        return urls;
+    }
+
+    private Void work(final FileSink output,
+                      final Mirror initial,
+                      final Piece head,
+                      final Hedging.Response opened) throws IOException {
+        final MessageDigest digest = digest();
+        final Mirror[] mirror = {initial};
+        Piece piece = head;
+        Hedging.Response response = opened;
+        synchronized (this) {
+            initial.workers++;
+            if (head != null) {
+                head.source = initial;
+            }
+        }
+        while (piece != null || (piece = take(mirror)) != null) {
+            try {
+                if (fetch(output, piece.source, piece, response, digest)) {
+                    verified();
+                } else {
+                    corrupt(piece);
+                }
+            } catch (IOException ex) {
+                failed(piece, ex);
+            }
+            piece = null;
+            response = null;
+        }
+        return null;
+    }
+
+    /**
+     * Fetches piece from the mirror.
+     *
+     * @return true if the piece matches its hash or is not checked
+     */
+    private boolean fetch(final FileSink output,
+                          final Mirror mirror,
+                          final Piece piece,
+                          final Hedging.Response opened,
+                          final MessageDigest digest) throws IOException {
+        final Hedging.Response response = opened == null
+                ? new Hedging.Response(openRange(mirror, piece)) : opened;
+        final long begin = System.nanoTime();
+        if (digest != null) {
+            // a failed piece may have left its bytes in the digest
+            digest.reset();
+        }
+        final ByteBuffer buffer = buffers.acquire(
+                (int) limiter.chunk(ChannelTransfer.BLOCK_SIZE));
+        long position = piece.start;
+        try (InputStream inputStream = response.body()) {
+            ReadableByteChannel source = Channels.newChannel(inputStream);
+            while (position < piece.end && !stopped()
+                    && ChannelTransfer.read(source, buffer)) {
+                int allowed = (int) Math.min(buffer.remaining(),
+                        piece.end - position);
+                buffer.limit(buffer.position() + allowed);
+                limiter.acquire(allowed);
+                if (digest != null) {
+                    buffer.mark();
+                    digest.update(buffer);
+                    buffer.reset();
+                }
+                position += output.write(buffer, position);
+                progress.add(allowed);
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+        long received = position - piece.start;
+        if (position < piece.end) {
+            progress.add(-received);
+            throw new IOException(stopped() ? "Mirror download stopped"
+                    : "Unexpected end of piece " + piece.index
+                    + " from " + mirror.url);
+        }
+        connectionManager.release(response.connection(), received);
+        synchronized (this) {
+            mirror.measured(received, System.nanoTime() - begin);
+        }
+        if (digest == null
+                || Checksums.hex(digest.digest()).equals(piece.hash)) {
+            return true;
+        }
+        progress.add(-received);
+        return false;
+    }
+
+    private URLConnection openRange(final Mirror mirror, final Piece piece)
+            throws IOException {
+        URLConnection connection = connectionManager.open(mirror.url);
+        if (!(connection instanceof HttpURLConnection)) {
+            throw new RangeNotSupportedException(mirror.url);
+        }
+        HttpURLConnection http = (HttpURLConnection) connection;
+        http.setRequestProperty("Range", "bytes=" + piece.start + "-"
+                + (piece.end - 1));
+        if (http.getResponseCode() != PARTIAL_CONTENT) {
+            http.disconnect();
+            throw new RangeNotSupportedException(mirror.url);
+        }
+        return http;
+    }
+
+    /**
+     * Takes next piece for the worker, waits while the remaining pieces
+     * are fetched by other workers and may come back. A worker whose
+     * mirror is dropped moves to a spare one. A corrupt piece goes to the
+     * fastest mirror which has not served it corrupt, this worker takes
+     * it for an idle spare.
+     *
+     * @param mirror mirror of the worker, updated when it moves
+     * @return piece with its source set, null when the download is over
+     */
+    private synchronized Piece take(final Mirror[] mirror)
+            throws InterruptedIOException {
+        while (failure == null && verified < pieces.size()) {
+            if (mirror[0].dropped) {
+                mirror[0].workers--;
+                mirror[0] = spare();
+                if (mirror[0] == null) {
+                    return null;
+                }
+                mirror[0].workers++;
+            }
+            for (Piece piece : queue) {
+                Mirror source = piece.corrupt.isEmpty()
+                        ? mirror[0] : fastest(piece);
+                if (source == null) {
+                    failure = new IOException("Piece " + piece.index
+                            + " of " + destination
+                            + " is corrupt on all mirrors");
+                    notifyAll();
+                    return null;
+                }
+                if (source == mirror[0] || source.workers == 0) {
+                    queue.remove(piece);
+                    piece.source = source;
+                    return piece;
+                }
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting for a piece");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the fastest mirror which may fetch the piece.
+     *
+     * @return mirror, null if the piece is corrupt on all the live mirrors
+     */
+    private Mirror fastest(final Piece piece) {
+        Mirror fastest = null;
+        for (Mirror mirror : mirrors) {
+            if (!mirror.dropped && !piece.corrupt.contains(mirror)
+                    && (fastest == null || mirror.rate > fastest.rate)) {
+                fastest = mirror;
+            }
+        }
+        return fastest;
+    }
+
+    private synchronized void verified() {
+        verified++;
+        notifyAll();
+    }
+
+    private synchronized void corrupt(final Piece piece) {
+        LOGGER.warn("Piece {} of '{}' from {} is corrupt", piece.index,
+                destination, piece.source);
+        piece.corrupt.add(piece.source);
+        queue.addFirst(piece);
+        notifyAll();
+    }
+
+    /**
+     * Puts the piece back after an error and drops its mirror if it keeps
+     * failing, the download fails when no mirror is left.
+     */
+    private synchronized void failed(final Piece piece,
+                                     final IOException ex) {
+        Mirror mirror = piece.source;
+        queue.addFirst(piece);
+        if (!mirror.dropped && (++mirror.failures >= MAX_FAILURES
+                || ex instanceof RangeNotSupportedException)) {
+            LOGGER.warn("Dropping mirror {} of '{}'", mirror.url,
+                    destination, ex);
+            mirror.dropped = true;
+            if (spare() == null && failure == null) {
+                failure = ex;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Finds live mirror with the fewest workers, the faster one of equal.
+     *
+     * @return mirror, null if all mirrors are dropped
+     */
+    private Mirror spare() {
+        Mirror spare = null;
+        for (Mirror mirror : mirrors) {
+            if (!mirror.dropped && (spare == null
+                    || mirror.workers < spare.workers
+                    || mirror.workers == spare.workers
+                    && mirror.rate > spare.rate)) {
+                spare = mirror;
+            }
+        }
+        return spare;
+    }
+
+    private synchronized void fail(final IOException ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+        notifyAll();
+    }
+
+    private synchronized boolean stopped() {
+        return failure != null;
+    }
+
+    private MessageDigest digest() throws IOException {
+        try {
+            return pieceAlgorithm == null
+                    ? null : MessageDigest.getInstance(pieceAlgorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Mirror of the file with its measured throughput, guarded by the
+     * download monitor.
+     */
+    private static final class Mirror {
+
+        /**
+         * Url of the file on the mirror.
+         */
+        private final URL url;
+
+        /**
+         * Smoothed throughput in bytes per second, 0 until measured.
+         */
+        private double rate;
+
+        /**
+         * Errors of the mirror.
+         */
+        private int failures;
+
+        /**
+         * Workers fetching from the mirror.
+         */
+        private int workers;
+
+        /**
+         * Whether the mirror is no longer used.
+         */
+        private boolean dropped;
+
+        Mirror(final URL urlValue) {
+            this.url = urlValue;
+        }
+
+        void measured(final long bytes, final long nanos) {
+            double sample = nanos > 0
+                    ? (double) bytes * TimeUnit.SECONDS.toNanos(1) / nanos
+                    : 0;
+            rate = rate == 0 ? sample
+                    : rate + RATE_WEIGHT * (sample - rate);
+        }
+
+        @Override
+        public String toString() {
+            return url.toString();
+        }
+    }
+
+    /**
+     * Byte range of the file with its expected hash.
+     */
+    private static final class Piece {
+
+        /**
+         * Index of the piece in the file.
+         */
+        private final int index;
+
+        /**
+         * First byte of the piece.
+         */
+        private final long start;
+
+        /**
+         * End of the piece, exclusive.
+         */
+        private final long end;
+
+        /**
+         * Expected hash, null if the piece is not checked.
+         */
+        private final String hash;
+
+        /**
+         * Mirror the piece is fetched from, guarded by the download
+         * monitor.
+         */
+        private Mirror source;
+
+        /**
+         * Mirrors which served the piece corrupt, guarded by the download
+         * monitor.
+         */
+        private final Set<Mirror> corrupt = new HashSet<>();
+
+        Piece(final int indexValue, final long startValue,
+              final long endValue, final String hashValue) {
+            this.index = indexValue;
+            this.start = startValue;
+            this.end = endValue;
+            this.hash = hashValue;
+        }
+    }
+
+    /**
+     * Mirror which does not serve byte ranges.
+     */
+    private static final class RangeNotSupportedException
+            extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RangeNotSupportedException(final URL url) {
+            super("Range request is not supported by " + url);
+        }
+    }
+}
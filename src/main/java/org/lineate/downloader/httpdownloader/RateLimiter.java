@@ -0,0 +1,147 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bandwidth limiter for the copy loops.
+ * <p>
+ * The limiter is a token bucket kept as a single timestamp: the time when
+ * all the bytes paid so far would have been sent at the allowed rate. A
+ * transfer pays for every chunk after it is received with one CAS and
+ * sleeps until the timestamp, there is no lock on the read path. A task
+ * limiter pays to its parent as well, so the task cap and the global
+ * budget apply together. The rate can be changed at any time, 0 means
+ * no limit.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+final class RateLimiter {
+
+    /**
+     * Nanoseconds in a second.
+     */
+    private static final long NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Number of chunks per second at the limited rate, keeps the transfer
+     * smooth.
+     */
+    private static final long CHUNKS_PER_SECOND = 10;
+
+    /**
+     * Smallest chunk at the limited rate.
+     */
+    private static final long MIN_CHUNK = 4 * 1024;
+
+    /**
+     * Parent limiter, null for the global one.
+     */
+    private final RateLimiter parent;
+
+    /**
+     * Allowed rate in bytes per second, 0 for no limit.
+     */
+    private volatile long rate;
+
+    /**
+     * Time in nanoseconds when the paid bytes are due at the allowed rate.
+     */
+    private final AtomicLong due = new AtomicLong(System.nanoTime());
+
+    /**
+     * Creates limiter.
+     *
+     * @param rateValue allowed rate in bytes per second, 0 for no limit
+     * @param parentValue parent limiter, may be null
+     */
+    RateLimiter(final long rateValue, final RateLimiter parentValue) {
+        this.rate = Math.max(rateValue, 0);
+        this.parent = parentValue;
+    }
+
+    /**
+     * Changes allowed rate.
+     *
+     * @param value rate in bytes per second, 0 for no limit
+     */
+    void setRate(final long value) {
+        rate = Math.max(value, 0);
+    }
+
+    /**
+     * Returns allowed rate.
+     *
+     * @return rate in bytes per second, 0 for no limit
+     */
+    long getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns chunk size which keeps the transfer smooth at the allowed
+     * rate of this limiter and its parents.
+     *
+     * @param max chunk size without the limit
+     * @return chunk size in bytes
+     */
+    long chunk(final long max) {
+        long value = max;
+        for (RateLimiter limiter = this; limiter != null;
+             limiter = limiter.parent) {
+            long current = limiter.rate;
+            if (current > 0) {
+                value = Math.min(value, Math.max(MIN_CHUNK,
+                        current / CHUNKS_PER_SECOND));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Pays for the received bytes and waits until the rate allows them.
+     *
+     * @param bytes received bytes
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    void acquire(final long bytes) throws InterruptedIOException {
+        long wait = pay(bytes);
+        if (parent != null) {
+            wait = Math.max(wait, parent.pay(bytes));
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Transfer interrupted");
+            }
+        }
+    }
+
+    /**
+     * Moves the due time by the cost of the bytes.
+     *
+     * @return nanoseconds to wait
+     */
+    private long pay(final long bytes) {
+        long current = rate;
+        if (current == 0) {
+            return 0;
+        }
+        long cost = bytes * NANOS / current;
+        long now = System.nanoTime();
+        long previous;
+        long next;
+        do {
+            previous = due.get();
+            // idle time is not saved up for a later burst
+            next = Math.max(previous, now) + cost;
+        } while (!due.compareAndSet(previous, next));
+        return next - now;
+    }
+}
@@ -0,0 +1,158 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+
+/**
+ * Reactive transfer engine for {@link HttpFileDownloaderReactive}.
+ * <p>
+ * Response body is a {@link Flux} of {@link ByteBuffer}s which reads the
+ * next block only when it is requested. File sink writes buffers with
+ * {@link AsynchronousFileChannel} and requests the next one only after
+ * the previous write is complete, so a slow disk stops the reads and the
+ * socket receive window applies backpressure to the server. Blocks are
+ * taken from a {@link BufferPool} and given back once they are written or
+ * discarded.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.1
+ */
+
+final class ReactiveTransfer {
+
+    /**
+     * Size of a body block.
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private ReactiveTransfer() {
+    }
+
+    /**
+     * Returns response body as a demand driven stream of buffers.
+     *
+     * @param inputStream response stream, closed at the end of the body
+     * @param scheduler scheduler for the blocking reads
+     * @param buffers pool of the blocks, a block is given back by the
+     *                writer
+     * @return stream of filled buffers
+     */
+    static Flux<ByteBuffer> body(final InputStream inputStream,
+                                 final Scheduler scheduler,
+                                 final BufferPool buffers) {
+        return Flux.<ByteBuffer, ReadableByteChannel>generate(
+                () -> Channels.newChannel(inputStream),
+                (source, sink) -> {
+                    ByteBuffer buffer = null;
+                    try {
+                        buffer = buffers.acquire(BLOCK_SIZE);
+                        if (source.read(buffer) == -1) {
+                            buffers.release(buffer);
+                            sink.complete();
+                        } else {
+                            buffer.flip();
+                            sink.next(buffer);
+                        }
+                    } catch (IOException ex) {
+                        if (buffer != null) {
+                            buffers.release(buffer);
+                        }
+                        sink.error(ex);
+                    }
+                    return source;
+                },
+                (source) -> {
+                    try {
+                        source.close();
+                    } catch (IOException ex) {
+                        // the body is already consumed or failed
+                    }
+                })
+                .subscribeOn(scheduler);
+    }
+
+    /**
+     * Writes the stream of buffers to the file.
+     *
+     * @param body stream of buffers
+     * @param destination destination file, truncated before writing
+     * @param progress receives total written bytes after every buffer
+     * @param buffers pool the written buffers are given back to
+     * @return total written bytes
+     */
+    static Mono<Long> write(final Flux<ByteBuffer> body,
+                            final Path destination,
+                            final LongConsumer progress,
+                            final BufferPool buffers) {
+        return Mono.using(
+                () -> AsynchronousFileChannel.open(destination,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING),
+                (channel) -> {
+                    AtomicLong position = new AtomicLong();
+                    return body
+                            .concatMap((buffer) -> write(channel, buffer,
+                                    position.get(), buffers), 1)
+                            // the hook reaches the queued and unsent blocks
+                            // of the operators above
+                            .doOnDiscard(ByteBuffer.class, buffers::release)
+                            .map((written) -> {
+                                long total = position.addAndGet(written);
+                                progress.accept(total);
+                                return total;
+                            })
+                            .then(Mono.fromCallable(position::get));
+                },
+                (channel) -> {
+                    try {
+                        channel.close();
+                    } catch (IOException ex) {
+                        // nothing to do with a failed close
+                    }
+                });
+    }
+
+    private static Mono<Integer> write(final AsynchronousFileChannel channel,
+                                       final ByteBuffer buffer,
+                                       final long position,
+                                       final BufferPool buffers) {
+        int length = buffer.remaining();
+        return Mono.create((sink) -> channel.write(buffer, position, sink,
+                new CompletionHandler<Integer, MonoSink<Integer>>() {
+                    @Override
+                    public void completed(final Integer written,
+                                          final MonoSink<Integer> result) {
+                        if (buffer.hasRemaining()) {
+                            channel.write(buffer, position + length
+                                    - buffer.remaining(), result, this);
+                        } else {
+                            buffers.release(buffer);
+                            result.success(length);
+                        }
+                    }
+
+                    @Override
+                    public void failed(final Throwable ex,
+                                       final MonoSink<Integer> result) {
+                        buffers.release(buffer);
+                        result.error(ex);
+                    }
+                }));
+    }
+}
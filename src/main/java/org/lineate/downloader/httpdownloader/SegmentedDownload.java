@@ -0,0 +1,518 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lineate.downloader.progressbar.DownloadProgress;
+
+/**
+ * Multi-connection download of a single file using HTTP byte ranges.
+ * <p>
+ * The file is split into equal segments which are fetched in parallel,
+ * each one written at its own offset of the destination. A worker which
+ * has finished its segment takes over the second half of the largest
+ * unfinished one, so slow connections do not hold the whole download.
+ * With a {@link Checkpoint} only missing ranges are fetched and the
+ * committed ranges are saved periodically.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.4
+ */
+
+final class SegmentedDownload {
+
+    /**
+     * Smallest segment which is still worth a separate connection.
+     */
+    static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Http status code for partial content responses.
+     */
+    private static final int PARTIAL_CONTENT = 206;
+
+    /**
+     * Source url.
+     */
+    private final URL source;
+
+    /**
+     * Destination file.
+     */
+    private final File destination;
+
+    /**
+     * Total size of the file in bytes.
+     */
+    private final long size;
+
+    /**
+     * Number of parallel connections.
+     */
+    private final int connections;
+
+    /**
+     * Smallest segment which can be split.
+     */
+    private final long minSegmentSize;
+
+    /**
+     * Pool for the additional connections.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Connection manager of the downloader.
+     */
+    private final ConnectionManager connectionManager;
+
+    /**
+     * Bandwidth limiter of the download task.
+     */
+    private final RateLimiter limiter;
+
+    /**
+     * Progress record of the download task.
+     */
+    private final DownloadProgress progress;
+
+    /**
+     * All segments of the file, guarded by this object monitor.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * Total downloaded bytes at the last checkpoint save.
+     */
+    private final AtomicLong saved = new AtomicLong();
+
+    /**
+     * Checkpoint of the download, null if resume is off.
+     */
+    private Checkpoint checkpoint;
+
+    /**
+     * Set when any of the workers has failed.
+     */
+    private volatile boolean aborted;
+
+    /**
+     * Output mode of the destination.
+     */
+    private FileSink.Mode mode = FileSink.Mode.POSITIONAL;
+
+    /**
+     * Whether the destination is extended to its size before writing.
+     */
+    private boolean preallocate;
+
+    /**
+     * Pool of the read buffers.
+     */
+    private BufferPool buffers = new BufferPool(0, true);
+
+    /**
+     * Destination of the segments, open while fetching.
+     */
+    private FileSink sink;
+
+    /**
+     * Creates segmented download.
+     *
+     * @param sourceValue source url
+     * @param destinationValue destination file
+     * @param sizeValue size of the file in bytes
+     * @param connectionsValue number of parallel connections
+     * @param minSegmentSizeValue smallest segment which can be split
+     * @param poolValue pool for the additional connections
+     * @param connectionManagerValue connection manager of the downloader
+     * @param limiterValue bandwidth limiter shared by the connections
+     * @param progressValue progress record of the download task
+     */
+    SegmentedDownload(final URL sourceValue,
+                      final File destinationValue,
+                      final long sizeValue,
+                      final int connectionsValue,
+                      final long minSegmentSizeValue,
+                      final ExecutorService poolValue,
+                      final ConnectionManager connectionManagerValue,
+                      final RateLimiter limiterValue,
+                      final DownloadProgress progressValue) {
+        this.source = sourceValue;
+        this.destination = destinationValue;
+        this.size = sizeValue;
+        this.connections = connectionsValue;
+        this.minSegmentSize = minSegmentSizeValue;
+        this.pool = poolValue;
+        this.connectionManager = connectionManagerValue;
+        this.limiter = limiterValue;
+        this.progress = progressValue;
+    }
+
+    /**
+     * Sets output mode of the destination.
+     *
+     * @param modeValue output mode
+     * @param preallocateValue extend the file to its size before writing
+     * @return this download
+     */
+    SegmentedDownload output(final FileSink.Mode modeValue,
+                             final boolean preallocateValue) {
+        this.mode = modeValue;
+        this.preallocate = preallocateValue;
+        return this;
+    }
+
+    /**
+     * Sets pool of the read buffers, a pool of direct buffers without a
+     * limit by default.
+     *
+     * @param buffersValue buffer pool
+     * @return this download
+     */
+    SegmentedDownload buffers(final BufferPool buffersValue) {
+        this.buffers = buffersValue;
+        return this;
+    }
+
+    /**
+     * Checks if the response allows segmented download.
+     *
+     * @param response opened connection to the source
+     * @param minSegmentSize smallest segment which can be split
+     * @return true if server accepts byte ranges and the file is big enough
+     */
+    static boolean supported(final URLConnection response,
+                             final long minSegmentSize) {
+        return "bytes".equalsIgnoreCase(
+                response.getHeaderField("Accept-Ranges"))
+                && response.getContentLengthLong() >= 2 * minSegmentSize;
+    }
+
+    /**
+     * Fetches the file. The already opened connection is reused for the
+     * first segment, the rest of segments are fetched in the pool.
+     *
+     * @param first response of the source, starting at the first missing
+     *              byte
+     * @param checkpointValue checkpoint of the download, may be null
+     * @return total downloaded bytes
+     * @throws IOException on any failed segment
+     */
+    long fetch(final Hedging.Response first,
+               final Checkpoint checkpointValue)
+            throws IOException {
+        this.checkpoint = checkpointValue;
+        boolean resumed = checkpoint != null && checkpoint.committed() > 0;
+        List<Segment> initial;
+        if (resumed) {
+            progress.set(checkpoint.committed());
+            saved.set(checkpoint.committed());
+            initial = split(checkpoint.missing());
+        } else {
+            initial = split(Collections.singletonList(new long[]{0, size}));
+        }
+
+        try (FileSink output = FileSink.open(destination, size, mode,
+                preallocate, !resumed)) {
+            this.sink = output;
+
+            List<Future<Void>> workers = new ArrayList<>();
+            for (Segment segment : initial.subList(1, initial.size())) {
+                workers.add(pool.submit(() -> work(output, segment, null)));
+            }
+
+            IOException failure = null;
+            try {
+                work(output, initial.get(0), first);
+            } catch (IOException ex) {
+                failure = ex;
+            }
+
+            failure = joinWorkers(workers, failure, () -> aborted = true);
+            if (failure != null) {
+                save();
+                throw failure;
+            }
+        }
+
+        long downloaded = progress.getDownloaded();
+        if (downloaded != size) {
+            throw new IOException("Downloaded " + downloaded
+                    + " bytes of " + size);
+        }
+        return downloaded;
+    }
+
+    /**
+     * Waits for the workers of a download. The sink is closed only when
+     * no worker writes to it, so an interrupt stops the workers and is
+     * restored after them.
+     *
+     * @param workers futures of the workers
+     * @param failure failure of the download so far, null if none
+     * @param stop stops the workers
+     * @return interrupt of the wait, or the given failure, or the first
+     *         failure of the workers, null if all of them have succeeded
+     */
+    static IOException joinWorkers(final List<Future<Void>> workers,
+                                   final IOException failure,
+                                   final Runnable stop) {
+        IOException result = failure;
+        boolean interrupted = false;
+        for (Future<Void> worker : workers) {
+            boolean done = false;
+            while (!done) {
+                try {
+                    worker.get();
+                    done = true;
+                } catch (ExecutionException ex) {
+                    if (result == null) {
+                        result = new IOException(ex.getCause());
+                    }
+                    done = true;
+                } catch (InterruptedException ex) {
+                    if (!interrupted) {
+                        interrupted = true;
+                        stop.run();
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            return new InterruptedIOException("Download interrupted");
+        }
+        return result;
+    }
+
+    private synchronized List<Segment> split(final List<long[]> missing) {
+        for (long[] range : missing) {
+            segments.add(new Segment(range[0], range[1]));
+        }
+        Segment first = segments.get(0);
+        while (segments.size() < connections) {
+            Segment largest = first;
+            for (Segment segment : segments) {
+                if (segment.remaining() > largest.remaining()) {
+                    largest = segment;
+                }
+            }
+            Segment tail = largest.split(minSegmentSize);
+            if (tail == null) {
+                break;
+            }
+            segments.add(tail);
+        }
+        segments.sort((a, b) -> Long.compare(a.position(), b.position()));
+        return new ArrayList<>(segments);
+    }
+
+    private void save() {
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            // committed ranges must be on the disk before the checkpoint
+            sink.flush();
+        } catch (IOException ex) {
+            aborted = true;
+            return;
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                checkpoint.commit(segment.start(), segment.position());
+            }
+        }
+        try {
+            checkpoint.save();
+        } catch (IOException ex) {
+            aborted = true;
+        }
+    }
+
+    private Void work(final FileSink output,
+                      final Segment initial,
+                      final Hedging.Response opened) throws IOException {
+        Segment segment = initial;
+        Hedging.Response response = opened;
+        try {
+            while (segment != null && !aborted) {
+                if (response == null) {
+                    response = new Hedging.Response(openRange(segment));
+                }
+                transfer(response, output, segment);
+                response = null;
+                segment = steal();
+            }
+        } catch (IOException ex) {
+            aborted = true;
+            throw ex;
+        }
+        return null;
+    }
+
+    private URLConnection openRange(final Segment segment)
+            throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) connectionManager.open(source);
+        connection.setRequestProperty("Range", "bytes="
+                + segment.position() + "-" + (segment.end() - 1));
+        if (checkpoint != null) {
+            connection.setRequestProperty("If-Range",
+                    checkpoint.validator());
+        }
+        if (connection.getResponseCode() != PARTIAL_CONTENT) {
+            connection.disconnect();
+            throw new IOException("Range request is not supported by "
+                    + source);
+        }
+        return connection;
+    }
+
+    private void transfer(final Hedging.Response response,
+                          final FileSink output,
+                          final Segment segment) throws IOException {
+        final URLConnection connection = response.connection();
+        final ByteBuffer buffer = buffers.acquire(
+                (int) limiter.chunk(ChannelTransfer.BLOCK_SIZE));
+        long received = 0;
+        try (InputStream inputStream = response.body()) {
+            ReadableByteChannel source = Channels.newChannel(inputStream);
+            while (!aborted && ChannelTransfer.read(source, buffer)) {
+                received += buffer.remaining();
+                limiter.acquire(buffer.remaining());
+                int written = segment.write(output, buffer);
+                long total = progress.add(written);
+                long last = saved.get();
+                if (checkpoint != null && total - last >= Checkpoint.INTERVAL
+                        && saved.compareAndSet(last, total)) {
+                    save();
+                }
+                if (segment.remaining() == 0) {
+                    break;
+                }
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+        connectionManager.release(connection, received);
+        if (!aborted && segment.remaining() > 0) {
+            throw new IOException("Unexpected end of segment at "
+                    + segment.position() + " of " + source);
+        }
+    }
+
+    private synchronized Segment steal() {
+        Segment slowest = null;
+        long remaining = 0;
+        for (Segment segment : segments) {
+            long left = segment.remaining();
+            if (left > remaining) {
+                remaining = left;
+                slowest = segment;
+            }
+        }
+        if (slowest == null) {
+            return null;
+        }
+        Segment tail = slowest.split(minSegmentSize);
+        if (tail != null) {
+            segments.add(tail);
+        }
+        return tail;
+    }
+
+    /**
+     * Byte range of the file: the next byte to write and the end of the
+     * range (exclusive). The end can be moved back by a stealing worker.
+     */
+    private static final class Segment {
+
+        /**
+         * First byte of the segment.
+         */
+        private final long start;
+
+        /**
+         * Next byte to write.
+         */
+        private long position;
+
+        /**
+         * End of the range, exclusive.
+         */
+        private long end;
+
+        Segment(final long startValue, final long endValue) {
+            this.start = startValue;
+            this.position = startValue;
+            this.end = endValue;
+        }
+
+        long start() {
+            return start;
+        }
+
+        synchronized long position() {
+            return position;
+        }
+
+        synchronized long end() {
+            return end;
+        }
+
+        synchronized long remaining() {
+            return end - position;
+        }
+
+        /**
+         * Writes received bytes which still belong to the segment.
+         *
+         * @param output destination of the segment
+         * @param buffer received data
+         * @return number of written bytes
+         * @throws IOException on write error
+         */
+        synchronized int write(final FileSink output,
+                               final ByteBuffer buffer) throws IOException {
+            int allowed = (int) Math.min(buffer.remaining(), end - position);
+            buffer.limit(buffer.position() + allowed);
+            position += output.write(buffer, position);
+            return allowed;
+        }
+
+        /**
+         * Cuts off the second half of the remaining range.
+         *
+         * @param minSize smallest segment which can be split
+         * @return new segment or null if the segment is too small
+         */
+        synchronized Segment split(final long minSize) {
+            long left = end - position;
+            if (left < 2 * minSize) {
+                return null;
+            }
+            long middle = position + left / 2;
+            Segment tail = new Segment(middle, end);
+            end = middle;
+            return tail;
+        }
+    }
+}
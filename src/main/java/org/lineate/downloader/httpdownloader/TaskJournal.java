@@ -0,0 +1,458 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.lineate.downloader.metalink.Metalink;
+import org.lineate.downloader.progressbar.DownloadStatus;
+import org.lineate.downloader.progressbar.ProgressEvent;
+import org.lineate.downloader.progressbar.ProgressListener;
+import org.lineate.downloader.progressbar.Progressbar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the download tasks of a downloader.
+ * <p>
+ * Every task is recorded with a line per event: CREATE with the task
+ * options, START with the size, PROGRESS with the downloaded bytes,
+ * FINISH, FAIL with the failed status and REMOVE. The callers only put
+ * the record to a queue, a background thread appends the queued records
+ * in one write and forces them to the disk every
+ * {@link #BATCH_INTERVAL} milliseconds. On open the journal replays the
+ * log into the task states and rewrites it as a compact snapshot, the
+ * same compaction runs when the log grows well beyond the live tasks.
+ * A torn last line after a crash is skipped.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.2
+ */
+
+final class TaskJournal implements ProgressListener, Closeable {
+
+    /**
+     * Default class logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(TaskJournal.class);
+
+    /**
+     * Interval between the batched writes in milliseconds.
+     */
+    static final long BATCH_INTERVAL = 200;
+
+    /**
+     * Number of records in the log which never triggers compaction.
+     */
+    private static final int COMPACT_MIN = 1000;
+
+    /**
+     * Separator of the record fields.
+     */
+    private static final String SEPARATOR = "\t";
+
+    /**
+     * Journal file.
+     */
+    private final Path file;
+
+    /**
+     * Records waiting for the next batch.
+     */
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Task states as of the written records, used by the writer thread.
+     */
+    private final Map<UUID, Task> tasks = new LinkedHashMap<>();
+
+    /**
+     * Writer of the batches.
+     */
+    private final ScheduledExecutorService writer;
+
+    /**
+     * Append channel of the log, used by the writer thread.
+     */
+    private FileChannel channel;
+
+    /**
+     * Records in the log since the last compaction.
+     */
+    private long records;
+
+    /**
+     * Opens the journal, replays and compacts the existing log.
+     *
+     * @param fileValue journal file
+     * @throws IOException if the journal can not be read or written
+     */
+    TaskJournal(final File fileValue) throws IOException {
+        this.file = fileValue.toPath();
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file,
+                    StandardCharsets.UTF_8)) {
+                apply(line);
+            }
+        }
+        compact();
+        writer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "downloader-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::flush, BATCH_INTERVAL,
+                BATCH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns replayed task states in the order of creation.
+     *
+     * @return snapshot of the tasks
+     */
+    synchronized List<Task> tasks() {
+        return Collections.unmodifiableList(new ArrayList<>(tasks.values()));
+    }
+
+    /**
+     * Records created task.
+     *
+     * @param id task id
+     * @param data task options
+     */
+    void created(final UUID id, final DownloadData data) {
+        pending.add(record("CREATE", id, encode(data)));
+    }
+
+    /**
+     * Records removed task.
+     *
+     * @param id task id
+     */
+    void removed(final UUID id) {
+        pending.add(record("REMOVE", id, ""));
+    }
+
+    @Override
+    public void onEvent(final ProgressEvent event) {
+        Progressbar progress = event.getProgress();
+        DownloadStatus status = progress.getStatus();
+        UUID id = event.getId();
+        if (!event.isTransition()) {
+            pending.add(record("PROGRESS", id,
+                    String.valueOf(progress.getDownloaded())));
+        } else if (status == DownloadStatus.DOWNLOADING) {
+            pending.add(record("START", id,
+                    String.valueOf(progress.getSize())));
+        } else if (status == DownloadStatus.FINISHED) {
+            pending.add(record("PROGRESS", id,
+                    String.valueOf(progress.getDownloaded())));
+            pending.add(record("FINISH", id, ""));
+        } else if (event.isTerminal()) {
+            pending.add(record("FAIL", id, status.name()));
+        }
+    }
+
+    /**
+     * Writes the pending records and stops the writer.
+     *
+     * @throws IOException if the last batch can not be written
+     */
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            write();
+            channel.close();
+        }
+    }
+
+    private synchronized void flush() {
+        try {
+            write();
+            if (records > Math.max(COMPACT_MIN, 2L * tasks.size())) {
+                compact();
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Unable to write journal '{}'", file, ex);
+        }
+    }
+
+    private void write() throws IOException {
+        StringBuilder batch = new StringBuilder();
+        String line;
+        while ((line = pending.poll()) != null) {
+            apply(line);
+            batch.append(line).append('\n');
+            records++;
+        }
+        if (batch.length() > 0) {
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(
+                    batch.toString());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Rewrites the log as one record set per live task, the new log
+     * replaces the old one atomically.
+     */
+    private synchronized void compact() throws IOException {
+        StringBuilder snapshot = new StringBuilder();
+        for (Map.Entry<UUID, Task> entry : tasks.entrySet()) {
+            Task task = entry.getValue();
+            UUID id = entry.getKey();
+            snapshot.append(record("CREATE", id, encode(task.data)))
+                    .append('\n');
+            if (task.status != DownloadStatus.NOT_STARTED) {
+                snapshot.append(record("START", id,
+                        String.valueOf(task.size))).append('\n');
+                snapshot.append(record("PROGRESS", id,
+                        String.valueOf(task.downloaded))).append('\n');
+            }
+            if (task.status == DownloadStatus.FINISHED) {
+                snapshot.append(record("FINISH", id, "")).append('\n');
+            } else if (task.status != DownloadStatus.NOT_STARTED
+                    && task.status != DownloadStatus.DOWNLOADING) {
+                snapshot.append(record("FAIL", id, task.status.name()))
+                        .append('\n');
+            }
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(
+                    snapshot.toString());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        records = 0;
+    }
+
+    /**
+     * Applies a record to the task states, broken records are skipped.
+     */
+    private synchronized void apply(final String line) {
+        String[] fields = line.split(SEPARATOR, -1);
+        if (fields.length != 3) {
+            return;
+        }
+        try {
+            UUID id = UUID.fromString(fields[1]);
+            String value = fields[2];
+            if ("CREATE".equals(fields[0])) {
+                tasks.put(id, new Task(id, decode(value)));
+                return;
+            }
+            Task task = tasks.get(id);
+            if (task == null) {
+                return;
+            }
+            switch (fields[0]) {
+                case "START":
+                    task.status = DownloadStatus.DOWNLOADING;
+                    task.size = Long.parseLong(value);
+                    task.downloaded = 0;
+                    break;
+                case "PROGRESS":
+                    task.downloaded = Long.parseLong(value);
+                    break;
+                case "FINISH":
+                    task.status = DownloadStatus.FINISHED;
+                    break;
+                case "FAIL":
+                    task.status = DownloadStatus.valueOf(value);
+                    break;
+                case "REMOVE":
+                    tasks.remove(id);
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Skipping broken journal record '{}'", line);
+        }
+    }
+
+    private static String record(final String type, final UUID id,
+                                 final String value) {
+        return type + SEPARATOR + id + SEPARATOR + value;
+    }
+
+    private static String encode(final DownloadData data) {
+        String[] fields = {
+                data.getSourceUri(),
+                data.getLocalFile(),
+                String.valueOf(data.getRateLimit()),
+                String.valueOf(data.getPriority()),
+                data.getDeadline() == null
+                        ? "" : String.valueOf(data.getDeadline()),
+                data.getChecksumAlgorithm(),
+                data.getChecksum(),
+                data.getExtractDirectory(),
+                String.valueOf(data.isKeepArchive()),
+                data.getAlternateUri(),
+                data.getMetalink() == null ? null : data.getMetalink().toXml()
+        };
+        StringBuilder value = new StringBuilder();
+        for (String field : fields) {
+            if (value.length() > 0) {
+                value.append(',');
+            }
+            value.append(escape(field));
+        }
+        return value.toString();
+    }
+
+    private static DownloadData decode(final String value) {
+        String[] fields = value.split(",", -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = unescape(fields[i]);
+        }
+        DownloadData data = new DownloadData(fields[0], fields[1])
+                .withRateLimit(Long.parseLong(fields[2]))
+                .withPriority(Integer.parseInt(fields[3]));
+        if (!fields[4].isEmpty()) {
+            data = data.withDeadline(Instant.parse(fields[4]));
+        }
+        if (!fields[5].isEmpty()) {
+            data = data.withChecksum(fields[5], fields[6]);
+        }
+        if (!fields[7].isEmpty()) {
+            data = data.withExtraction(fields[7],
+                    Boolean.parseBoolean(fields[8]));
+        }
+        // journals of the older versions have no alternate url
+        if (fields.length > 9 && !fields[9].isEmpty()) {
+            data = data.withAlternate(fields[9]);
+        }
+        if (fields.length > 10 && !fields[10].isEmpty()) {
+            data = data.withMetalink(metalink(fields[10]));
+        }
+        return data;
+    }
+
+    private static Metalink metalink(final String xml) {
+        try {
+            return Metalink.parse(new ByteArrayInputStream(
+                    xml.getBytes(StandardCharsets.UTF_8))).get(0);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String escape(final String field) {
+        try {
+            return field == null ? "" : URLEncoder.encode(field, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String unescape(final String field) {
+        try {
+            return URLDecoder.decode(field, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Replayed state of a task.
+     */
+    static final class Task {
+
+        /**
+         * Task id.
+         */
+        private final UUID id;
+
+        /**
+         * Task options.
+         */
+        private final DownloadData data;
+
+        /**
+         * Last recorded status.
+         */
+        private DownloadStatus status = DownloadStatus.NOT_STARTED;
+
+        /**
+         * Size of the file, 0 until started.
+         */
+        private long size;
+
+        /**
+         * Last recorded downloaded bytes.
+         */
+        private long downloaded;
+
+        Task(final UUID idValue, final DownloadData dataValue) {
+            this.id = idValue;
+            this.data = dataValue;
+        }
+
+        UUID getId() {
+            return id;
+        }
+
+        DownloadData getData() {
+            return data;
+        }
+
+        DownloadStatus getStatus() {
+            return status;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getDownloaded() {
+            return downloaded;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import org.lineate.downloader.progressbar.DownloadProgress;
+import org.lineate.downloader.progressbar.Progressbar;
+
+/**
+ * Registry of the download tasks of a downloader.
+ * <p>
+ * A task is known from its creation until it is removed. It is pending
+ * with its options until it is finished, a failed task stays pending for
+ * another attempt. A task which is about to run takes its live progress
+ * record and limiter with {@link #acquire(UUID)} and gives them back with
+ * {@link #release(UUID)}, the rest of the time the registry may keep the
+ * task state in any form.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+interface TaskRegistry {
+
+    /**
+     * Adds new task.
+     *
+     * @param id task id
+     * @param data task options
+     */
+    void add(UUID id, DownloadData data);
+
+    /**
+     * Sets restored state of a task which is not running.
+     *
+     * @param id task id
+     * @param state status, size and downloaded bytes
+     */
+    void restore(UUID id, Progressbar state);
+
+    /**
+     * Removes task.
+     *
+     * @param id task id
+     * @return true if the task was known
+     */
+    boolean remove(UUID id);
+
+    /**
+     * Checks whether the task is known.
+     *
+     * @param id task id
+     * @return true if the task is known
+     */
+    boolean contains(UUID id);
+
+    /**
+     * Returns options of a pending task.
+     *
+     * @param id task id
+     * @return options, null if the task is unknown or finished
+     */
+    DownloadData pending(UUID id);
+
+    /**
+     * Marks task as finished, it is no longer pending.
+     *
+     * @param id task id
+     */
+    void finished(UUID id);
+
+    /**
+     * Returns number of the pending tasks.
+     *
+     * @return pending tasks
+     */
+    int pendingCount();
+
+    /**
+     * Calls the action for every pending task.
+     *
+     * @param action receives task id and options
+     */
+    void forEachPending(BiConsumer<UUID, DownloadData> action);
+
+    /**
+     * Returns snapshot of the task progress.
+     *
+     * @param id task id
+     * @return snapshot, null if the task is unknown
+     */
+    Progressbar snapshot(UUID id);
+
+    /**
+     * Takes live progress record of a task which is about to run. Every
+     * call must be paired with {@link #release(UUID)}.
+     *
+     * @param id task id
+     * @return progress record, null if the task is unknown
+     */
+    DownloadProgress acquire(UUID id);
+
+    /**
+     * Returns bandwidth limiter of an acquired task.
+     *
+     * @param id task id
+     * @return limiter, null if the task is not acquired
+     */
+    RateLimiter limiter(UUID id);
+
+    /**
+     * Gives back the progress record of a task which has stopped running.
+     *
+     * @param id task id
+     */
+    void release(UUID id);
+
+    /**
+     * Changes bandwidth cap of a task, running or not.
+     *
+     * @param id task id
+     * @param bytesPerSecond rate, 0 for no limit
+     * @return false if the task is unknown
+     */
+    boolean setRateLimit(UUID id, long bytesPerSecond);
+
+    /**
+     * Returns ids of the known tasks.
+     *
+     * @return live view of the ids
+     */
+    Set<UUID> ids();
+
+    /**
+     * Removes all the tasks.
+     */
+    void clear();
+}
@@ -0,0 +1,65 @@
+package org.lineate.downloader.httpdownloader;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factory for the virtual thread per task executors.
+ * <p>
+ * The library is built for Java 8, so the executor is looked up
+ * reflectively and is available only on a runtime with virtual threads
+ * (Java 21 or later).
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+final class VirtualThreads {
+
+    /**
+     * Factory method of the executor, null if the runtime lacks it.
+     */
+    private static final Method FACTORY = factory();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Checks whether the runtime supports virtual threads.
+     *
+     * @return true if {@link #newExecutor()} can be used
+     */
+    static boolean supported() {
+        return FACTORY != null;
+    }
+
+    /**
+     * Creates executor which starts a new virtual thread for every task.
+     *
+     * @return executor, null if virtual threads are not supported
+     */
+    static ExecutorService newExecutor() {
+        if (FACTORY == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) FACTORY.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static Method factory() {
+        try {
+            Method method = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            // preview builds declare the method but refuse to run it
+            ((ExecutorService) method.invoke(null)).shutdown();
+            return method;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
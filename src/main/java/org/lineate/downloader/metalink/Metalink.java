@@ -0,0 +1,458 @@
+package org.lineate.downloader.metalink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Mirrored file: its urls, size and hashes.
+ * <p>
+ * A Metalink is read from a Metalink 4 document (RFC 5854) or made from
+ * a plain list of mirror urls. The urls are ordered by their priority,
+ * the hash of the whole file and the piece hashes are kept for the
+ * strongest supported algorithm. A downloader fetches the pieces from
+ * several mirrors at once and checks every piece against its hash.
+ * </p>
+ * <p>
+ * The file name of the document is kept as it is; it may contain a path
+ * and must not be trusted as a destination.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+public final class Metalink {
+
+    /**
+     * Namespace of the Metalink 4 documents.
+     */
+    public static final String NAMESPACE = "urn:ietf:params:xml:ns:metalink";
+
+    /**
+     * Hash algorithms in the Metalink names, the strongest first.
+     */
+    private static final String[] ALGORITHMS =
+            {"sha-512", "sha-384", "sha-256", "sha-1", "md5"};
+
+    /**
+     * Priority of the urls without one.
+     */
+    private static final int LOWEST_PRIORITY = Integer.MAX_VALUE;
+
+    /**
+     * File name, may be null.
+     */
+    private final String name;
+
+    /**
+     * File size in bytes, negative if unknown.
+     */
+    private final long size;
+
+    /**
+     * Mirror urls, the preferred first.
+     */
+    private final List<String> urls;
+
+    /**
+     * Digest algorithm of the file hash, null if there is none.
+     */
+    private final String checksumAlgorithm;
+
+    /**
+     * Hash of the file as lower case hex string, null if there is none.
+     */
+    private final String checksum;
+
+    /**
+     * Digest algorithm of the piece hashes, null if there are none.
+     */
+    private final String pieceAlgorithm;
+
+    /**
+     * Piece size in bytes, 0 if there are no piece hashes.
+     */
+    private final long pieceLength;
+
+    /**
+     * Hashes of the pieces as lower case hex strings.
+     */
+    private final List<String> pieceHashes;
+
+    private Metalink(final String nameValue,
+                     final long sizeValue,
+                     final List<String> urlsValue,
+                     final String[] checksumValue,
+                     final String pieceAlgorithmValue,
+                     final long pieceLengthValue,
+                     final List<String> pieceHashesValue) {
+        this.name = nameValue;
+        this.size = sizeValue;
+        this.urls = Collections.unmodifiableList(urlsValue);
+        this.checksumAlgorithm =
+                checksumValue == null ? null : checksumValue[0];
+        this.checksum = checksumValue == null ? null : checksumValue[1];
+        this.pieceAlgorithm = pieceAlgorithmValue;
+        this.pieceLength = pieceLengthValue;
+        this.pieceHashes = Collections.unmodifiableList(pieceHashesValue);
+    }
+
+    /**
+     * Makes Metalink of mirror urls without hashes.
+     *
+     * @param urls urls of the same file, the preferred first
+     * @return Metalink
+     */
+    public static Metalink of(final List<String> urls) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No mirror urls");
+        }
+        for (String url : urls) {
+            try {
+                new URL(url);
+            } catch (MalformedURLException ex) {
+                throw new IllegalArgumentException("Wrong mirror url: " + url);
+            }
+        }
+        return new Metalink(null, -1, new ArrayList<>(urls), null, null, 0,
+                Collections.emptyList());
+    }
+
+    /**
+     * Reads Metalink 4 document. Files without http, https or ftp urls
+     * are skipped, so are hashes of unsupported algorithms.
+     *
+     * @param input document stream, not closed
+     * @return described files in the document order
+     * @throws IOException if the document can not be read or is not a
+     *                     Metalink 4 document
+     */
+    public static List<Metalink> parse(final InputStream input)
+            throws IOException {
+        Document document;
+        try {
+            DocumentBuilderFactory factory =
+                    DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            // a document from the network must not reach local files
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature(
+                    "http://apache.org/xml/features/disallow-doctype-decl",
+                    true);
+            factory.setExpandEntityReferences(false);
+            document = factory.newDocumentBuilder().parse(input);
+        } catch (ParserConfigurationException | SAXException ex) {
+            throw new IOException("Unable to read Metalink document", ex);
+        }
+        Element root = document.getDocumentElement();
+        if (!NAMESPACE.equals(root.getNamespaceURI())
+                || !"metalink".equals(root.getLocalName())) {
+            throw new IOException("Not a Metalink 4 document: "
+                    + root.getNodeName());
+        }
+        List<Metalink> files = new ArrayList<>();
+        for (Element file : children(root, "file")) {
+            Metalink metalink = file(file);
+            if (metalink != null) {
+                files.add(metalink);
+            }
+        }
+        return files;
+    }
+
+    private static Metalink file(final Element file) throws IOException {
+        List<Element> urlElements = new ArrayList<>();
+        for (Element url : children(file, "url")) {
+            String text = url.getTextContent().trim();
+            String protocol = text.toLowerCase(Locale.ROOT);
+            if (protocol.startsWith("http://")
+                    || protocol.startsWith("https://")
+                    || protocol.startsWith("ftp://")) {
+                urlElements.add(url);
+            }
+        }
+        if (urlElements.isEmpty()) {
+            return null;
+        }
+        // the sort is stable, urls of the same priority keep their order
+        urlElements.sort(Comparator.comparingInt(Metalink::priority));
+        List<String> urls = new ArrayList<>();
+        for (Element url : urlElements) {
+            urls.add(url.getTextContent().trim());
+        }
+
+        long size = -1;
+        for (Element element : children(file, "size")) {
+            size = number(element.getTextContent());
+        }
+        String[] checksum = strongest(children(file, "hash"));
+
+        String pieceAlgorithm = null;
+        long pieceLength = 0;
+        List<String> pieceHashes = Collections.emptyList();
+        int rank = ALGORITHMS.length;
+        for (Element pieces : children(file, "pieces")) {
+            int pieceRank = rank(pieces.getAttribute("type"));
+            if (pieceRank < rank) {
+                rank = pieceRank;
+                pieceAlgorithm = javaName(ALGORITHMS[pieceRank]);
+                pieceLength = number(pieces.getAttribute("length"));
+                pieceHashes = new ArrayList<>();
+                for (Element hash : children(pieces, "hash")) {
+                    pieceHashes.add(hex(hash));
+                }
+            }
+        }
+        if (pieceAlgorithm != null && (pieceLength < 1 || size >= 0
+                && pieceHashes.size() != (size + pieceLength - 1)
+                / pieceLength)) {
+            throw new IOException("Pieces do not match the size of "
+                    + file.getAttribute("name"));
+        }
+        String name = file.getAttribute("name");
+        return new Metalink(name.isEmpty() ? null : name, size, urls,
+                checksum, pieceAlgorithm, pieceLength, pieceHashes);
+    }
+
+    /**
+     * Writes the file as Metalink 4 document.
+     *
+     * @return document text
+     */
+    public String toXml() {
+        StringBuilder xml = new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<metalink xmlns=\"").append(NAMESPACE)
+                .append("\">\n  <file");
+        if (name != null) {
+            xml.append(" name=\"").append(escape(name)).append('"');
+        }
+        xml.append(">\n");
+        if (size >= 0) {
+            xml.append("    <size>").append(size).append("</size>\n");
+        }
+        if (checksum != null) {
+            xml.append("    <hash type=\"")
+                    .append(checksumAlgorithm.toLowerCase(Locale.ROOT))
+                    .append("\">").append(checksum).append("</hash>\n");
+        }
+        if (pieceAlgorithm != null) {
+            xml.append("    <pieces length=\"").append(pieceLength)
+                    .append("\" type=\"")
+                    .append(pieceAlgorithm.toLowerCase(Locale.ROOT))
+                    .append("\">\n");
+            for (String hash : pieceHashes) {
+                xml.append("      <hash>").append(hash).append("</hash>\n");
+            }
+            xml.append("    </pieces>\n");
+        }
+        for (int i = 0; i < urls.size(); i++) {
+            xml.append("    <url priority=\"").append(i + 1).append("\">")
+                    .append(escape(urls.get(i))).append("</url>\n");
+        }
+        return xml.append("  </file>\n</metalink>\n").toString();
+    }
+
+    /**
+     * Returns file name of the document.
+     *
+     * @return name, null if there is none
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns file size.
+     *
+     * @return size in bytes, negative if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns mirror urls.
+     *
+     * @return urls, the preferred first
+     */
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    /**
+     * Returns digest algorithm of the file hash.
+     *
+     * @return algorithm name, e.g. SHA-256, null if there is no hash
+     */
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * Returns hash of the file.
+     *
+     * @return lower case hex string, null if there is no hash
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Returns digest algorithm of the piece hashes.
+     *
+     * @return algorithm name, null if there are no piece hashes
+     */
+    public String getPieceAlgorithm() {
+        return pieceAlgorithm;
+    }
+
+    /**
+     * Returns piece size, the last piece may be shorter.
+     *
+     * @return size in bytes, 0 if there are no piece hashes
+     */
+    public long getPieceLength() {
+        return pieceLength;
+    }
+
+    /**
+     * Returns hashes of the pieces.
+     *
+     * @return lower case hex strings in the file order, empty if there are
+     * no piece hashes
+     */
+    public List<String> getPieceHashes() {
+        return pieceHashes;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        Metalink metalink = (Metalink) o;
+        return size == metalink.size
+                && pieceLength == metalink.pieceLength
+                && Objects.equals(name, metalink.name)
+                && urls.equals(metalink.urls)
+                && Objects.equals(checksumAlgorithm,
+                metalink.checksumAlgorithm)
+                && Objects.equals(checksum, metalink.checksum)
+                && Objects.equals(pieceAlgorithm, metalink.pieceAlgorithm)
+                && pieceHashes.equals(metalink.pieceHashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, size, urls, checksumAlgorithm, checksum,
+                pieceAlgorithm, pieceLength, pieceHashes);
+    }
+
+    private static List<Element> children(final Element parent,
+                                          final String localName) {
+        List<Element> elements = new ArrayList<>();
+        for (Node node = parent.getFirstChild(); node != null;
+             node = node.getNextSibling()) {
+            if (node instanceof Element
+                    && NAMESPACE.equals(node.getNamespaceURI())
+                    && localName.equals(node.getLocalName())) {
+                elements.add((Element) node);
+            }
+        }
+        return elements;
+    }
+
+    private static int priority(final Element url) {
+        String priority = url.getAttribute("priority");
+        try {
+            return priority.isEmpty()
+                    ? LOWEST_PRIORITY : Integer.parseInt(priority.trim());
+        } catch (NumberFormatException ex) {
+            return LOWEST_PRIORITY;
+        }
+    }
+
+    private static long number(final String text) throws IOException {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException ex) {
+            throw new IOException("Wrong number in Metalink: " + text);
+        }
+    }
+
+    /**
+     * Picks the hash of the strongest supported algorithm.
+     *
+     * @return algorithm and hex value, null if there is none
+     */
+    private static String[] strongest(final List<Element> hashes) {
+        String[] best = null;
+        int rank = ALGORITHMS.length;
+        for (Element hash : hashes) {
+            int hashRank = rank(hash.getAttribute("type"));
+            if (hashRank < rank) {
+                rank = hashRank;
+                best = new String[] {javaName(ALGORITHMS[hashRank]),
+                        hex(hash)};
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns rank of a supported algorithm.
+     *
+     * @return index in {@link #ALGORITHMS}, its length if the algorithm is
+     * not supported
+     */
+    private static int rank(final String type) {
+        String algorithm = type.trim().toLowerCase(Locale.ROOT);
+        for (int i = 0; i < ALGORITHMS.length; i++) {
+            if (ALGORITHMS[i].equals(algorithm)) {
+                try {
+                    MessageDigest.getInstance(javaName(algorithm));
+                    return i;
+                } catch (NoSuchAlgorithmException ex) {
+                    return ALGORITHMS.length;
+                }
+            }
+        }
+        return ALGORITHMS.length;
+    }
+
+    private static String javaName(final String algorithm) {
+        return algorithm.toUpperCase(Locale.ROOT);
+    }
+
+    private static String hex(final Element hash) {
+        return hash.getTextContent().trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String escape(final String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
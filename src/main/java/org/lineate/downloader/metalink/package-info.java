@@ -0,0 +1,7 @@
+/**
+ * Package contains Metalink descriptions of the mirrored files.
+ *
+ * @version 1.0
+ */
+
+package org.lineate.downloader.metalink;
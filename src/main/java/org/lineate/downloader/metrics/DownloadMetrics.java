@@ -0,0 +1,489 @@
+package org.lineate.downloader.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Performance metrics of a downloader instance.
+ * <p>
+ * Counters and histograms are kept for the whole downloader and for
+ * every host: time the downloads wait for a thread, time to the response
+ * headers, duration and throughput of the finished downloads, failures,
+ * hedged requests and running downloads. A download reports a handful of
+ * events in its whole life and every event is a few lock-free
+ * increments, so the metrics are always on. Read them with
+ * {@link #snapshot()} or over JMX.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.1
+ */
+
+public final class DownloadMetrics implements DownloadMetricsMXBean {
+
+    /**
+     * Metrics of all the downloads.
+     */
+    private final Counters total = new Counters();
+
+    /**
+     * Metrics per host:port.
+     */
+    private final Map<String, Counters> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Records start of a download.
+     *
+     * @param host host:port of the source
+     * @param waitNanos time between the submit and the start
+     */
+    public void started(final String host, final long waitNanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(waitNanos);
+        for (Counters counters : scopes(host)) {
+            counters.started.increment();
+            counters.active.increment();
+            counters.queueWait.record(micros);
+        }
+    }
+
+    /**
+     * Records arrival of the response headers.
+     *
+     * @param host host:port of the source
+     * @param nanos time between the request and the response headers
+     */
+    public void firstByte(final String host, final long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        for (Counters counters : scopes(host)) {
+            counters.firstByte.record(micros);
+        }
+    }
+
+    /**
+     * Records successful download.
+     *
+     * @param host host:port of the source
+     * @param bytes bytes received from the source
+     * @param nanos time between the start and the end of the download
+     */
+    public void finished(final String host, final long bytes,
+                         final long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        long rate = nanos > 0
+                ? (long) ((double) bytes * TimeUnit.SECONDS.toNanos(1) / nanos)
+                : 0;
+        for (Counters counters : scopes(host)) {
+            counters.finished.increment();
+            counters.bytes.add(bytes);
+            counters.duration.record(micros);
+            if (bytes > 0) {
+                counters.throughput.record(rate);
+            }
+        }
+    }
+
+    /**
+     * Records failed download.
+     *
+     * @param host host:port of the source
+     */
+    public void failed(final String host) {
+        for (Counters counters : scopes(host)) {
+            counters.failed.increment();
+        }
+    }
+
+    /**
+     * Records hedged request of a download.
+     *
+     * @param host host:port of the source
+     * @param won whether the hedge started before the original request
+     */
+    public void hedged(final String host, final boolean won) {
+        for (Counters counters : scopes(host)) {
+            counters.hedged.increment();
+            if (won) {
+                counters.hedgeWins.increment();
+            }
+        }
+    }
+
+    /**
+     * Records end of a started download, successful or not.
+     *
+     * @param host host:port of the source
+     */
+    public void ended(final String host) {
+        for (Counters counters : scopes(host)) {
+            counters.active.decrement();
+        }
+    }
+
+    /**
+     * Takes snapshot of all the downloads.
+     *
+     * @return metrics snapshot
+     */
+    public Snapshot snapshot() {
+        return total.snapshot();
+    }
+
+    /**
+     * Takes snapshot of the downloads from a host.
+     *
+     * @param host host:port
+     * @return metrics snapshot, null if there were no downloads from the
+     * host
+     */
+    public Snapshot snapshot(final String host) {
+        Counters counters = hosts.get(host);
+        return counters == null ? null : counters.snapshot();
+    }
+
+    /**
+     * Takes snapshot of the time to the response headers of a host, which
+     * is cheaper than the full snapshot.
+     *
+     * @param host host:port
+     * @return histogram in microseconds, null if there were no downloads
+     * from the host
+     */
+    public Histogram.Snapshot firstByte(final String host) {
+        Counters counters = hosts.get(host);
+        return counters == null ? null : counters.firstByte.snapshot();
+    }
+
+    @Override
+    public Snapshot getTotal() {
+        return snapshot();
+    }
+
+    @Override
+    public Map<String, Snapshot> getHosts() {
+        Map<String, Snapshot> snapshots = new TreeMap<>();
+        hosts.forEach((host, counters) ->
+                snapshots.put(host, counters.snapshot()));
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    @Override
+    public long getActiveTasks() {
+        return total.active.sum();
+    }
+
+    @Override
+    public long getFinishedTasks() {
+        return total.finished.sum();
+    }
+
+    @Override
+    public long getFailedTasks() {
+        return total.failed.sum();
+    }
+
+    @Override
+    public double getFailureRate() {
+        return rate(total.failed.sum(), total.finished.sum());
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return total.bytes.sum();
+    }
+
+    @Override
+    public long getHedgedRequests() {
+        return total.hedged.sum();
+    }
+
+    @Override
+    public long getQueueWaitP99() {
+        return total.queueWait.snapshot().getP99();
+    }
+
+    @Override
+    public long getFirstByteP99() {
+        return total.firstByte.snapshot().getP99();
+    }
+
+    @Override
+    public long getThroughputP50() {
+        return total.throughput.snapshot().getP50();
+    }
+
+    private Counters[] scopes(final String host) {
+        return new Counters[] {total,
+                hosts.computeIfAbsent(host, (key) -> new Counters())};
+    }
+
+    private static double rate(final long failed, final long finished) {
+        long ended = failed + finished;
+        return ended == 0 ? 0 : (double) failed / ended;
+    }
+
+    /**
+     * Counters and histograms of one scope.
+     */
+    private static final class Counters {
+
+        /**
+         * Started downloads.
+         */
+        private final LongAdder started = new LongAdder();
+
+        /**
+         * Finished downloads.
+         */
+        private final LongAdder finished = new LongAdder();
+
+        /**
+         * Failed downloads.
+         */
+        private final LongAdder failed = new LongAdder();
+
+        /**
+         * Running downloads.
+         */
+        private final LongAdder active = new LongAdder();
+
+        /**
+         * Bytes received by the finished downloads.
+         */
+        private final LongAdder bytes = new LongAdder();
+
+        /**
+         * Hedged requests.
+         */
+        private final LongAdder hedged = new LongAdder();
+
+        /**
+         * Hedged requests which started first.
+         */
+        private final LongAdder hedgeWins = new LongAdder();
+
+        /**
+         * Time between the submit and the start in microseconds.
+         */
+        private final Histogram queueWait = new Histogram();
+
+        /**
+         * Time to the response headers in microseconds.
+         */
+        private final Histogram firstByte = new Histogram();
+
+        /**
+         * Duration of the finished downloads in microseconds.
+         */
+        private final Histogram duration = new Histogram();
+
+        /**
+         * Throughput of the finished downloads in bytes per second.
+         */
+        private final Histogram throughput = new Histogram();
+
+        Snapshot snapshot() {
+            return new Snapshot(this);
+        }
+    }
+
+    /**
+     * Immutable snapshot of the metrics of a scope. Times are in
+     * microseconds, throughput in bytes per second.
+     */
+    public static final class Snapshot {
+
+        /**
+         * Started downloads.
+         */
+        private final long started;
+
+        /**
+         * Finished downloads.
+         */
+        private final long finished;
+
+        /**
+         * Failed downloads.
+         */
+        private final long failed;
+
+        /**
+         * Running downloads.
+         */
+        private final long active;
+
+        /**
+         * Bytes received by the finished downloads.
+         */
+        private final long bytes;
+
+        /**
+         * Hedged requests.
+         */
+        private final long hedged;
+
+        /**
+         * Hedged requests which started first.
+         */
+        private final long hedgeWins;
+
+        /**
+         * Queue wait histogram.
+         */
+        private final Histogram.Snapshot queueWait;
+
+        /**
+         * Time to first byte histogram.
+         */
+        private final Histogram.Snapshot firstByte;
+
+        /**
+         * Duration histogram.
+         */
+        private final Histogram.Snapshot duration;
+
+        /**
+         * Throughput histogram.
+         */
+        private final Histogram.Snapshot throughput;
+
+        Snapshot(final Counters counters) {
+            // the running count is read first, so that a download is
+            // never missing from both the running and the ended ones
+            this.active = counters.active.sum();
+            this.finished = counters.finished.sum();
+            this.failed = counters.failed.sum();
+            this.started = counters.started.sum();
+            this.bytes = counters.bytes.sum();
+            this.hedged = counters.hedged.sum();
+            this.hedgeWins = counters.hedgeWins.sum();
+            this.queueWait = counters.queueWait.snapshot();
+            this.firstByte = counters.firstByte.snapshot();
+            this.duration = counters.duration.snapshot();
+            this.throughput = counters.throughput.snapshot();
+        }
+
+        /**
+         * Returns number of the started downloads.
+         *
+         * @return started downloads
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * Returns number of the finished downloads.
+         *
+         * @return finished downloads
+         */
+        public long getFinished() {
+            return finished;
+        }
+
+        /**
+         * Returns number of the failed downloads.
+         *
+         * @return failed downloads
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns number of the running downloads.
+         *
+         * @return running downloads
+         */
+        public long getActive() {
+            return active;
+        }
+
+        /**
+         * Returns number of the bytes received by the finished downloads.
+         *
+         * @return bytes
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns share of the failed downloads among the ended ones.
+         *
+         * @return failure rate from 0 to 1
+         */
+        public double getFailureRate() {
+            return rate(failed, finished);
+        }
+
+        /**
+         * Returns number of the hedged requests.
+         *
+         * @return hedged requests
+         */
+        public long getHedged() {
+            return hedged;
+        }
+
+        /**
+         * Returns number of the hedged requests which started before the
+         * original ones.
+         *
+         * @return hedges which won
+         */
+        public long getHedgeWins() {
+            return hedgeWins;
+        }
+
+        /**
+         * Returns time the downloads waited for a thread.
+         *
+         * @return histogram in microseconds
+         */
+        public Histogram.Snapshot getQueueWait() {
+            return queueWait;
+        }
+
+        /**
+         * Returns time from the request to the response headers.
+         *
+         * @return histogram in microseconds
+         */
+        public Histogram.Snapshot getFirstByte() {
+            return firstByte;
+        }
+
+        /**
+         * Returns duration of the finished downloads.
+         *
+         * @return histogram in microseconds
+         */
+        public Histogram.Snapshot getDuration() {
+            return duration;
+        }
+
+        /**
+         * Returns throughput of the finished downloads.
+         *
+         * @return histogram in bytes per second
+         */
+        public Histogram.Snapshot getThroughput() {
+            return throughput;
+        }
+
+        @Override
+        public String toString() {
+            return "started=" + started + ", finished=" + finished
+                    + ", failed=" + failed + ", active=" + active
+                    + ", bytes=" + bytes + ", hedged=" + hedged
+                    + ", hedgeWins=" + hedgeWins + ", queueWait={" + queueWait
+                    + "}, firstByte={" + firstByte + "}, throughput={"
+                    + throughput + "}";
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.lineate.downloader.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of the downloader metrics.
+ * <p>
+ * The flat attributes are meant for alerts, the snapshots carry the full
+ * histograms of the downloader and of every host. Times are in
+ * microseconds, throughput in bytes per second.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.1
+ */
+
+public interface DownloadMetricsMXBean {
+
+    /**
+     * Returns snapshot of all the downloads.
+     *
+     * @return metrics snapshot
+     */
+    DownloadMetrics.Snapshot getTotal();
+
+    /**
+     * Returns snapshots of the downloads per host.
+     *
+     * @return metrics snapshots by host:port
+     */
+    Map<String, DownloadMetrics.Snapshot> getHosts();
+
+    /**
+     * Returns number of the running downloads.
+     *
+     * @return running downloads
+     */
+    long getActiveTasks();
+
+    /**
+     * Returns number of the finished downloads.
+     *
+     * @return finished downloads
+     */
+    long getFinishedTasks();
+
+    /**
+     * Returns number of the failed downloads.
+     *
+     * @return failed downloads
+     */
+    long getFailedTasks();
+
+    /**
+     * Returns share of the failed downloads among the ended ones.
+     *
+     * @return failure rate from 0 to 1
+     */
+    double getFailureRate();
+
+    /**
+     * Returns number of the downloaded bytes.
+     *
+     * @return bytes
+     */
+    long getBytesDownloaded();
+
+    /**
+     * Returns number of the hedged requests.
+     *
+     * @return hedged requests
+     */
+    long getHedgedRequests();
+
+    /**
+     * Returns 99th percentile of the time the downloads waited for a
+     * thread.
+     *
+     * @return queue wait in microseconds
+     */
+    long getQueueWaitP99();
+
+    /**
+     * Returns 99th percentile of the time to the response headers.
+     *
+     * @return time to first byte in microseconds
+     */
+    long getFirstByteP99();
+
+    /**
+     * Returns median throughput of the finished downloads.
+     *
+     * @return bytes per second
+     */
+    long getThroughputP50();
+}
@@ -0,0 +1,252 @@
+package org.lineate.downloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative long values for latencies and rates.
+ * <p>
+ * Values fall into log-linear buckets: every power of two is split into
+ * eight equal buckets, so a percentile is reported with at most 12.5%
+ * error over the whole long range and the histogram has a fixed size of
+ * under 4 KB. Recording is a few atomic increments without locks or
+ * allocation and may be called from any thread.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+public final class Histogram {
+
+    /**
+     * Bits of the linear part of a bucket index.
+     */
+    private static final int SUB_BITS = 3;
+
+    /**
+     * Buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Total number of buckets, enough for {@link Long#MAX_VALUE}.
+     */
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    /**
+     * Percent in a whole.
+     */
+    private static final double PERCENT = 100;
+
+    /**
+     * Median.
+     */
+    private static final double P50 = 50;
+
+    /**
+     * 90th percentile.
+     */
+    private static final double P90 = 90;
+
+    /**
+     * 99th percentile.
+     */
+    private static final double P99 = 99;
+
+    /**
+     * Counts of the recorded values per bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Sum of the recorded values.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Maximum recorded value.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records value, negative values are recorded as 0.
+     *
+     * @param value recorded value
+     */
+    public void record(final long value) {
+        long positive = Math.max(value, 0);
+        counts.incrementAndGet(index(positive));
+        sum.add(positive);
+        if (positive > max.get()) {
+            max.accumulateAndGet(positive, Math::max);
+        }
+    }
+
+    /**
+     * Takes snapshot of the recorded values.
+     *
+     * @return snapshot, values recorded during the call may be partly
+     * included
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    /**
+     * Returns bucket of the value.
+     *
+     * @param value non-negative value
+     * @return bucket index
+     */
+    static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the biggest value of the bucket.
+     *
+     * @param index bucket index
+     * @return upper bound of the bucket, inclusive
+     */
+    static long upper(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Immutable snapshot of a histogram.
+     */
+    public static final class Snapshot {
+
+        /**
+         * Counts per bucket.
+         */
+        private final long[] counts;
+
+        /**
+         * Number of the values.
+         */
+        private final long count;
+
+        /**
+         * Sum of the values.
+         */
+        private final long sum;
+
+        /**
+         * Maximum value.
+         */
+        private final long max;
+
+        Snapshot(final long[] countsValue, final long countValue,
+                 final long sumValue, final long maxValue) {
+            this.counts = countsValue;
+            this.count = countValue;
+            this.sum = sumValue;
+            this.max = maxValue;
+        }
+
+        /**
+         * Returns number of the recorded values.
+         *
+         * @return count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns mean of the recorded values.
+         *
+         * @return mean, 0 if there are no values
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns maximum recorded value.
+         *
+         * @return maximum, 0 if there are no values
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns median.
+         *
+         * @return median, 0 if there are no values
+         */
+        public long getP50() {
+            return getValueAt(P50);
+        }
+
+        /**
+         * Returns 90th percentile.
+         *
+         * @return percentile, 0 if there are no values
+         */
+        public long getP90() {
+            return getValueAt(P90);
+        }
+
+        /**
+         * Returns 99th percentile.
+         *
+         * @return percentile, 0 if there are no values
+         */
+        public long getP99() {
+            return getValueAt(P99);
+        }
+
+        /**
+         * Returns value below or at which the given percent of the values
+         * lie.
+         *
+         * @param percentile percent from 0 to 100
+         * @return upper bound of the bucket of the percentile, 0 if there
+         * are no values
+         */
+        public long getValueAt(final double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(
+                    Math.min(percentile, PERCENT) / PERCENT * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upper(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + Math.round(getMean())
+                    + ", p50=" + getP50() + ", p99=" + getP99()
+                    + ", max=" + max;
+        }
+    }
+}
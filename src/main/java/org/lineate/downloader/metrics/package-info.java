@@ -0,0 +1,7 @@
+/**
+ * Package contains performance metrics of the downloaders.
+ *
+ * @version 1.0
+ */
+
+package org.lineate.downloader.metrics;
@@ -0,0 +1,277 @@
+package org.lineate.downloader.progressbar;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class is a mutable progress record of a single download task.
+ * <p>
+ * Download thread updates the byte counter with ordered writes and
+ * without allocations, readers compute percentage on demand.
+ * {@link Progressbar} is an immutable snapshot of the record. Updates and
+ * status transitions are reported to the {@link ProgressDispatcher}.
+ * Downloaded size is also forwarded to the followers, the records of the
+ * tasks which wait for the same file.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.2
+ */
+
+public final class DownloadProgress {
+
+    /**
+     * Full load value in percent.
+     */
+    private static final int FULL_LOAD = 100;
+
+    /**
+     * Updater for the downloaded bytes counter.
+     */
+    private static final AtomicLongFieldUpdater<DownloadProgress> DOWNLOADED =
+            AtomicLongFieldUpdater.newUpdater(DownloadProgress.class,
+                    "downloaded");
+
+    /**
+     * Download task id, may be null for a detached record.
+     */
+    private final UUID id;
+
+    /**
+     * Dispatcher for progress events, may be null.
+     */
+    private final ProgressDispatcher dispatcher;
+
+    /**
+     * Time of the last published event in nanoseconds.
+     */
+    private volatile long lastEvent;
+
+    /**
+     * Size of the downloading file in bytes, 0 if unknown.
+     */
+    private volatile long size;
+
+    /**
+     * Current downloaded size in bytes.
+     */
+    private volatile long downloaded;
+
+    /**
+     * Records which get the downloaded size of this one, null until the
+     * first follower.
+     */
+    private volatile List<DownloadProgress> followers;
+
+    /**
+     * Current download status.
+     */
+    private final AtomicReference<DownloadStatus> status =
+            new AtomicReference<>(DownloadStatus.NOT_STARTED);
+
+    /**
+     * Creates detached progress record without events.
+     */
+    public DownloadProgress() {
+        this(null, null);
+    }
+
+    /**
+     * Creates progress record of the download task.
+     *
+     * @param idValue download task id
+     * @param dispatcherValue dispatcher for progress events
+     */
+    public DownloadProgress(final UUID idValue,
+                            final ProgressDispatcher dispatcherValue) {
+        this.id = idValue;
+        this.dispatcher = dispatcherValue;
+    }
+
+    /**
+     * Creates progress record of the download task with a restored state,
+     * without events.
+     *
+     * @param idValue download task id
+     * @param dispatcherValue dispatcher for progress events
+     * @param state restored status, size and downloaded size
+     */
+    public DownloadProgress(final UUID idValue,
+                            final ProgressDispatcher dispatcherValue,
+                            final Progressbar state) {
+        this(idValue, dispatcherValue);
+        this.size = Math.max(state.getSize(), 0);
+        this.downloaded = state.getDownloaded();
+        this.status.set(state.getStatus());
+    }
+
+    /**
+     * Marks download as started.
+     *
+     * @param sizeValue size of the downloading file, negative if unknown
+     */
+    public void start(final long sizeValue) {
+        size = Math.max(sizeValue, 0);
+        DOWNLOADED.lazySet(this, 0);
+        transition(DownloadStatus.DOWNLOADING);
+    }
+
+    /**
+     * Sets downloaded size. Must be called from a single thread.
+     *
+     * @param value downloaded size in bytes
+     */
+    public void set(final long value) {
+        DOWNLOADED.lazySet(this, value);
+        if (dispatcher != null) {
+            dispatcher.progress(this);
+        }
+        forward(value);
+    }
+
+    /**
+     * Adds downloaded bytes. Can be called from several threads.
+     *
+     * @param delta newly downloaded bytes
+     * @return total downloaded size in bytes
+     */
+    public long add(final long delta) {
+        long total = DOWNLOADED.addAndGet(this, delta);
+        if (dispatcher != null) {
+            dispatcher.progress(this);
+        }
+        forward(total);
+        return total;
+    }
+
+    /**
+     * Adds record which gets the downloaded size of this one. Status of
+     * the follower is left to the caller.
+     *
+     * @param follower progress record of a task waiting for this download
+     */
+    public synchronized void addFollower(final DownloadProgress follower) {
+        if (followers == null) {
+            followers = new CopyOnWriteArrayList<>();
+        }
+        followers.add(follower);
+        follower.set(downloaded);
+    }
+
+    /**
+     * Stops forwarding the downloaded size to the follower.
+     *
+     * @param follower progress record added before
+     */
+    public synchronized void removeFollower(final DownloadProgress follower) {
+        if (followers != null) {
+            followers.remove(follower);
+        }
+    }
+
+    /**
+     * Marks download as finished.
+     */
+    public void finish() {
+        transition(DownloadStatus.FINISHED);
+    }
+
+    /**
+     * Marks download as failed and resets the counters.
+     */
+    public void fail() {
+        size = 0;
+        DOWNLOADED.lazySet(this, 0);
+        transition(DownloadStatus.FAILED);
+    }
+
+    /**
+     * Marks download as completed with a checksum other than expected.
+     * Counters keep the downloaded size.
+     */
+    public void failVerification() {
+        transition(DownloadStatus.VERIFICATION_FAILED);
+    }
+
+    /**
+     * Returns download task id.
+     *
+     * @return download UUID, null for a detached record
+     */
+    public UUID getId() {
+        return id;
+    }
+
+    /**
+     * Returns current download status.
+     *
+     * @return status
+     */
+    public DownloadStatus getStatus() {
+        return status.get();
+    }
+
+    /**
+     * Returns size of the downloading file.
+     *
+     * @return size in bytes, 0 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns current download size in bytes.
+     *
+     * @return size in bytes
+     */
+    public long getDownloaded() {
+        return downloaded;
+    }
+
+    /**
+     * Returns current download size in percent.
+     *
+     * @return size in percent
+     */
+    public byte getPercentage() {
+        long total = size;
+        return total == 0 ? 0 : (byte) (FULL_LOAD * downloaded / total);
+    }
+
+    /**
+     * Returns immutable copy of the current state.
+     *
+     * @return progress bar
+     */
+    public Progressbar snapshot() {
+        return new Progressbar(size, downloaded, status.get());
+    }
+
+    long getLastEvent() {
+        return lastEvent;
+    }
+
+    void setLastEvent(final long value) {
+        lastEvent = value;
+    }
+
+    private void forward(final long value) {
+        List<DownloadProgress> targets = followers;
+        if (targets != null) {
+            for (DownloadProgress follower : targets) {
+                follower.set(value);
+            }
+        }
+    }
+
+    private void transition(final DownloadStatus next) {
+        DownloadStatus previous = status.getAndSet(next);
+        if (dispatcher != null && previous != next) {
+            dispatcher.transition(this, previous);
+        }
+    }
+}
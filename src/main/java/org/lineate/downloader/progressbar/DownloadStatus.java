@@ -4,7 +4,7 @@ package org.lineate.downloader.progressbar;
  * This class represent a set of statuses for download task.
  *
  * @since 1.0
- * @version 1.1
+ * @version 1.2
  * @author Andrey Chuchalov
  */
 public enum DownloadStatus {
@@ -26,5 +26,10 @@ public enum DownloadStatus {
     /**
      * value for errors.
      */
-    FAILED
+    FAILED,
+
+    /**
+     * value for downloads with a checksum other than expected.
+     */
+    VERIFICATION_FAILED
 }
@@ -0,0 +1,113 @@
+package org.lineate.downloader.progressbar;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class delivers progress events of a downloader to its listeners.
+ * <p>
+ * Progress updates of every task are coalesced to at most one event per
+ * interval; status transitions are delivered immediately. Nothing is
+ * allocated while there are no listeners.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+public final class ProgressDispatcher {
+
+    /**
+     * Default class logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(ProgressDispatcher.class);
+
+    /**
+     * Subscribed listeners.
+     */
+    private final List<ProgressListener> listeners =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * Minimal interval between progress events of a task.
+     */
+    private final long intervalNanos;
+
+    /**
+     * Creates dispatcher.
+     *
+     * @param intervalMillis minimal interval between progress events of
+     *                       a task in milliseconds
+     */
+    public ProgressDispatcher(final long intervalMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * Adds listener.
+     *
+     * @param listener progress listener
+     */
+    public void subscribe(final ProgressListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes listener.
+     *
+     * @param listener progress listener
+     */
+    public void unsubscribe(final ProgressListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Publishes progress update if the task interval has passed.
+     *
+     * @param progress task progress record
+     */
+    void progress(final DownloadProgress progress) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - progress.getLastEvent() < intervalNanos) {
+            return;
+        }
+        progress.setLastEvent(now);
+        DownloadStatus status = progress.getStatus();
+        publish(new ProgressEvent(progress.getId(), status,
+                progress.snapshot()));
+    }
+
+    /**
+     * Publishes status transition.
+     *
+     * @param progress task progress record
+     * @param previous status before the transition
+     */
+    void transition(final DownloadProgress progress,
+                    final DownloadStatus previous) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        progress.setLastEvent(System.nanoTime());
+        publish(new ProgressEvent(progress.getId(), previous,
+                progress.snapshot()));
+    }
+
+    private void publish(final ProgressEvent event) {
+        for (ProgressListener listener : listeners) {
+            try {
+                listener.onEvent(event);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Progress listener failed on {}", event, ex);
+            }
+        }
+    }
+}
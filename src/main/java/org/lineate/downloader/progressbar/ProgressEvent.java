@@ -0,0 +1,98 @@
+package org.lineate.downloader.progressbar;
+
+import java.util.UUID;
+
+/**
+ * This class is a download progress event: either a progress update or
+ * a status transition of a download task.
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+public final class ProgressEvent {
+
+    /**
+     * Download task id.
+     */
+    private final UUID id;
+
+    /**
+     * Status before the event.
+     */
+    private final DownloadStatus previous;
+
+    /**
+     * Progress after the event.
+     */
+    private final Progressbar progress;
+
+    /**
+     * Creates progress event.
+     *
+     * @param idValue download task id
+     * @param previousValue status before the event
+     * @param progressValue progress after the event
+     */
+    public ProgressEvent(final UUID idValue,
+                         final DownloadStatus previousValue,
+                         final Progressbar progressValue) {
+        this.id = idValue;
+        this.previous = previousValue;
+        this.progress = progressValue;
+    }
+
+    /**
+     * Returns download task id.
+     *
+     * @return download UUID
+     */
+    public UUID getId() {
+        return id;
+    }
+
+    /**
+     * Returns status before the event.
+     *
+     * @return status
+     */
+    public DownloadStatus getPrevious() {
+        return previous;
+    }
+
+    /**
+     * Returns progress after the event.
+     *
+     * @return progress bar
+     */
+    public Progressbar getProgress() {
+        return progress;
+    }
+
+    /**
+     * Returns if the event is a status transition.
+     *
+     * @return true if status has changed
+     */
+    public boolean isTransition() {
+        return previous != progress.getStatus();
+    }
+
+    /**
+     * Returns if the event is the last one for the download attempt.
+     *
+     * @return true for FINISHED, FAILED and VERIFICATION_FAILED statuses
+     */
+    public boolean isTerminal() {
+        DownloadStatus status = progress.getStatus();
+        return status == DownloadStatus.FINISHED
+                || status == DownloadStatus.FAILED
+                || status == DownloadStatus.VERIFICATION_FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return id + ": " + previous + " -> " + progress.getStatus()
+                + ", " + progress.getDownloaded() + " bytes";
+    }
+}
@@ -0,0 +1,24 @@
+package org.lineate.downloader.progressbar;
+
+/**
+ * Listener for download progress events.
+ * <p>
+ * Events are delivered on the download thread: progress updates are
+ * coalesced to the configured rate per task, status transitions are
+ * always delivered. Listener should return quickly.
+ * </p>
+ *
+ * @since 2.1
+ * @version 1.0
+ */
+
+@FunctionalInterface
+public interface ProgressListener {
+
+    /**
+     * Receives progress event.
+     *
+     * @param event progress update or status transition
+     */
+    void onEvent(ProgressEvent event);
+}
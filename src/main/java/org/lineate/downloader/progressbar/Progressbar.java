@@ -4,7 +4,7 @@ package org.lineate.downloader.progressbar;
  * This class is a simple container for progress bar data.
  *
  * @since 1.0
- * @version 1.0
+ * @version 1.1
  * @author Andrey Chuchalov
  */
 
@@ -15,6 +15,11 @@ public final class Progressbar {
      */
     private static final int FULL_LOAD = 100;
 
+    /**
+     * Value for total size of the file (in bytes).
+     */
+    private final long size;
+
     /**
      * Value for current downloaded size (in bytes).
      */
@@ -40,6 +45,7 @@ public final class Progressbar {
     public Progressbar(final long size, final long downloadedValue,
                        final DownloadStatus downloadStatus) {
 
+        this.size = size;
         this.downloaded = downloadedValue;
         percentage = size == 0 ? 0 : FULL_LOAD * this.downloaded / size;
 
@@ -55,6 +61,15 @@ public final class Progressbar {
         return (byte) percentage;
     }
 
+    /**
+     * Returns total size of the file in bytes.
+     *
+     * @return size in bytes, 0 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
     /**
      * Returns current download size in bytes.
      *
@@ -0,0 +1,94 @@
+package org.lineate.downloader.cache;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        File directory = clean(new File("target/disk-cache-lru"));
+        File file = new File("target/disk-cache-body.bin");
+        Files.write(file.toPath(), new byte[400]);
+
+        DiskCache cache = new DiskCache(directory, 1000);
+        cache.store("http://example.com/a", file, "\"a\"", null);
+        cache.store("http://example.com/b", file, "\"b\"", null);
+        cache.materialize(cache.lookup("http://example.com/a"), new File("target/disk-cache-a.bin"));
+        cache.store("http://example.com/c", file, "\"c\"", null);
+
+        assertNotNull(cache.lookup("http://example.com/a"));
+        assertNull(cache.lookup("http://example.com/b"));
+        assertNotNull(cache.lookup("http://example.com/c"));
+        assertEquals(800, cache.getSize());
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        DiskCache reopened = new DiskCache(directory, 1000);
+        assertEquals("\"a\"", reopened.lookup("http://example.com/a").getEtag());
+        assertEquals(800, reopened.getSize());
+    }
+
+    @Test
+    public void testMaterialize() throws Exception {
+        File directory = clean(new File("target/disk-cache-copy"));
+        File file = new File("target/disk-cache-source.bin");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+
+        DiskCache cache = new DiskCache(directory, 1000);
+        cache.store("http://example.com/file", file, null, "Wed, 21 Oct 2015 07:28:00 GMT");
+        cache.store("http://example.com/plain", file, null, null);
+        assertNull(cache.lookup("http://example.com/plain"));
+
+        DiskCache.Entry entry = cache.lookup("http://example.com/file");
+        File destination = new File("target/disk-cache-destination.bin");
+        Files.deleteIfExists(destination.toPath());
+        assertFalse(cache.matches(entry, destination));
+
+        assertEquals(3, cache.materialize(entry, destination));
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(destination.toPath()));
+        assertTrue(cache.matches(entry, destination));
+    }
+
+    @Test
+    public void testMaterializeEvicted() throws Exception {
+        File directory = clean(new File("target/disk-cache-evicted"));
+        File file = new File("target/disk-cache-evicted.bin");
+        Files.write(file.toPath(), new byte[600]);
+
+        DiskCache cache = new DiskCache(directory, 1000);
+        cache.store("http://example.com/a", file, "\"a\"", null);
+        DiskCache.Entry evicted = cache.lookup("http://example.com/a");
+        cache.store("http://example.com/b", file, "\"b\"", null);
+        cache.store("http://example.com/c", file, "\"c1\"", null);
+        DiskCache.Entry replaced = cache.lookup("http://example.com/c");
+        cache.store("http://example.com/c", file, "\"c2\"", null);
+
+        File destination = new File("target/disk-cache-evicted-copy.bin");
+        assertEquals(-1, cache.materialize(evicted, destination));
+        assertEquals(-1, cache.materialize(replaced, destination));
+        assertEquals(0, cache.getHits());
+        assertEquals(600, cache.materialize(cache.lookup("http://example.com/c"), destination));
+    }
+
+    private static File clean(File directory) throws Exception {
+        if (directory.exists()) {
+            try (Stream<Path> paths = Files.walk(directory.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        return directory;
+    }
+}
@@ -0,0 +1,116 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+import org.lineate.downloader.progressbar.DownloadStatus;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReuseAndCap() throws Exception {
+        BufferPool pool = new BufferPool(64 * 1024, false);
+        ByteBuffer first = pool.acquire(10_000);
+        assertEquals(16 * 1024, first.capacity());
+        assertEquals(10_000, first.limit());
+        pool.release(first);
+        assertSame(first, pool.acquire(12_000));
+        assertEquals(16 * 1024, pool.getAllocatedBytes());
+
+        // the idle 16 KB buffer is dropped to make room, a request bigger
+        // than the cap gets the biggest size which fits
+        pool.release(first);
+        ByteBuffer big = pool.acquire(BufferPool.MAX_SIZE);
+        assertEquals(64 * 1024, big.capacity());
+        assertEquals(64 * 1024, pool.getAllocatedBytes());
+        assertEquals(0, pool.getIdleBytes());
+
+        pool.release(big);
+        ByteBuffer a = pool.acquire(32 * 1024);
+        ByteBuffer b = pool.acquire(32 * 1024);
+        assertFalse(a == b);
+        assertEquals(64 * 1024, pool.getAllocatedBytes());
+        assertEquals(0, pool.getIdleBytes());
+
+        CompletableFuture<ByteBuffer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.acquire(32 * 1024);
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            fail("The pool is over its cap");
+        } catch (TimeoutException ex) {
+            // waits for a release
+        }
+        pool.release(a);
+        assertSame(a, waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(1, pool.getWaits());
+        assertTrue(pool.getAllocatedBytes() <= pool.getMaxBytes());
+    }
+
+    @Test
+    public void testIdleLimitWithoutCap() throws Exception {
+        BufferPool pool = new BufferPool(0, false);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < BufferPool.MAX_IDLE_PER_SIZE + 10; i++) {
+            buffers.add(pool.acquire(64 * 1024));
+        }
+        assertEquals((BufferPool.MAX_IDLE_PER_SIZE + 10) * 64 * 1024L, pool.getAllocatedBytes());
+
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(BufferPool.MAX_IDLE_PER_SIZE * 64 * 1024L, pool.getIdleBytes());
+        assertEquals(pool.getIdleBytes(), pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void testSharedCap() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.MAX_SIZE, true);
+        Properties properties = new Properties() {{
+            put("threads", 8);
+            put("segments", 4);
+            put("coalesce", false);
+            put("bufferPool", pool);
+        }};
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(3_000_000));
+             HttpFileDownloader downloader = new HttpFileDownloader(properties);
+             HttpFileDownloaderReactive reactive = new HttpFileDownloaderReactive(2, false, 100, pool)) {
+            assertSame(pool, downloader.getBufferPool());
+            List<UUID> ids = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                ids.add(downloader.create(server.url(), "target/pooled-" + i + ".bin"));
+            }
+            UUID streamed = reactive.create(server.url(), "target/pooled-reactive.bin");
+            CompletableFuture<File> flux = reactive.download(streamed).toFuture();
+            downloader.downloadAll();
+            assertArrayEquals(server.content(), Files.readAllBytes(flux.get(30, TimeUnit.SECONDS).toPath()));
+            for (int i = 0; i < ids.size(); i++) {
+                assertEquals(DownloadStatus.FINISHED, downloader.getStatus(ids.get(i)));
+                assertArrayEquals(server.content(),
+                        Files.readAllBytes(new File("target/pooled-" + i + ".bin").toPath()));
+            }
+        }
+        assertTrue(pool.getAllocatedBytes() <= BufferPool.MAX_SIZE);
+        assertEquals(pool.getAllocatedBytes(), pool.getIdleBytes());
+    }
+}
@@ -0,0 +1,155 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+import org.lineate.downloader.Downloader;
+import org.lineate.downloader.progressbar.DownloadStatus;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointTest {
+
+    private static final int SIZE = 3_000_000;
+    private static final int BROKEN_AT = 1_000_000;
+
+    @Test
+    public void testCommittedRanges() throws Exception {
+        File destination = new File("target/checkpoint-ranges.bin");
+        Files.write(destination.toPath(), new byte[100]);
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(100))) {
+            URL url = new URL(server.url());
+            Checkpoint checkpoint = Checkpoint.create(destination, url, url.openConnection());
+            assertNotNull(checkpoint);
+
+            checkpoint.commit(10, 20);
+            checkpoint.commit(0, 5);
+            checkpoint.commit(5, 10);
+            checkpoint.commit(50, 60);
+            assertEquals(20, checkpoint.prefix());
+            assertEquals(30, checkpoint.committed());
+            assertEquals(2, checkpoint.missing().size());
+            assertArrayEquals(new long[]{20, 50}, checkpoint.missing().get(0));
+            assertArrayEquals(new long[]{60, 100}, checkpoint.missing().get(1));
+
+            checkpoint.save();
+            Checkpoint loaded = Checkpoint.load(destination, url);
+            assertNotNull(loaded);
+            assertEquals(30, loaded.committed());
+            assertEquals("\"v1\"", loaded.validator());
+
+            loaded.delete();
+            assertNull(Checkpoint.load(destination, url));
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        testResume(1, "target/resume.bin");
+    }
+
+    @Test
+    public void testResumeSegmented() throws Exception {
+        testResume(3, "target/resume-segmented.bin");
+    }
+
+    @Test
+    public void testRemoteContentChanged() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(SIZE));
+             Downloader<Future<File>, List<Future<File>>> downloader = new HttpFileDownloader(properties(1))) {
+            UUID id = downloader.create(server.url(), "target/resume-changed.bin");
+
+            server.failAfter(BROKEN_AT);
+            downloader.download(id).get();
+            assertEquals(DownloadStatus.FAILED, downloader.getStatus(id));
+
+            server.setEtag("\"v2\"");
+            File file = downloader.download(id).get();
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            assertEquals(0, server.rangeRequests());
+            assertArrayEquals(server.content(), Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test
+    public void testIfRangeIgnored() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(SIZE));
+             Downloader<Future<File>, List<Future<File>>> downloader = new HttpFileDownloader(properties(1))) {
+            UUID id = downloader.create(server.url(), "target/resume-if-range.bin");
+
+            server.failAfter(BROKEN_AT);
+            downloader.download(id).get();
+            assertEquals(DownloadStatus.FAILED, downloader.getStatus(id));
+
+            // the file changes its size, the server sends its tail anyway
+            server.setIfRange(false);
+            server.setContent(LocalHttpServer.randomContent(SIZE + 1000));
+            File file = downloader.download(id).get();
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            assertEquals(1, server.rangeRequests());
+            assertArrayEquals(server.content(), Files.readAllBytes(file.toPath()));
+            assertFalse(new File("target/resume-if-range.bin" + Checkpoint.SUFFIX).exists());
+        }
+    }
+
+    @Test
+    public void testCompleteCheckpoint() throws Exception {
+        File destination = new File("target/resume-complete.bin");
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(SIZE));
+             Downloader<Future<File>, List<Future<File>>> downloader = new HttpFileDownloader(properties(1))) {
+            URL url = new URL(server.url());
+            Files.write(destination.toPath(), server.content());
+            Checkpoint checkpoint = Checkpoint.create(destination, url, url.openConnection());
+            checkpoint.commit(0, SIZE);
+            checkpoint.save();
+            int requests = server.requests();
+
+            UUID id = downloader.create(server.url(), destination.getPath());
+            downloader.download(id).get();
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            // 416 for the missing nothing, then the whole file
+            assertEquals(requests + 2, server.requests());
+            assertArrayEquals(server.content(), Files.readAllBytes(destination.toPath()));
+        }
+    }
+
+    private void testResume(int segments, String path) throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(SIZE));
+             Downloader<Future<File>, List<Future<File>>> downloader = new HttpFileDownloader(properties(segments))) {
+            UUID id = downloader.create(server.url(), path);
+
+            server.failAfter(BROKEN_AT);
+            File file = downloader.download(id).get();
+            assertEquals(DownloadStatus.FAILED, downloader.getStatus(id));
+            assertTrue(new File(path + Checkpoint.SUFFIX).isFile());
+
+            int ranges = server.rangeHeaders().size();
+            downloader.download(id).get();
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            assertFalse(new File(path + Checkpoint.SUFFIX).exists());
+            assertTrue(server.rangeHeaders().size() > ranges);
+            for (String range : server.rangeHeaders().subList(ranges, server.rangeHeaders().size())) {
+                assertFalse(range.startsWith("bytes=0-"));
+            }
+            assertArrayEquals(server.content(), Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    private static Properties properties(int segments) {
+        Properties properties = new Properties();
+        properties.put("resume", true);
+        properties.put("segments", segments);
+        return properties;
+    }
+}
@@ -0,0 +1,110 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+import org.lineate.downloader.progressbar.DownloadProgress;
+import org.lineate.downloader.progressbar.DownloadStatus;
+import org.lineate.downloader.progressbar.ProgressDispatcher;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactRegistryTest {
+
+    @Test
+    public void testMatchesMapSemantics() {
+        CompactRegistry registry = new CompactRegistry(new ProgressDispatcher(0), new RateLimiter(0, null));
+        Map<UUID, DownloadData> expected = new HashMap<>();
+        List<UUID> ids = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200_000; i++) {
+            int operation = random.nextInt(10);
+            if (operation < 6 || ids.isEmpty()) {
+                UUID id = random.nextBoolean() ? TaskIds.next() : UUID.randomUUID();
+                DownloadData data = new DownloadData("http://mirror/dir" + (i % 50) + "/file-" + i + ".bin",
+                        "target/ünïcode/" + i);
+                if (i % 97 == 0) {
+                    data = data.withPriority(DownloadData.MAX_PRIORITY).withRateLimit(i);
+                }
+                registry.add(id, data);
+                expected.put(id, data);
+                ids.add(id);
+            } else if (operation < 9) {
+                UUID id = ids.remove(random.nextInt(ids.size()));
+                assertTrue(registry.remove(id));
+                expected.remove(id);
+                assertFalse(registry.contains(id));
+            } else {
+                UUID id = ids.get(random.nextInt(ids.size()));
+                registry.finished(id);
+                expected.put(id, null);
+            }
+        }
+        assertEquals(expected.size(), registry.ids().size());
+        assertEquals(expected.keySet(), new HashSet<>(registry.ids()));
+        int pending = 0;
+        for (Map.Entry<UUID, DownloadData> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), registry.pending(entry.getKey()));
+            pending += entry.getValue() == null ? 0 : 1;
+        }
+        assertEquals(pending, registry.pendingCount());
+        assertNull(registry.snapshot(UUID.randomUUID()));
+    }
+
+    @Test
+    public void testAcquireRelease() {
+        CompactRegistry registry = new CompactRegistry(new ProgressDispatcher(0), new RateLimiter(0, null));
+        UUID id = TaskIds.next();
+        registry.add(id, new DownloadData("http://host/file", "target/file").withRateLimit(1000));
+
+        DownloadProgress progress = registry.acquire(id);
+        assertEquals(1000, registry.limiter(id).getRate());
+        assertTrue(registry.setRateLimit(id, 2000));
+        assertEquals(2000, registry.limiter(id).getRate());
+        progress.start(500);
+        progress.set(500);
+        assertEquals(DownloadStatus.DOWNLOADING, registry.snapshot(id).getStatus());
+        registry.finished(id);
+        progress.finish();
+        registry.release(id);
+
+        assertNull(registry.limiter(id));
+        assertNull(registry.pending(id));
+        assertEquals(DownloadStatus.FINISHED, registry.snapshot(id).getStatus());
+        assertEquals(500, registry.snapshot(id).getDownloaded());
+        assertEquals(100, registry.snapshot(id).getPercentage());
+    }
+
+    @Test
+    public void testDownloaderWithCompactRegistry() throws Exception {
+        Properties properties = new Properties() {{
+            put("registry", "compact");
+        }};
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(400_000));
+             HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            UUID first = downloader.create(server.url(), "target/compact-1.bin");
+            UUID second = downloader.create(server.url(), "target/compact-2.bin");
+            assertEquals("target/compact-2.bin", downloader.getDestination(second));
+            downloader.downloadAll();
+            assertTrue(downloader.downloaded(first));
+            assertTrue(downloader.downloaded(second));
+            assertEquals(400_000, downloader.getProgressBytes(second));
+            assertArrayEquals(server.content(), Files.readAllBytes(new File("target/compact-2.bin").toPath()));
+            downloader.remove(first);
+            assertEquals(1, downloader.getDownloads().size());
+        }
+    }
+}
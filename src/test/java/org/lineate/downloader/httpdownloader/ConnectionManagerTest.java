@@ -0,0 +1,50 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+import org.lineate.downloader.progressbar.DownloadStatus;
+
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionManagerTest {
+
+    @Test
+    public void testKeepAliveTime() throws Exception {
+        ConnectionManager manager = new ConnectionManager(0, 0, 50);
+        URL url = new URL("http://127.0.0.1:1/file");
+
+        URLConnection first = manager.open(url);
+        manager.release(first);
+        manager.open(url);
+        assertEquals(1, manager.getWarm());
+
+        manager.release(first);
+        Thread.sleep(100);
+        manager.open(url);
+        assertEquals(1, manager.getWarm());
+        assertEquals(2, manager.getCold());
+    }
+
+    @Test
+    public void testKeepAliveReuse() throws Exception {
+        Properties properties = new Properties() {{
+            put("threads", 1);
+        }};
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(10_000));
+             HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            for (int i = 0; i < 10; i++) {
+                UUID id = downloader.create(server.url(), "target/keep-alive" + i + ".bin");
+                downloader.download(id).get();
+                assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            }
+
+            assertTrue(server.clientPorts().size() < 10);
+            assertTrue(downloader.getWarmConnectionRate() > 0.5);
+        }
+    }
+}
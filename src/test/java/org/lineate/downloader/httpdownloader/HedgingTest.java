@@ -0,0 +1,82 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+import org.lineate.downloader.metrics.DownloadMetrics;
+import org.lineate.downloader.progressbar.DownloadStatus;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HedgingTest {
+
+    @Test
+    public void testHedgeToAlternate() throws Exception {
+        Properties properties = new Properties() {{
+            put("threads", 1);
+            put("coalesce", false);
+            put("hedge", 95);
+            put("hedgeDelay", 50);
+            put("hedgeThroughput", 1024 * 1024);
+            put("hedgeBudget", 1.0);
+        }};
+        byte[] content = LocalHttpServer.randomContent(500_000);
+        try (LocalHttpServer slow = new LocalHttpServer(content);
+             LocalHttpServer mirror = new LocalHttpServer(content);
+             HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            slow.delay(1, 3000);
+            UUID id = downloader.create(new DownloadData(slow.url(), "target/hedged.bin")
+                    .withAlternate(mirror.url()));
+            long start = System.nanoTime();
+            downloader.download(id).get();
+
+            assertTrue(System.nanoTime() - start < 2_000_000_000L);
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            assertArrayEquals(content, Files.readAllBytes(new File("target/hedged.bin").toPath()));
+            assertEquals(1, mirror.requests());
+            DownloadMetrics.Snapshot total = downloader.getMetrics().snapshot();
+            assertEquals(1, total.getHedged());
+            assertEquals(1, total.getHedgeWins());
+            assertEquals(500_000, total.getBytes());
+
+            // a fast start is not hedged
+            UUID next = downloader.create(slow.url(), "target/hedged-next.bin");
+            downloader.download(next).get();
+            assertArrayEquals(content, Files.readAllBytes(new File("target/hedged-next.bin").toPath()));
+            assertEquals(1, downloader.getMetrics().getHedgedRequests());
+        }
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        Properties properties = new Properties() {{
+            put("threads", 1);
+            put("coalesce", false);
+            put("hedge", 95);
+            put("hedgeDelay", 50);
+            put("hedgeBudget", 0);
+        }};
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(100_000));
+             HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            server.delay(3, 300);
+            for (int i = 0; i < 3; i++) {
+                downloader.create(server.url(), "target/budget-" + i + ".bin");
+            }
+            downloader.downloadAll();
+
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(server.content(),
+                        Files.readAllBytes(new File("target/budget-" + i + ".bin").toPath()));
+            }
+            // only the burst over the empty budget is hedged, the hedge
+            // is also held by the server
+            assertEquals(1, downloader.getMetrics().snapshot().getHedged());
+            assertEquals(4, server.requests());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HostSchedulerTest {
+
+    @Test
+    public void testHostsTakeTurns() throws Exception {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try {
+            HostScheduler scheduler = new HostScheduler(pool, 3, 2, 1000);
+            URL slow = new URL("http://slow.example.com/file");
+            URL fast = new URL("http://fast.example.com/file");
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch fastDone = new CountDownLatch(2);
+            Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+            Map<String, AtomicInteger> maxRunning = new ConcurrentHashMap<>();
+
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                results.add(scheduler.submit(slow, () -> {
+                    track(running, maxRunning, "slow", 1);
+                    release.await();
+                    track(running, maxRunning, "slow", -1);
+                    return "slow";
+                }));
+            }
+            for (int i = 0; i < 2; i++) {
+                results.add(scheduler.submit(fast, () -> {
+                    track(running, maxRunning, "fast", 1);
+                    track(running, maxRunning, "fast", -1);
+                    fastDone.countDown();
+                    return "fast";
+                }));
+            }
+
+            assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+            release.countDown();
+            for (Future<String> result : results) {
+                result.get(5, TimeUnit.SECONDS);
+            }
+            scheduler.awaitIdle();
+
+            assertEquals(2, maxRunning.get("slow").get());
+            assertEquals(1, maxRunning.get("fast").get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLeasesShareHostLimit() throws Exception {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try {
+            HostScheduler scheduler = new HostScheduler(pool, 0, 3, 1000);
+            URL url = new URL("http://host.example.com/file");
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch started = new CountDownLatch(1);
+            AtomicInteger granted = new AtomicInteger();
+
+            Future<Integer> leader = scheduler.submit(url, () -> {
+                granted.set(scheduler.lease(url, 7));
+                started.countDown();
+                release.await();
+                scheduler.unlease(url, granted.get());
+                return granted.get();
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(2, granted.get());
+
+            // the host limit is taken by the leases, the next task waits
+            Future<Integer> next = scheduler.submit(url, () -> scheduler.lease(url, 7));
+            Thread.sleep(200);
+            assertFalse(next.isDone());
+
+            release.countDown();
+            assertEquals(2, (int) leader.get(5, TimeUnit.SECONDS));
+            assertEquals(2, (int) next.get(5, TimeUnit.SECONDS));
+            assertEquals(3, scheduler.lease(new URL("http://other.example.com/file"), 4));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPriorityAndDeadline() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            HostScheduler scheduler = new HostScheduler(pool, 1, 0, 60_000);
+            URL url = new URL("http://example.com/file");
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> order = new CopyOnWriteArrayList<>();
+
+            scheduler.submit(url, () -> release.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                scheduler.submit(url, DownloadData.MIN_PRIORITY, null, () -> order.add("bulk"));
+            }
+            scheduler.submit(url, DownloadData.MAX_PRIORITY, null, () -> order.add("urgent"));
+            scheduler.submit(url, DownloadData.MIN_PRIORITY, System.nanoTime() - 1_000_000_000L, () -> order.add("deadline"));
+
+            release.countDown();
+            scheduler.awaitIdle();
+
+            assertEquals(Arrays.asList("deadline", "urgent", "bulk", "bulk", "bulk"), order);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testAging() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            HostScheduler scheduler = new HostScheduler(pool, 1, 0, 1);
+            URL url = new URL("http://example.com/file");
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> order = new CopyOnWriteArrayList<>();
+
+            scheduler.submit(url, () -> release.await(5, TimeUnit.SECONDS));
+            scheduler.submit(url, DownloadData.MIN_PRIORITY, null, () -> order.add("bulk"));
+            Thread.sleep(50);
+            scheduler.submit(url, DownloadData.MAX_PRIORITY, null, () -> order.add("urgent"));
+
+            release.countDown();
+            scheduler.awaitIdle();
+
+            assertEquals(Arrays.asList("bulk", "urgent"), order);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void track(Map<String, AtomicInteger> running,
+                              Map<String, AtomicInteger> maxRunning,
+                              String host, int delta) {
+        int now = running.computeIfAbsent(host, (key) -> new AtomicInteger()).addAndGet(delta);
+        maxRunning.computeIfAbsent(host, (key) -> new AtomicInteger()).accumulateAndGet(now, Math::max);
+    }
+}
@@ -0,0 +1,137 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+import org.lineate.downloader.Downloader;
+import org.lineate.downloader.progressbar.DownloadStatus;
+import org.lineate.downloader.progressbar.ProgressEvent;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class HttpFileDownloaderReactiveLocalTest {
+
+    @Test
+    public void testProgressEvents() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(3_000_000));
+             HttpFileDownloaderReactive downloader = new HttpFileDownloaderReactive(1, false, 0)) {
+            UUID id = downloader.create(server.url(), "target/reactive-events.bin");
+            Mono<List<ProgressEvent>> events = downloader.events(id).collectList().cache();
+            events.subscribe();
+
+            downloader.download(id).block();
+
+            List<ProgressEvent> result = events.block();
+            assertNotNull(result);
+            assertEquals(DownloadStatus.NOT_STARTED, result.get(0).getProgress().getStatus());
+            assertEquals(DownloadStatus.DOWNLOADING, result.get(1).getProgress().getStatus());
+            assertEquals(DownloadStatus.FINISHED, result.get(result.size() - 1).getProgress().getStatus());
+            assertEquals(3_000_000, result.get(result.size() - 1).getProgress().getDownloaded());
+        }
+    }
+
+    @Test
+    public void testSlowSubscriberGetsTransitions() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(3_000_000));
+             HttpFileDownloaderReactive downloader = new HttpFileDownloaderReactive(1, false, 0)) {
+            UUID first = downloader.create(server.url(), "target/reactive-slow0.bin");
+            UUID second = downloader.create(server.url(), "target/reactive-slow1.bin");
+            List<ProgressEvent> result = new CopyOnWriteArrayList<>();
+            BaseSubscriber<ProgressEvent> subscriber = new BaseSubscriber<ProgressEvent>() {
+                @Override
+                protected void hookOnSubscribe(Subscription subscription) {
+                    // no demand until the downloads are over
+                }
+
+                @Override
+                protected void hookOnNext(ProgressEvent event) {
+                    result.add(event);
+                }
+            };
+            downloader.events().subscribe(subscriber);
+
+            downloader.download(first).block();
+            downloader.download(second).block();
+            subscriber.request(10);
+            subscriber.dispose();
+
+            assertEquals(4, result.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(i < 2 ? first : second, result.get(i).getId());
+                assertEquals(i % 2 == 0 ? DownloadStatus.DOWNLOADING : DownloadStatus.FINISHED,
+                        result.get(i).getProgress().getStatus());
+            }
+        }
+    }
+
+    @Test
+    public void testEventsOfFinishedDownload() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(100_000));
+             HttpFileDownloaderReactive downloader = new HttpFileDownloaderReactive(1, false, 0)) {
+            UUID id = downloader.create(server.url(), "target/reactive-finished.bin");
+            downloader.download(id).block();
+
+            List<ProgressEvent> result = downloader.events(id).collectList().block(Duration.ofSeconds(10));
+
+            assertNotNull(result);
+            assertEquals(1, result.size());
+            assertEquals(DownloadStatus.FINISHED, result.get(0).getProgress().getStatus());
+            assertEquals(100_000, result.get(0).getProgress().getDownloaded());
+        }
+    }
+
+    @Test
+    public void testStreamSingleFile() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(3_000_000));
+             Downloader<Mono<File>, Flux<DownloadResult>> downloader = new HttpFileDownloaderReactive(1, false)) {
+            UUID id = downloader.create(server.url(), "target/reactive-stream.bin");
+            Mono<File> result = downloader.download(id);
+            assertEquals(0, server.requests());
+
+            File file = result.block();
+
+            assertNotNull(file);
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            assertEquals(3_000_000, downloader.getProgressBytes(id));
+            assertArrayEquals(server.content(), Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test
+    public void testStreamAllFiles() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(1_000_000));
+             Downloader<Mono<File>, Flux<DownloadResult>> downloader = new HttpFileDownloaderReactive(2, false)) {
+            for (int i = 0; i < 8; i++) {
+                downloader.create(server.url(), "target/reactive-stream" + i + ".bin");
+            }
+            UUID broken = downloader.create("http://127.0.0.1:1/file", "target/reactive-broken.bin");
+
+            List<DownloadResult> results = downloader.downloadAll().collectList().block();
+
+            assertNotNull(results);
+            assertEquals(9, results.size());
+            for (DownloadResult result : results) {
+                if (result.getId().equals(broken)) {
+                    assertEquals(DownloadStatus.FAILED, result.getStatus());
+                    assertNotNull(result.getError());
+                } else {
+                    assertEquals(DownloadStatus.FINISHED, result.getStatus());
+                    assertEquals(1_000_000, result.getSize());
+                    assertArrayEquals(server.content(), Files.readAllBytes(result.getFile().toPath()));
+                }
+            }
+            assertEquals(DownloadStatus.FAILED, downloader.getStatus(broken));
+        }
+    }
+}
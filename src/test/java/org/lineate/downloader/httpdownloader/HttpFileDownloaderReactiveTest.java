@@ -14,10 +14,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -31,10 +29,10 @@ public class HttpFileDownloaderReactiveTest {
 
     @Test
     public void testDownloadSingleFile() throws Exception {
-        try(Downloader<Mono<Future<File>>, Flux<Future<File>>> downloader = new HttpFileDownloaderReactive(1, false)) {
+        try(Downloader<Mono<File>, Flux<DownloadResult>> downloader = new HttpFileDownloaderReactive(1, false)) {
             UUID id = downloader.create("https://apache-mirror.rbc.ru/pub/apache/kafka/2.8.0/kafka-2.8.0-src.tgz ", "target/kafka20.zip");
 
-            Mono<Future<File>> result = downloader.download(id);
+            Mono<File> result = downloader.download(id);
             assertNotNull(result);
 
             result
@@ -46,7 +44,7 @@ public class HttpFileDownloaderReactiveTest {
 
     @Test
     public void testDownloadAllFiles() {
-        try(Downloader<Mono<Future<File>>, Flux<Future<File>>> downloader = new HttpFileDownloaderReactive(3, false)) {
+        try(Downloader<Mono<File>, Flux<DownloadResult>> downloader = new HttpFileDownloaderReactive(3, false)) {
 
             downloader.create("https://apache-mirror.rbc.ru/pub/apache/kafka/2.8.0/kafka-2.8.0-src.tgz ", "target/kafka.zip");
             downloader.create("https://apache-mirror.rbc.ru/pub/apache/kafka/2.8.0/kafka-2.8.0-src.tgz ", "target/kafka1.zip");
@@ -55,7 +53,7 @@ public class HttpFileDownloaderReactiveTest {
             downloader.create("https://apache-mirror.rbc.ru/pub/apache/kafka/2.8.0/kafka-2.8.0-src.tgz ", "target/kafka4.zip");
             downloader.create("https://apache-mirror.rbc.ru/pub/apache/kafka/2.8.0/kafka-2.8.0-src.tgz ", "target/kafka5.zip");
 
-            ParallelFlux<Future<File>> result = downloader.downloadAll().parallel().runOn(Schedulers.boundedElastic());
+            ParallelFlux<DownloadResult> result = downloader.downloadAll().parallel().runOn(Schedulers.boundedElastic());
             assertNotNull(result);
 
             ExecutorService downloadMonitor = Executors.newSingleThreadExecutor();
@@ -68,7 +66,7 @@ public class HttpFileDownloaderReactiveTest {
                     .sequential()
                     .takeLast(fetchSize)
                     .doOnNext((r) -> {
-                        info(r);
+                        info(r.getFile());
                         counter.getAndIncrement();
                     })
                     .doOnError((f) -> LOGGER.error(ERROR_MESSAGE, f.getLocalizedMessage()))
@@ -85,22 +83,17 @@ public class HttpFileDownloaderReactiveTest {
         }
     }
 
-    private void info(Future<File> f) {
-        try {
-            File result = f.get();
-            LOGGER.info("Downloaded '{}', size: {} bytes", result.getPath(), result.length());
-        } catch (ExecutionException | InterruptedException e) {
-            e.printStackTrace();
-        }
+    private void info(File result) {
+        LOGGER.info("Downloaded '{}', size: {} bytes", result.getPath(), result.length());
     }
 
     private static final class DownloadMonitor implements Runnable {
         private final Set<UUID> downloads;
         private final Map<UUID, Byte> progresses = new HashMap<>();
         private final Map<UUID, String> files = new HashMap<>();
-        private final Downloader<Mono<Future<File>>, Flux<Future<File>>> downloaderReactive;
+        private final Downloader<Mono<File>, Flux<DownloadResult>> downloaderReactive;
 
-        public DownloadMonitor(Downloader<Mono<Future<File>>, Flux<Future<File>>> downloader) {
+        public DownloadMonitor(Downloader<Mono<File>, Flux<DownloadResult>> downloader) {
             this.downloads = downloader.getDownloads();
             this.downloaderReactive = downloader;
             downloads.forEach((v) -> {
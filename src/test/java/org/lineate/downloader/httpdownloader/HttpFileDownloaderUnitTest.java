@@ -5,12 +5,29 @@ import org.junit.Test;
 import org.lineate.downloader.Downloader;
 import org.lineate.downloader.exceptions.BadUrlException;
 import org.lineate.downloader.exceptions.IllegalUuidException;
+import org.lineate.downloader.metrics.DownloadMetrics;
 import org.lineate.downloader.progressbar.DownloadStatus;
+import org.lineate.downloader.progressbar.ProgressEvent;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 public class HttpFileDownloaderUnitTest {
     @Test
@@ -82,4 +99,255 @@ public class HttpFileDownloaderUnitTest {
             downloader.download(id);
         }
     }
+
+    @Test
+    public void testProgressListener() throws Exception {
+        Properties properties = new Properties() {{
+            put("progressInterval", 0);
+        }};
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(3_000_000));
+             Downloader<Future<File>, List<Future<File>>> downloader = new HttpFileDownloader(properties)) {
+            List<ProgressEvent> events = new CopyOnWriteArrayList<>();
+            downloader.subscribe(events::add);
+
+            UUID id = downloader.create(server.url(), "target/listener.bin");
+            downloader.download(id).get();
+
+            Assert.assertTrue(events.size() > 2);
+            ProgressEvent first = events.get(0);
+            Assert.assertEquals(id, first.getId());
+            Assert.assertEquals(DownloadStatus.NOT_STARTED, first.getPrevious());
+            Assert.assertEquals(DownloadStatus.DOWNLOADING, first.getProgress().getStatus());
+
+            ProgressEvent last = events.get(events.size() - 1);
+            Assert.assertEquals(DownloadStatus.DOWNLOADING, last.getPrevious());
+            Assert.assertEquals(DownloadStatus.FINISHED, last.getProgress().getStatus());
+            Assert.assertEquals(3_000_000, last.getProgress().getDownloaded());
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        Properties properties = new Properties() {{
+            put("virtualThreads", true);
+            put("concurrency", 2);
+            put("coalesce", false);
+        }};
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(1_000_000));
+             Downloader<Future<File>, List<Future<File>>> downloader = new HttpFileDownloader(properties)) {
+            List<UUID> ids = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                ids.add(downloader.create(server.url(), "target/virtual" + i + ".bin"));
+            }
+
+            for (Future<File> result : downloader.downloadAll()) {
+                Assert.assertArrayEquals(server.content(), Files.readAllBytes(result.get().toPath()));
+            }
+            for (UUID id : ids) {
+                Assert.assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            }
+            Assert.assertTrue(server.maxActive() <= 2);
+        }
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        Properties properties = new Properties() {{
+            put("threads", 2);
+        }};
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(2_000_000));
+             Downloader<Future<File>, List<Future<File>>> downloader = new HttpFileDownloader(properties)) {
+            List<UUID> ids = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                ids.add(downloader.create(server.url(), "target/coalesced" + i + ".bin"));
+            }
+
+            for (Future<File> result : downloader.downloadAll()) {
+                Assert.assertArrayEquals(server.content(), Files.readAllBytes(result.get().toPath()));
+            }
+            for (UUID id : ids) {
+                Assert.assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+                Assert.assertEquals(2_000_000, downloader.getProgressBytes(id));
+            }
+            Assert.assertEquals(1, server.requests());
+        }
+    }
+
+    @Test
+    public void testCoalescedProgress() throws Exception {
+        Properties properties = new Properties() {{
+            put("threads", 2);
+            put("rateLimit", 1_000_000L);
+        }};
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(2_000_000));
+             Downloader<Future<File>, List<Future<File>>> downloader = new HttpFileDownloader(properties)) {
+            UUID leader = downloader.create(server.url(), "target/coalesced-leader.bin");
+            UUID follower = downloader.create(server.url(), "target/coalesced-follower.bin");
+
+            Future<File> fetched = downloader.download(leader);
+            Future<File> copied = downloader.download(follower);
+            long shown = 0;
+            while (!fetched.isDone() || !copied.isDone()) {
+                if (downloader.downloading(follower)) {
+                    shown = Math.max(shown, Math.min(downloader.getProgressBytes(leader),
+                            downloader.getProgressBytes(follower)));
+                }
+                Thread.sleep(10);
+            }
+
+            Assert.assertTrue(shown > 0);
+            Assert.assertEquals(DownloadStatus.FINISHED, downloader.getStatus(follower));
+            Assert.assertEquals(2_000_000, downloader.getProgressBytes(follower));
+            Assert.assertEquals(1, server.requests());
+        }
+    }
+
+    @Test
+    public void testCacheRevalidation() throws Exception {
+        Properties properties = new Properties() {{
+            put("cacheDirectory", "target/download-cache");
+        }};
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(500_000));
+             HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            server.setEtag("\"" + UUID.randomUUID() + "\"");
+            UUID first = downloader.create(server.url(), "target/cached.bin");
+            downloader.download(first).get();
+            Assert.assertEquals(1, downloader.getCache().getMisses());
+
+            File copy = new File("target/cached-copy.bin");
+            Files.deleteIfExists(copy.toPath());
+            UUID second = downloader.create(server.url(), copy.getPath());
+            downloader.download(second).get();
+
+            Assert.assertEquals(DownloadStatus.FINISHED, downloader.getStatus(second));
+            Assert.assertEquals(500_000, downloader.getProgressBytes(second));
+            Assert.assertArrayEquals(server.content(), Files.readAllBytes(copy.toPath()));
+            Assert.assertEquals(1, downloader.getCache().getHits());
+            Assert.assertEquals(2, server.requests());
+            Assert.assertEquals(500_000, server.bytesServed());
+        }
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(1_500_000));
+             HttpFileDownloader downloader = new HttpFileDownloader(null)) {
+            String expected = Checksums.hex(MessageDigest.getInstance("SHA-256").digest(server.content()));
+
+            UUID valid = downloader.create(new DownloadData(server.url(), "target/checksum.bin")
+                    .withChecksum("SHA-256", expected.toUpperCase()));
+            downloader.download(valid).get();
+            Assert.assertEquals(DownloadStatus.FINISHED, downloader.getStatus(valid));
+            Assert.assertEquals(expected, downloader.getDigest(valid));
+
+            UUID broken = downloader.create(new DownloadData(server.url(), "target/checksum-broken.bin")
+                    .withChecksum("MD5", "00000000000000000000000000000000"));
+            downloader.download(broken).get();
+            Assert.assertEquals(DownloadStatus.VERIFICATION_FAILED, downloader.getStatus(broken));
+            Assert.assertEquals(1_500_000, downloader.getProgressBytes(broken));
+            Assert.assertEquals(Checksums.hex(MessageDigest.getInstance("MD5").digest(server.content())),
+                    downloader.getDigest(broken));
+        }
+    }
+
+    @Test
+    public void testCreateAll() throws Exception {
+        List<DownloadData> data = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            data.add(new DownloadData("http://localhost/" + i, "target/bulk-" + i));
+        }
+        try (HttpFileDownloader downloader = new HttpFileDownloader(null)) {
+            List<UUID> ids = downloader.createAll(data);
+            Assert.assertEquals(data.size(), ids.size());
+            Assert.assertEquals(data.size(), new HashSet<>(ids).size());
+            for (int i = 0; i < ids.size(); i++) {
+                UUID id = ids.get(i);
+                Assert.assertEquals(7, id.version());
+                Assert.assertEquals(2, id.variant());
+                Assert.assertEquals("http://localhost/" + i, downloader.getSource(id));
+                Assert.assertEquals(DownloadStatus.NOT_STARTED, downloader.getStatus(id));
+                if (i > 0) {
+                    Assert.assertTrue(ids.get(i - 1).compareTo(id) < 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExtraction() throws Exception {
+        byte[] payload = LocalHttpServer.randomContent(300_000);
+        try (LocalHttpServer server = new LocalHttpServer(zip("docs/readme.txt", payload));
+             LocalHttpServer evil = new LocalHttpServer(zip("../escaped.txt", payload));
+             HttpFileDownloader downloader = new HttpFileDownloader(null)) {
+            File directory = new File("target/extracted");
+            UUID uuid = downloader.create(new DownloadData(server.url(), "target/archive.zip")
+                    .withExtraction(directory.getPath(), true));
+            downloader.download(uuid).get();
+            Assert.assertEquals(DownloadStatus.FINISHED, downloader.getStatus(uuid));
+            Assert.assertEquals(server.content().length, downloader.getProgressBytes(uuid));
+            Assert.assertArrayEquals(payload, Files.readAllBytes(new File(directory, "docs/readme.txt").toPath()));
+            Assert.assertArrayEquals(server.content(), Files.readAllBytes(new File("target/archive.zip").toPath()));
+
+            UUID escaping = downloader.create(new DownloadData(evil.url(), "target/evil.zip")
+                    .withExtraction(directory.getPath(), false));
+            downloader.download(escaping).get();
+            Assert.assertEquals(DownloadStatus.FAILED, downloader.getStatus(escaping));
+            Assert.assertFalse(new File("target/escaped.txt").exists());
+            Assert.assertFalse(new File("target/evil.zip").exists());
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Properties properties = new Properties() {{
+            put("threads", 1);
+            put("jmx", true);
+            put("coalesce", false);
+        }};
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("org.lineate.downloader:type=HttpFileDownloader,*");
+        int registered = server.queryNames(pattern, null).size();
+        try (LocalHttpServer local = new LocalHttpServer(LocalHttpServer.randomContent(200_000));
+             HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            downloader.create(local.url(), "target/metrics-1.bin");
+            downloader.create(local.url(), "target/metrics-2.bin");
+            downloader.create("http://127.0.0.1:1/missing", "target/metrics-3.bin");
+            downloader.downloadAll();
+
+            DownloadMetrics.Snapshot total = downloader.getMetrics().snapshot();
+            Assert.assertEquals(3, total.getStarted());
+            Assert.assertEquals(2, total.getFinished());
+            Assert.assertEquals(1, total.getFailed());
+            Assert.assertEquals(0, total.getActive());
+            Assert.assertEquals(400_000, total.getBytes());
+            Assert.assertEquals(3, total.getQueueWait().getCount());
+            Assert.assertEquals(2, total.getFirstByte().getCount());
+            Assert.assertEquals(2, total.getThroughput().getCount());
+            Assert.assertTrue(total.getThroughput().getP50() > 0);
+            String host = new URL(local.url()).getAuthority();
+            Assert.assertEquals(2, downloader.getMetrics().snapshot(host).getFinished());
+            Assert.assertEquals(1, downloader.getMetrics().snapshot("127.0.0.1:1").getFailed());
+
+            Assert.assertEquals(registered + 1, server.queryNames(pattern, null).size());
+            ObjectName name = server.queryNames(pattern, null).stream()
+                    .max((a, b) -> Integer.compare(Integer.parseInt(a.getKeyProperty("name")),
+                            Integer.parseInt(b.getKeyProperty("name")))).get();
+            Assert.assertEquals(2L, server.getAttribute(name, "FinishedTasks"));
+            Assert.assertEquals(1.0 / 3, (Double) server.getAttribute(name, "FailureRate"), 1e-9);
+            CompositeData composite = (CompositeData) server.getAttribute(name, "Total");
+            Assert.assertEquals(400_000L, composite.get("bytes"));
+            Assert.assertEquals(3L, ((CompositeData) composite.get("queueWait")).get("count"));
+        }
+        Assert.assertEquals(registered, server.queryNames(pattern, null).size());
+    }
+
+    private static byte[] zip(String name, byte[] content) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write(content);
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
 }
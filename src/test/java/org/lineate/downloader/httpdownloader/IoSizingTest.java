@@ -0,0 +1,76 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IoSizingTest {
+
+    @Test
+    public void testInitialSizes() {
+        assertEquals(500, IoSizing.forLength(500).flushSize());
+        assertEquals(500, IoSizing.forLength(500).readSize());
+        assertEquals(0x10000, IoSizing.forLength(1_500_000).flushSize());
+        assertEquals(IoSizing.MAX_SIZE, IoSizing.forLength(1L << 40).flushSize());
+        assertEquals(IoSizing.UNKNOWN_LENGTH_SIZE, IoSizing.forLength(1L << 40).readSize());
+        assertEquals(IoSizing.UNKNOWN_LENGTH_SIZE, IoSizing.forLength(-1).flushSize());
+    }
+
+    @Test
+    public void testAdaptation() {
+        IoSizing sizing = IoSizing.forLength(1L << 30);
+        for (int i = 0; i < 4; i++) {
+            sizing.read(sizing.readSize(), sizing.readSize());
+        }
+        assertEquals(2 * IoSizing.UNKNOWN_LENGTH_SIZE, sizing.readSize());
+        for (int i = 0; i < 8; i++) {
+            sizing.read(sizing.readSize(), 100);
+        }
+        assertEquals(IoSizing.UNKNOWN_LENGTH_SIZE / 2, sizing.readSize());
+
+        IoSizing small = IoSizing.forLength(100_000);
+        int initial = small.flushSize();
+        for (int i = 0; i < 4; i++) {
+            small.flushed(small.flushSize());
+        }
+        assertEquals(2 * initial, small.flushSize());
+    }
+
+    @Test
+    public void testTransferSyscalls() throws Exception {
+        byte[] content = LocalHttpServer.randomContent(4_000_000);
+        AtomicInteger reads = new AtomicInteger();
+        InputStream source = new FilterInputStream(new ByteArrayInputStream(content)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                reads.incrementAndGet();
+                return super.read(b, off, len);
+            }
+        };
+        AtomicInteger writes = new AtomicInteger();
+        File file = new File("target/sizing.bin");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long total = ChannelTransfer.transfer(source, channel, 0, new RateLimiter(0, null),
+                    IoSizing.forLength(content.length), new BufferPool(0, false),
+                    (transferred) -> writes.incrementAndGet());
+            assertEquals(content.length, total);
+        }
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        // 8 KB blocks would take about 500 reads and writes
+        assertTrue(reads.get() < 100);
+        assertTrue(writes.get() <= 16);
+    }
+}
@@ -0,0 +1,234 @@
+package org.lineate.downloader.httpdownloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback http server for tests, serves one binary file at "/file"
+ * with byte range support.
+ */
+final class LocalHttpServer implements AutoCloseable {
+
+    private static final int CHUNK = 8192;
+
+    private final HttpServer server;
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private volatile byte[] content;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final List<String> rangeHeaders = new CopyOnWriteArrayList<>();
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private volatile boolean ranges = true;
+    private volatile boolean ifRange = true;
+    private volatile String etag = "\"v1\"";
+    private volatile long failAfter = -1;
+    private final AtomicInteger delayed = new AtomicInteger();
+    private volatile long delay;
+    private volatile byte[] served;
+
+    LocalHttpServer(byte[] content) throws IOException {
+        this.content = content;
+        this.served = content;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/file", this::handle);
+        server.setExecutor(pool);
+        server.start();
+    }
+
+    static byte[] randomContent(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+    }
+
+    byte[] content() {
+        return content;
+    }
+
+    int requests() {
+        return requests.get();
+    }
+
+    int rangeRequests() {
+        return rangeRequests.get();
+    }
+
+    List<String> rangeHeaders() {
+        return rangeHeaders;
+    }
+
+    /**
+     * Returns the maximum number of simultaneously served requests.
+     */
+    int maxActive() {
+        return maxActive.get();
+    }
+
+    /**
+     * Returns client ports of the served requests, one per connection.
+     */
+    Set<Integer> clientPorts() {
+        return clientPorts;
+    }
+
+    long bytesServed() {
+        return bytesServed.get();
+    }
+
+    void setRanges(boolean value) {
+        ranges = value;
+    }
+
+    void setEtag(String value) {
+        etag = value;
+    }
+
+    /**
+     * Replaces the served content, the ETag stays the same.
+     */
+    void setContent(byte[] value) {
+        content = value;
+        served = value;
+    }
+
+    /**
+     * Makes the server answer ranges without checking If-Range, like
+     * servers which do not support it.
+     */
+    void setIfRange(boolean value) {
+        ifRange = value;
+    }
+
+    /**
+     * Breaks the next response after the given number of bytes.
+     */
+    void failAfter(long bytes) {
+        failAfter = bytes;
+    }
+
+    /**
+     * Holds the headers of the next responses for the given time.
+     */
+    void delay(int responses, long millis) {
+        delay = millis;
+        delayed.set(responses);
+    }
+
+    /**
+     * Serves the content with a flipped byte at the given offset.
+     */
+    void corrupt(int offset) {
+        byte[] data = content.clone();
+        data[offset] ^= 1;
+        served = data;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        try {
+            serve(exchange);
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if (delayed.getAndUpdate((left) -> Math.max(left - 1, 0)) > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        long start = 0;
+        long end = content.length - 1;
+        int code = 200;
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (etag != null) {
+            exchange.getResponseHeaders().add("ETag", etag);
+        }
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (etag != null && etag.equals(ifNoneMatch)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        if (ranges) {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if (range != null && range.startsWith("bytes=")
+                    && (ifRange == null || !this.ifRange || ifRange.equals(etag))) {
+                rangeRequests.incrementAndGet();
+                rangeHeaders.add(range);
+                String[] bounds = range.substring(6).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                if (start > end) {
+                    exchange.getResponseHeaders().add("Content-Range", "bytes */" + content.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                code = 206;
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + start + "-" + end + "/" + content.length);
+            }
+        }
+
+        long length = end - start + 1;
+        byte[] data = served;
+        long limit = failAfter;
+        failAfter = -1;
+        exchange.sendResponseHeaders(code, length);
+        OutputStream body = exchange.getResponseBody();
+        for (long offset = start; offset <= end; offset += CHUNK) {
+            if (limit >= 0 && offset - start >= limit) {
+                body.flush();
+                // short fixed length body makes the server drop the socket
+                exchange.close();
+                return;
+            }
+            int chunk = (int) Math.min(CHUNK, end + 1 - offset);
+            try {
+                body.write(data, (int) offset, chunk);
+            } catch (IOException ex) {
+                // client closed the connection before the end of range
+                return;
+            }
+            bytesServed.addAndGet(chunk);
+        }
+        body.close();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+}
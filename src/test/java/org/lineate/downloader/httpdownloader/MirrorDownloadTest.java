@@ -0,0 +1,132 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+import org.lineate.downloader.metalink.Metalink;
+import org.lineate.downloader.progressbar.DownloadStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MirrorDownloadTest {
+
+    private static final int PIECE = 256 * 1024;
+
+    private final Properties properties = new Properties() {{
+        put("threads", 1);
+        put("coalesce", false);
+    }};
+
+    @Test
+    public void testCorruptPieceFromOtherMirror() throws Exception {
+        byte[] content = LocalHttpServer.randomContent(3 * 1024 * 1024 + 1000);
+        try (LocalHttpServer first = new LocalHttpServer(content);
+             LocalHttpServer second = new LocalHttpServer(content);
+             HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            // the first piece always comes from the first mirror
+            first.corrupt(1000);
+            UUID id = downloader.create(metalink(content, first.url(), second.url()),
+                    "target/mirrored.bin");
+            downloader.download(id).get();
+
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            assertArrayEquals(content, Files.readAllBytes(new File("target/mirrored.bin").toPath()));
+            assertTrue(first.rangeRequests() > 0);
+            assertTrue(second.rangeRequests() > 0);
+            assertTrue(second.rangeHeaders().contains("bytes=0-" + (PIECE - 1)));
+        }
+    }
+
+    @Test
+    public void testMappedRetriedPieces() throws Exception {
+        properties.put("output", "mapped");
+        byte[] content = LocalHttpServer.randomContent(3 * 1024 * 1024 + 1000);
+        try (LocalHttpServer first = new LocalHttpServer(content);
+             LocalHttpServer second = new LocalHttpServer(content);
+             HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            // a corrupt and a truncated piece are written twice, the window
+            // must not be taken as complete before the last piece
+            first.corrupt(1000);
+            second.failAfter(100_000);
+            UUID id = downloader.create(metalink(content, first.url(), second.url()),
+                    "target/mirrored-mapped.bin");
+            downloader.download(id).get();
+
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            assertArrayEquals(content, Files.readAllBytes(new File("target/mirrored-mapped.bin").toPath()));
+            // the truncated piece is fetched again from the same mirror
+            assertTrue(second.rangeHeaders().stream().distinct().count() < second.rangeHeaders().size());
+        }
+    }
+
+    @Test
+    public void testCorruptOnAllMirrors() throws Exception {
+        byte[] content = LocalHttpServer.randomContent(1024 * 1024);
+        try (LocalHttpServer first = new LocalHttpServer(content);
+             LocalHttpServer second = new LocalHttpServer(content);
+             HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            first.corrupt(PIECE + 10);
+            second.corrupt(PIECE + 10);
+            UUID id = downloader.create(metalink(content, first.url(), second.url()),
+                    "target/mirrored-corrupt.bin");
+            downloader.download(id).get();
+
+            assertEquals(DownloadStatus.FAILED, downloader.getStatus(id));
+        }
+    }
+
+    @Test
+    public void testMirrorWithoutRanges() throws Exception {
+        byte[] content = LocalHttpServer.randomContent(2 * 1024 * 1024);
+        try (LocalHttpServer first = new LocalHttpServer(content);
+             LocalHttpServer second = new LocalHttpServer(content);
+             HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            second.setRanges(false);
+            UUID id = downloader.create(Metalink.of(Arrays.asList(first.url(), second.url())),
+                    "target/mirrored-plain.bin");
+            downloader.download(id).get();
+
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            assertArrayEquals(content, Files.readAllBytes(new File("target/mirrored-plain.bin").toPath()));
+            assertEquals(0, second.rangeRequests());
+        }
+    }
+
+    private static Metalink metalink(byte[] content, String... urls) throws Exception {
+        StringBuilder xml = new StringBuilder("<metalink xmlns=\"" + Metalink.NAMESPACE + "\"><file>")
+                .append("<size>").append(content.length).append("</size>")
+                .append("<hash type=\"sha-256\">").append(sha256(content, 0, content.length))
+                .append("</hash><pieces length=\"").append(PIECE).append("\" type=\"sha-256\">");
+        for (int start = 0; start < content.length; start += PIECE) {
+            xml.append("<hash>").append(sha256(content, start, Math.min(PIECE, content.length - start)))
+                    .append("</hash>");
+        }
+        xml.append("</pieces>");
+        for (String url : urls) {
+            xml.append("<url>").append(url).append("</url>");
+        }
+        xml.append("</file></metalink>");
+        return Metalink.parse(new ByteArrayInputStream(xml.toString().getBytes(StandardCharsets.UTF_8)))
+                .get(0);
+    }
+
+    private static String sha256(byte[] content, int offset, int length) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content, offset, length);
+            return Checksums.hex(digest.digest());
+        } catch (java.security.NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+}
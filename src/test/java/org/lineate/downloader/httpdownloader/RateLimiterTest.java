@@ -0,0 +1,54 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+import org.lineate.downloader.progressbar.DownloadStatus;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testRuntimeRateChange() throws Exception {
+        RateLimiter global = new RateLimiter(1_000_000, null);
+        RateLimiter task = new RateLimiter(0, global);
+        assertEquals(100_000, task.chunk(1024 * 1024));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            task.acquire(100_000);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+
+        global.setRate(0);
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            task.acquire(1_000_000);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+        assertEquals(1024 * 1024, task.chunk(1024 * 1024));
+    }
+
+    @Test
+    public void testTaskRateLimit() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(1_000_000));
+             HttpFileDownloader downloader = new HttpFileDownloader(null)) {
+            UUID id = downloader.create(new DownloadData(server.url(), "target/rate-limited.bin")
+                    .withRateLimit(500_000));
+
+            long start = System.nanoTime();
+            File file = downloader.download(id).get();
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            assertArrayEquals(server.content(), Files.readAllBytes(file.toPath()));
+            assertTrue("elapsed " + elapsed, elapsed >= 1500);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+import org.lineate.downloader.Downloader;
+import org.lineate.downloader.progressbar.DownloadProgress;
+import org.lineate.downloader.progressbar.DownloadStatus;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedDownloadTest {
+
+    @Test
+    public void testSegmentedFetch() throws Exception {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(3_000_000))) {
+            URL url = new URL(server.url());
+            URLConnection connection = url.openConnection();
+            assertTrue(SegmentedDownload.supported(connection, 64 * 1024));
+
+            File destination = new File("target/segmented.bin");
+            DownloadProgress progress = new DownloadProgress();
+            long size = new SegmentedDownload(url, destination, connection.getContentLengthLong(),
+                    4, 64 * 1024, pool, new ConnectionManager(), new RateLimiter(0, null), progress)
+                    .fetch(new Hedging.Response(connection), null);
+
+            assertEquals(server.content().length, size);
+            assertEquals(size, progress.getDownloaded());
+            assertArrayEquals(server.content(), Files.readAllBytes(destination.toPath()));
+            assertTrue(server.rangeRequests() >= 3);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMappedFetch() throws Exception {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(3_000_000))) {
+            URL url = new URL(server.url());
+            URLConnection connection = url.openConnection();
+
+            File destination = new File("target/segmented-mapped.bin");
+            DownloadProgress progress = new DownloadProgress();
+            long size = new SegmentedDownload(url, destination, connection.getContentLengthLong(),
+                    4, 64 * 1024, pool, new ConnectionManager(), new RateLimiter(0, null), progress)
+                    .output(FileSink.Mode.of("mapped"), true)
+                    .fetch(new Hedging.Response(connection), null);
+
+            assertEquals(server.content().length, size);
+            assertArrayEquals(server.content(), Files.readAllBytes(destination.toPath()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMappedFetchInterrupted() throws Exception {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(3_000_000))) {
+            URL url = new URL(server.url());
+            URLConnection connection = url.openConnection();
+            File destination = new File("target/segmented-interrupted.bin");
+            DownloadProgress progress = new DownloadProgress();
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            AtomicLong downloaded = new AtomicLong();
+            Thread fetch = new Thread(() -> {
+                try {
+                    new SegmentedDownload(url, destination, connection.getContentLengthLong(),
+                            4, 64 * 1024, pool, new ConnectionManager(), new RateLimiter(1_000_000, null),
+                            progress)
+                            .output(FileSink.Mode.MAPPED, true)
+                            .fetch(new Hedging.Response(connection), null);
+                } catch (Exception ex) {
+                    failure.set(ex);
+                }
+                downloaded.set(progress.getDownloaded());
+            });
+            fetch.start();
+            Thread.sleep(500);
+            fetch.interrupt();
+            fetch.join(10_000);
+            Thread.sleep(300);
+
+            assertTrue(failure.get() instanceof InterruptedIOException);
+            // the mapped sink is closed after the workers, none of them
+            // writes later
+            assertEquals(downloaded.get(), progress.getDownloaded());
+            assertTrue(downloaded.get() < server.content().length);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSegmentsNotSupported() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(3_000_000))) {
+            server.setRanges(false);
+            URLConnection connection = new URL(server.url()).openConnection();
+            assertEquals(false, SegmentedDownload.supported(connection, 64 * 1024));
+        }
+    }
+
+    @Test
+    public void testDownloaderSegmentedMode() throws Exception {
+        Properties properties = new Properties() {{
+            put("segments", 4);
+        }};
+
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(5_000_000));
+             Downloader<Future<File>, List<Future<File>>> downloader = new HttpFileDownloader(properties)) {
+            UUID id = downloader.create(server.url(), "target/segmented-downloader.bin");
+            File file = downloader.download(id).get();
+
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+            assertEquals(100, downloader.getProgress(id));
+            assertEquals(server.content().length, downloader.getProgressBytes(id));
+            assertArrayEquals(server.content(), Files.readAllBytes(file.toPath()));
+            assertTrue(server.rangeRequests() >= 3);
+        }
+    }
+
+    @Test
+    public void testSegmentsWithinHostLimit() throws Exception {
+        Properties properties = new Properties() {{
+            put("threads", 4);
+            put("segments", 8);
+            put("connectionsPerHost", 2);
+            put("coalesce", false);
+        }};
+
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(5_000_000));
+             Downloader<Future<File>, List<Future<File>>> downloader = new HttpFileDownloader(properties)) {
+            List<UUID> ids = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                ids.add(downloader.create(server.url(), "target/segmented-limited" + i + ".bin"));
+            }
+            downloader.downloadAll();
+
+            for (int i = 0; i < ids.size(); i++) {
+                assertEquals(DownloadStatus.FINISHED, downloader.getStatus(ids.get(i)));
+                assertArrayEquals(server.content(),
+                        Files.readAllBytes(new File("target/segmented-limited" + i + ".bin").toPath()));
+            }
+            assertTrue(server.maxActive() <= 2);
+        }
+    }
+}
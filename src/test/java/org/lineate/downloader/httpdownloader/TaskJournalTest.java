@@ -0,0 +1,89 @@
+package org.lineate.downloader.httpdownloader;
+
+import org.junit.Test;
+import org.lineate.downloader.progressbar.DownloadStatus;
+import org.lineate.downloader.progressbar.ProgressEvent;
+import org.lineate.downloader.progressbar.Progressbar;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TaskJournalTest {
+
+    @Test
+    public void testRestoreRegistry() throws Exception {
+        File file = new File("target/journal-registry.log");
+        Files.deleteIfExists(file.toPath());
+        Properties properties = new Properties() {{
+            put("journal", file.getPath());
+        }};
+        UUID finished;
+        UUID queued;
+        UUID removed;
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(200_000))) {
+            try (HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+                finished = downloader.create(server.url(), "target/journal-finished.bin");
+                downloader.download(finished).get();
+                queued = downloader.create(new DownloadData(server.url(), "target/journal-queued.bin")
+                        .withPriority(DownloadData.MAX_PRIORITY)
+                        .withDeadline(Instant.parse("2030-01-01T00:00:00Z")));
+                removed = downloader.create(server.url(), "target/journal-removed.bin");
+                downloader.remove(removed);
+            }
+        }
+        // torn record of a crashed writer
+        Files.write(file.toPath(), "PROGRESS\t12".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+            assertEquals(DownloadStatus.FINISHED, downloader.getStatus(finished));
+            assertEquals(200_000, downloader.getProgressBytes(finished));
+            assertEquals(DownloadStatus.NOT_STARTED, downloader.getStatus(queued));
+            assertEquals("target/journal-queued.bin", downloader.getDestination(queued));
+            assertFalse(downloader.getDownloads().contains(removed));
+        }
+        // compacted on open
+        assertEquals(5, Files.readAllLines(file.toPath()).size());
+    }
+
+    @Test
+    public void testContinueInterrupted() throws Exception {
+        File file = new File("target/journal-interrupted.log");
+        Files.deleteIfExists(file.toPath());
+        try (LocalHttpServer server = new LocalHttpServer(LocalHttpServer.randomContent(300_000))) {
+            UUID id = UUID.randomUUID();
+            try (TaskJournal journal = new TaskJournal(file)) {
+                journal.created(id, new DownloadData(server.url(), "target/journal-interrupted.bin"));
+                journal.onEvent(new ProgressEvent(id, DownloadStatus.NOT_STARTED,
+                        new Progressbar(300_000, 0, DownloadStatus.DOWNLOADING)));
+            }
+
+            Properties properties = new Properties() {{
+                put("journal", file.getPath());
+            }};
+            try (HttpFileDownloader downloader = new HttpFileDownloader(properties)) {
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (downloader.getStatus(id) != DownloadStatus.FINISHED
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(DownloadStatus.FINISHED, downloader.getStatus(id));
+                assertArrayEquals(server.content(),
+                        Files.readAllBytes(new File("target/journal-interrupted.bin").toPath()));
+            }
+            try (TaskJournal journal = new TaskJournal(file)) {
+                assertEquals(1, journal.tasks().size());
+                assertTrue(journal.tasks().get(0).getStatus() == DownloadStatus.FINISHED);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.lineate.downloader.metalink;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MetalinkTest {
+
+    private static final String DOCUMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<metalink xmlns=\"urn:ietf:params:xml:ns:metalink\">\n"
+            + "  <file name=\"example.bin\">\n"
+            + "    <size>300</size>\n"
+            + "    <hash type=\"md5\">00112233445566778899aabbccddeeff</hash>\n"
+            + "    <hash type=\"sha-256\">AABB</hash>\n"
+            + "    <pieces length=\"100\" type=\"sha-1\">\n"
+            + "      <hash>01</hash><hash>02</hash><hash>03</hash>\n"
+            + "    </pieces>\n"
+            + "    <url priority=\"2\">http://second.example.com/example.bin</url>\n"
+            + "    <url priority=\"1\">https://first.example.com/example.bin</url>\n"
+            + "    <url>ftp://last.example.com/example.bin</url>\n"
+            + "    <url priority=\"1\">rsync://skipped.example.com/example.bin</url>\n"
+            + "  </file>\n"
+            + "  <file name=\"nowhere.bin\"><size>1</size></file>\n"
+            + "</metalink>\n";
+
+    @Test
+    public void testParse() throws IOException {
+        List<Metalink> files = parse(DOCUMENT);
+
+        assertEquals(1, files.size());
+        Metalink file = files.get(0);
+        assertEquals("example.bin", file.getName());
+        assertEquals(300, file.getSize());
+        assertEquals(Arrays.asList("https://first.example.com/example.bin",
+                "http://second.example.com/example.bin",
+                "ftp://last.example.com/example.bin"), file.getUrls());
+        assertEquals("SHA-256", file.getChecksumAlgorithm());
+        assertEquals("aabb", file.getChecksum());
+        assertEquals("SHA-1", file.getPieceAlgorithm());
+        assertEquals(100, file.getPieceLength());
+        assertEquals(Arrays.asList("01", "02", "03"), file.getPieceHashes());
+    }
+
+    @Test
+    public void testXmlRoundTrip() throws IOException {
+        Metalink file = parse(DOCUMENT).get(0);
+        assertEquals(file, parse(file.toXml()).get(0));
+
+        Metalink plain = Metalink.of(Arrays.asList("http://a.example.com/f",
+                "http://b.example.com/f?x=1&y=2"));
+        Metalink read = parse(plain.toXml()).get(0);
+        assertEquals(plain, read);
+        assertNull(read.getChecksum());
+    }
+
+    @Test(expected = IOException.class)
+    public void testPiecesDoNotMatchSize() throws IOException {
+        parse(DOCUMENT.replace("<size>300</size>", "<size>301</size>"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotMetalink() throws IOException {
+        parse("<metalink><file/></metalink>");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongUrl() {
+        Metalink.of(Arrays.asList("http://a.example.com/f", "not a url"));
+    }
+
+    private static List<Metalink> parse(String xml) throws IOException {
+        return Metalink.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,47 @@
+package org.lineate.downloader.metrics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (int index = 0; index < 488; index++) {
+            long upper = Histogram.upper(index);
+            assertTrue(upper > previous);
+            assertEquals(index, Histogram.index(upper));
+            assertEquals(index, Histogram.index(previous + 1));
+            previous = upper;
+        }
+        assertEquals(Long.MAX_VALUE, previous);
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.snapshot().getP99());
+        long[] values = new long[100_000];
+        Random random = new Random(1);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1 + random.nextInt(1_000_000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[values.length - 1], snapshot.getMax());
+        for (double percentile : new double[] {50, 90, 99}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = snapshot.getValueAt(percentile);
+            assertTrue(reported >= exact);
+            assertTrue(reported <= exact * 1.125 + 1);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.lineate.downloader.progressbar;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DownloadProgressTest {
+
+    @Test
+    public void getPercentage() {
+        DownloadProgress progress = new DownloadProgress();
+        assertEquals(0, progress.getPercentage());
+
+        progress.start(1000);
+        progress.set(333);
+        assertEquals(33, progress.getPercentage());
+    }
+
+    @Test
+    public void getDownloadedOverTwoGigabytes() {
+        long size = 5L * 1024 * 1024 * 1024;
+        DownloadProgress progress = new DownloadProgress();
+        progress.start(size);
+        progress.set(Integer.MAX_VALUE);
+        progress.add(Integer.MAX_VALUE);
+        assertEquals(2L * Integer.MAX_VALUE, progress.getDownloaded());
+        assertEquals(79, progress.getPercentage());
+
+        progress.set(size);
+        assertEquals(100, progress.getPercentage());
+    }
+
+    @Test
+    public void getStatus() {
+        DownloadProgress progress = new DownloadProgress();
+        assertEquals(DownloadStatus.NOT_STARTED, progress.getStatus());
+
+        progress.start(-1);
+        assertEquals(DownloadStatus.DOWNLOADING, progress.getStatus());
+        assertEquals(0, progress.getPercentage());
+
+        progress.set(100);
+        progress.finish();
+        Progressbar snapshot = progress.snapshot();
+        assertEquals(DownloadStatus.FINISHED, snapshot.getStatus());
+        assertEquals(100, snapshot.getDownloaded());
+
+        progress.fail();
+        assertEquals(DownloadStatus.FAILED, progress.getStatus());
+        assertEquals(0, progress.getDownloaded());
+    }
+}
@@ -0,0 +1,61 @@
+package org.lineate.downloader.progressbar;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressDispatcherTest {
+
+    @Test
+    public void testCoalescing() {
+        ProgressDispatcher dispatcher = new ProgressDispatcher(60_000);
+        List<ProgressEvent> events = new CopyOnWriteArrayList<>();
+        ProgressListener listener = events::add;
+        dispatcher.subscribe(listener);
+
+        UUID id = UUID.randomUUID();
+        DownloadProgress progress = new DownloadProgress(id, dispatcher);
+        progress.start(1000);
+        for (int i = 1; i <= 1000; i++) {
+            progress.set(i);
+        }
+        progress.finish();
+
+        assertEquals(2, events.size());
+        assertEquals(DownloadStatus.NOT_STARTED, events.get(0).getPrevious());
+        assertEquals(DownloadStatus.DOWNLOADING, events.get(0).getProgress().getStatus());
+        assertTrue(events.get(1).isTransition());
+        assertTrue(events.get(1).isTerminal());
+        assertEquals(1000, events.get(1).getProgress().getDownloaded());
+        assertEquals(id, events.get(1).getId());
+
+        dispatcher.unsubscribe(listener);
+        progress.start(1000);
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void testProgressEvents() {
+        ProgressDispatcher dispatcher = new ProgressDispatcher(0);
+        List<ProgressEvent> events = new CopyOnWriteArrayList<>();
+        dispatcher.subscribe(events::add);
+
+        DownloadProgress progress = new DownloadProgress(UUID.randomUUID(), dispatcher);
+        progress.start(10);
+        progress.set(5);
+        progress.add(5);
+        progress.fail();
+
+        assertEquals(4, events.size());
+        assertFalse(events.get(1).isTransition());
+        assertEquals(50, events.get(1).getProgress().getPercentage());
+        assertEquals(10, events.get(2).getProgress().getDownloaded());
+        assertEquals(DownloadStatus.FAILED, events.get(3).getProgress().getStatus());
+    }
+}